@@ -1,7 +1,10 @@
 package fr.algo3d;
 
 import fr.algo3d.model.Scene;
-import java.io.*;
+import fr.algo3d.io.SceneLoader;
+import fr.algo3d.io.TgaStreamWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  *
@@ -9,51 +12,6 @@ import java.io.*;
  */
 public class JavaTga
 {
-    /**
-     * 
-     * @param fout : output file stream
-     * @param n : short to write to disc in little endian
-     */
-    private static void writeShort(FileOutputStream fout,int n) throws IOException
-    {
-        fout.write(n&255);
-        fout.write((n>>8)&255);
-    }
-
-    /**
-     * 
-     * @param filename name of final TGA file
-     * @param buffer buffer that contains the image. 3 bytes per pixel ordered this way : Blue, Green, Red
-     * @param width Width of the image
-     * @param height Height of the image
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
-     * @throws IOException 
-     */
-    private static void saveTGA(String filename, byte buffer[], int width, int height) throws IOException, UnsupportedEncodingException {
-
-        FileOutputStream fout = new FileOutputStream(new File(filename));
-
-        fout.write(0); // Comment size, no comment
-        fout.write(0); // Colormap type: No colormap
-        fout.write(2); // Image type
-        writeShort(fout,0); // Origin
-        writeShort(fout,0); // Length
-        fout.write(0); // Depth
-        writeShort(fout,0); // X origin
-        writeShort(fout,0); // Y origin
-        writeShort(fout,width); // Width of the image
-        writeShort(fout,height); // Height of the image
-        fout.write(24); // Pixel size in bits (24bpp)
-        fout.write(0); // Descriptor
-
-        /* Write the buffer */
-        fout.write(buffer);
-
-        fout.close();
-    }
-
-
     static long chrono = 0 ;
 
     static void startChrono() {
@@ -67,19 +25,28 @@ public class JavaTga
     }
 
     /**
-     * @param args no command line arguments
+     * @param args optional scene file, the default scene is rendered without it
      */
     public static void main(String[] args) {
         int w=1920;
         int h=1080;
-        byte buffer[]=new byte[3*w*h];
-        byte image[]=new byte[3*w*h];
-        Scene scene = new Scene();
-        startChrono();
-        scene.renderParallelNestedLoops(w, h, buffer, image);
-        stopChrono();
+        Scene scene;
         try {
-            saveTGA("imagetest.tga",buffer,w,h);
+            // the big sets of spheres are cached in the temporary directory, keyed by the content of the file
+            scene = args.length > 0
+                    ? new SceneLoader(Paths.get(System.getProperty("java.io.tmpdir"), "raytracing-cache")).load(Paths.get(args[0]))
+                    : new Scene();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Scene not loaded :"+e);
+            return;
+        }
+        // the tiles are written to the file as soon as they are rendered, the whole image is never in memory
+        try (TgaStreamWriter writer = new TgaStreamWriter(Paths.get("imagetest.tga"),w,h)) {
+            startChrono();
+            scene.renderParallelTiles(w,h,writer);
+            stopChrono();
         }
         catch(Exception e)
         {
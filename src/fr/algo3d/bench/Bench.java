@@ -0,0 +1,106 @@
+package fr.algo3d.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Small benchmark harness : runs warm-up iterations then measured iterations of a workload
+ * and reports the time per operation, the rays per second and the allocation rate of all the threads.
+ * Allocations are read from the HotSpot ThreadMXBean, like the GC profiler of JMH.
+ */
+public class Bench {
+
+    /**
+     * Workload to measure.
+     */
+    public interface Workload {
+        /**
+         * Runs one operation.
+         * @return number of rays traced by the operation
+         */
+        long run();
+    }
+
+    /**
+     * Number of warm-up iterations.
+     */
+    private final int warmups;
+
+    /**
+     * Number of measured iterations.
+     */
+    private final int iterations;
+
+    /**
+     * Sink of the results of the workloads so that the JIT can not remove them.
+     */
+    private long blackhole;
+
+    /**
+     * Constructor.
+     * @param warmups
+     * @param iterations
+     */
+    public Bench(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Prints the header of the results.
+     */
+    public static void printHeader() {
+        System.out.println(String.format("%-48s %12s %14s %14s %16s", "Benchmark", "ms/op", "Mrays/s", "alloc MB/s", "alloc B/ray"));
+    }
+
+    /**
+     * Measures a workload and prints the result.
+     * @param name
+     * @param workload
+     */
+    public void measure(String name, Workload workload) {
+        for (int i = 0; i < warmups; i++)
+            blackhole += workload.run();
+        long rays = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            rays += workload.run();
+        long time = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        blackhole += rays;
+        double seconds = time / 1e9;
+        System.out.println(String.format("%-48s %12.3f %14.3f %14.1f %16.2f", name,
+                time / 1e6 / iterations,
+                rays / seconds / 1e6,
+                allocated / seconds / (1024 * 1024),
+                rays > 0 ? (double) allocated / rays : 0));
+    }
+
+    /**
+     * Returns the number of bytes allocated since their start by all the live threads.
+     * Returns 0 if the JVM can not measure it.
+     * @return
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled())
+            return 0;
+        long total = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(bean.getAllThreadIds()))
+            if (bytes > 0)
+                total += bytes;
+        return total;
+    }
+
+    /**
+     * Returns the sink of the results, to be printed at the end of a run.
+     * @return
+     */
+    public long getBlackhole() {
+        return blackhole;
+    }
+}
@@ -0,0 +1,301 @@
+package fr.algo3d.bench;
+
+import fr.algo3d.io.PngWriter;
+import fr.algo3d.io.TgaWriter;
+import fr.algo3d.model.Material;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.models.*;
+import fr.algo3d.model.render.Quantizer;
+import fr.algo3d.model.render.RayTreeEvaluator;
+import fr.algo3d.model.render.ShadingContext;
+import fr.algo3d.model.render.TileRenderer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the renderers, of the intersections and of findColor.
+ * Usage : java fr.algo3d.bench.RenderBenchmarks [render] [intersect] [findcolor] [scaling] [mesh] [instances] [animation] [output], all suites if none is given.
+ * The system properties bench.warmup, bench.iterations, bench.resolutions (like 320x180,640x360),
+ * bench.spheres (like 10,1000,100000), bench.triangles (like 1000,5000000),
+ * bench.instances (like 100,1000000) and bench.moving (like 1000,100000) change the default settings.
+ */
+public class RenderBenchmarks {
+
+    /**
+     * Number of rays of the intersection benchmarks.
+     */
+    private static final int RAY_COUNT = 1 << 16;
+
+    /**
+     * Harness running the benchmarks.
+     */
+    private final Bench bench = new Bench(Integer.getInteger("bench.warmup", 3), Integer.getInteger("bench.iterations", 5));
+
+    /**
+     * @param args names of the suites to run
+     */
+    public static void main(String[] args) {
+        List<String> suites = Arrays.asList(args.length > 0 ? args : new String[]{"render", "intersect", "findcolor", "scaling", "mesh", "instances", "animation", "output"});
+        RenderBenchmarks benchmarks = new RenderBenchmarks();
+        Bench.printHeader();
+        if (suites.contains("render"))
+            benchmarks.render();
+        if (suites.contains("intersect"))
+            benchmarks.intersect();
+        if (suites.contains("findcolor"))
+            benchmarks.findColor();
+        if (suites.contains("scaling"))
+            benchmarks.scaling();
+        if (suites.contains("mesh"))
+            benchmarks.mesh();
+        if (suites.contains("instances"))
+            benchmarks.instances();
+        if (suites.contains("animation"))
+            benchmarks.animation();
+        if (suites.contains("output"))
+            benchmarks.output();
+        System.out.println("blackhole " + benchmarks.bench.getBlackhole());
+    }
+
+    /**
+     * Measures the render methods of the scene at each resolution, the rays are the primary rays.
+     */
+    private void render() {
+        Scene scene = new Scene();
+        TileRenderer classic = new TileRenderer(scene);
+        classic.setAllocationFree(false);
+        TileRenderer packets = new TileRenderer(scene);
+        packets.setPacketSize(8);
+        TileRenderer rayTree = new TileRenderer(scene);
+        rayTree.setEvaluator(new RayTreeEvaluator(scene));
+        Scene tabled = new Scene();
+        tabled.setSpecularTables(true);
+        TileRenderer specularTables = new TileRenderer(tabled);
+        specularTables.setAllocationFree(true);
+        for (String resolution : System.getProperty("bench.resolutions", "320x180,640x360,1280x720").split(",")) {
+            String[] size = resolution.trim().split("x");
+            int w = Integer.parseInt(size[0]);
+            int h = Integer.parseInt(size[1]);
+            byte[] buffer = new byte[3*w*h];
+            byte[] image = new byte[3*w*h];
+            long rays = (long) w * h;
+            bench.measure("renderSequential " + resolution, () -> { scene.renderSequential(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelMap " + resolution, () -> { scene.renderParallelMap(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelForEach " + resolution, () -> { scene.renderParallelForEach(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelNestedLoops " + resolution, () -> { scene.renderParallelNestedLoops(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelTiles " + resolution, () -> { scene.renderParallelTiles(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelTiles classic " + resolution, () -> { classic.render(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelTiles packets 8x8 " + resolution, () -> { packets.render(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelTiles ray tree " + resolution, () -> { rayTree.render(w, h, buffer, image); return rays; });
+            bench.measure("renderParallelTiles specular tables " + resolution, () -> { specularTables.render(w, h, buffer, image); return rays; });
+        }
+    }
+
+    /**
+     * Measures the intersection of random rays with a sphere and a plane.
+     */
+    private void intersect() {
+        Random random = new Random(42);
+        Vec3f[] origins = new Vec3f[RAY_COUNT];
+        Vec3f[] directions = new Vec3f[RAY_COUNT];
+        for (int i = 0; i < RAY_COUNT; i++) {
+            origins[i] = new Vec3f(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, 0);
+            directions[i] = new Vec3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1).normalize();
+        }
+        Material material = new Material(Color.red,Color.white,32);
+        Model sphere = new Sphere(material, new Vec3f(0,0,-7.5f), 2);
+        Model plane = new Plane(material, new Vec3f(0,1,0), -2);
+        bench.measure("Sphere.getIntersection", () -> intersectAll(sphere, origins, directions));
+        bench.measure("Plane.getIntersection", () -> intersectAll(plane, origins, directions));
+    }
+
+    /**
+     * Intersects all the rays with a model.
+     * @param model
+     * @param origins
+     * @param directions
+     * @return number of rays
+     */
+    private long intersectAll(Model model, Vec3f[] origins, Vec3f[] directions) {
+        float sum = 0;
+        for (int i = 0; i < origins.length; i++)
+            sum += model.getIntersection(origins[i], directions[i]);
+        return origins.length + (sum == Float.MIN_VALUE ? 1 : 0);
+    }
+
+    /**
+     * Measures findColor on rays hitting the glass sphere with a limited number of bounces,
+     * with the classical path and the allocation free path.
+     */
+    private void findColor() {
+        Scene scene = new Scene();
+        Random random = new Random(42);
+        Vec3f[] directions = new Vec3f[RAY_COUNT / 16];
+        for (int i = 0; i < directions.length; i++)
+            directions[i] = new Vec3f(random.nextFloat() * 0.4f - 0.2f, random.nextFloat() * 0.4f - 0.2f, -1).normalize();
+        for (int bounces : new int[]{0, 1, 4, Scene.MAX_RAY_DEPTH}) {
+            int depth = Scene.MAX_RAY_DEPTH - bounces;
+            bench.measure("findColor bounces=" + bounces, () -> {
+                float sum = 0;
+                for (Vec3f v : directions)
+                    sum += scene.findColor(new Vec3f(), v, depth).getR();
+                return directions.length + (sum < 0 ? 1 : 0);
+            });
+            bench.measure("findColor allocation free bounces=" + bounces, () -> {
+                ShadingContext ctx = ShadingContext.current();
+                float sum = 0;
+                for (Vec3f v : directions)
+                    sum += scene.findColor(ctx.eye.reset(), v, depth, ctx, ctx.color).getR();
+                return directions.length + (sum < 0 ? 1 : 0);
+            });
+        }
+    }
+
+    /**
+     * Measures the tile renderer on generated scenes of growing number of spheres, stored as Sphere objects and in a SphereSet.
+     */
+    private void scaling() {
+        int w = 320;
+        int h = 180;
+        byte[] buffer = new byte[3*w*h];
+        byte[] image = new byte[3*w*h];
+        for (String count : System.getProperty("bench.spheres", "10,100,1000,10000,100000").split(",")) {
+            Scene scene = SceneGenerator.randomSpheres(Integer.parseInt(count.trim()), 42);
+            TileRenderer renderer = new TileRenderer(scene);
+            renderer.setAllocationFree(true);
+            bench.measure("scaling spheres=" + count.trim(), () -> { renderer.render(w, h, buffer, image); return (long) w * h; });
+            Scene offHeap;
+            try {
+                offHeap = SceneGenerator.randomSphereSet(Integer.parseInt(count.trim()), 42, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            TileRenderer offHeapRenderer = new TileRenderer(offHeap);
+            offHeapRenderer.setAllocationFree(true);
+            bench.measure("scaling spheres=" + count.trim() + " off-heap", () -> { offHeapRenderer.render(w, h, buffer, image); return (long) w * h; });
+        }
+    }
+
+    /**
+     * Measures the tile renderer on a tessellated sphere of growing number of triangles, with each storage of the mesh.
+     */
+    private void mesh() {
+        int w = 320;
+        int h = 180;
+        byte[] buffer = new byte[3*w*h];
+        byte[] image = new byte[3*w*h];
+        for (String count : System.getProperty("bench.triangles", "1000,100000,1000000").split(",")) {
+            int triangles = Integer.parseInt(count.trim());
+            for (int storage = 0; storage < 3; storage++) {
+                boolean quantized = storage == 2;
+                boolean compact = storage >= 1;
+                Scene scene = SceneGenerator.meshSphere(triangles, quantized, compact);
+                TileRenderer renderer = new TileRenderer(scene);
+                renderer.setAllocationFree(true);
+                String name = "mesh triangles=" + count.trim() + (quantized ? " quantized" : compact ? " compact" : "");
+                bench.measure(name, () -> { renderer.render(w, h, buffer, image); return (long) w * h; });
+            }
+        }
+    }
+
+    /**
+     * Measures the tile renderer on forests of growing number of instances of a single tree.
+     */
+    private void instances() {
+        int w = 320;
+        int h = 180;
+        byte[] buffer = new byte[3*w*h];
+        byte[] image = new byte[3*w*h];
+        for (String count : System.getProperty("bench.instances", "100,10000,1000000").split(",")) {
+            Scene scene = SceneGenerator.forest(Integer.parseInt(count.trim()), 42);
+            TileRenderer renderer = new TileRenderer(scene);
+            renderer.setAllocationFree(true);
+            bench.measure("instances trees=" + count.trim(), () -> { renderer.render(w, h, buffer, image); return (long) w * h; });
+        }
+    }
+
+    /**
+     * Measures the update of the hierarchy of generated scenes whose spheres all move at each frame, alone and followed by the render of the frame.
+     * The rays of the refit alone are the spheres moved.
+     */
+    private void animation() {
+        int w = 320;
+        int h = 180;
+        byte[] buffer = new byte[3*w*h];
+        byte[] image = new byte[3*w*h];
+        for (String count : System.getProperty("bench.moving", "1000,100000").split(",")) {
+            Scene scene = SceneGenerator.randomSpheres(Integer.parseInt(count.trim()), 42);
+            List<Sphere> spheres = new ArrayList<>();
+            for (Model m : scene.getModels())
+                if (m instanceof Sphere)
+                    spheres.add((Sphere) m);
+            Vec3f[] centers = new Vec3f[spheres.size()];
+            for (int i = 0; i < centers.length; i++)
+                centers[i] = new Vec3f(spheres.get(i).getOrigin());
+            int[] frame = new int[1];
+            Runnable move = () -> {
+                float t = 0.1f * frame[0]++;
+                for (int i = 0; i < centers.length; i++) {
+                    Vec3f c = centers[i];
+                    spheres.get(i).setOrigin(new Vec3f(c.x + 0.5f * (float) Math.sin(t + i), c.y + 0.5f * (float) Math.cos(t + 0.5f * i), c.z));
+                }
+                scene.refit();
+            };
+            TileRenderer renderer = new TileRenderer(scene);
+            renderer.setAllocationFree(true);
+            bench.measure("animation refit spheres=" + count.trim(), () -> { move.run(); return centers.length; });
+            bench.measure("animation frame spheres=" + count.trim(), () -> { move.run(); renderer.render(w, h, buffer, image); return (long) w * h; });
+        }
+    }
+
+    /**
+     * Measures the image writers at each resolution, the rays are the pixels written.
+     */
+    private void output() {
+        Scene scene = new Scene();
+        PngWriter png = new PngWriter();
+        for (String resolution : System.getProperty("bench.resolutions", "320x180,640x360,1280x720").split(",")) {
+            String[] size = resolution.trim().split("x");
+            int w = Integer.parseInt(size[0]);
+            int h = Integer.parseInt(size[1]);
+            byte[] buffer = new byte[3*w*h];
+            byte[] image = new byte[3*w*h];
+            scene.renderParallelTiles(w, h, buffer, image);
+            long pixels = (long) w * h;
+            try {
+                Path file = Files.createTempFile("bench", ".img");
+                try {
+                    bench.measure("TgaWriter " + resolution, () -> { write(() -> TgaWriter.write(file, buffer, w, h)); return pixels; });
+                    bench.measure("TgaWriter RLE " + resolution, () -> { write(() -> TgaWriter.writeRLE(file, buffer, w, h)); return pixels; });
+                    bench.measure("PngWriter " + resolution, () -> { write(() -> png.write(file, buffer, w, h, Quantizer.Layout.BGR)); return pixels; });
+                } finally {
+                    Files.delete(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writer of a file.
+     */
+    private interface FileWrite {
+        void run() throws IOException;
+    }
+
+    private static void write(FileWrite write) {
+        try {
+            write.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package fr.algo3d.bench;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.lights.Light;
+import fr.algo3d.model.models.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates scenes procedurally for the benchmarks.
+ */
+public class SceneGenerator {
+
+    /**
+     * Creates a scene with a floor and count random spheres in front of the point of view.
+     * The spheres are spread in a box whose volume grows with their number, so the density stays the same.
+     * One sphere out of 8 is reflective and one out of 16 is transparent.
+     * @param count number of spheres
+     * @param seed seed of the random generator
+     * @return
+     */
+    public static Scene randomSpheres(int count, long seed) {
+        Random random = new Random(seed);
+        Material[] materials = {
+                new Material(Color.red,Color.white,32),
+                new Material(Color.yellow,Color.white,32),
+                new Material(Color.cyan,Color.white,32),
+                new Material(Color.magenta,Color.white,32),
+                new Material(Color.white,Color.white,100,0.f,1.f,1),
+                new Material(Color.orange,Color.white,100,1.f,1.f,1.4f),
+        };
+        List<Model> models = new ArrayList<>();
+        models.add(new Plane(new Material(Color.green,Color.white,32,0,1.f,1),new Vec3f(0,1,0),-2));
+        float side = (float) Math.cbrt(count) * 3;
+        for (int i = 0; i < count; i++) {
+            Vec3f center = new Vec3f((random.nextFloat() - 0.5f) * side,
+                    (random.nextFloat() - 0.5f) * 2,
+                    -5 - random.nextFloat() * side);
+            int m = random.nextInt(16);
+            Material material = m == 0 ? materials[5] : m < 2 ? materials[4] : materials[m % 4];
+            models.add(new Sphere(material, center, 0.2f + random.nextFloat() * 0.8f));
+        }
+        List<Light> lights = new ArrayList<>();
+        lights.add(new Light(new Vec3f(-1,10,0), Color.lightgray,Color.white));
+        return new Scene(Color.darkgray, models, lights);
+    }
+
+    /**
+     * Creates the scene of randomSpheres, with the spheres stored outside of the heap in a SphereSet.
+     * @param count number of spheres
+     * @param seed seed of the random generator
+     * @param path file where the set is written and mapped, null to keep it in direct buffers
+     * @return
+     * @throws IOException if the file can not be written
+     */
+    public static Scene randomSphereSet(int count, long seed, Path path) throws IOException {
+        Random random = new Random(seed);
+        SphereSet.Builder builder = new SphereSet.Builder(
+                new Material(Color.red,Color.white,32),
+                new Material(Color.yellow,Color.white,32),
+                new Material(Color.cyan,Color.white,32),
+                new Material(Color.magenta,Color.white,32),
+                new Material(Color.white,Color.white,100,0.f,1.f,1),
+                new Material(Color.orange,Color.white,100,1.f,1.f,1.4f));
+        float side = (float) Math.cbrt(count) * 3;
+        Vec3f center = new Vec3f();
+        for (int i = 0; i < count; i++) {
+            center.set((random.nextFloat() - 0.5f) * side,
+                    (random.nextFloat() - 0.5f) * 2,
+                    -5 - random.nextFloat() * side);
+            int m = random.nextInt(16);
+            builder.add(center, 0.2f + random.nextFloat() * 0.8f, m == 0 ? 5 : m < 2 ? 4 : m % 4);
+        }
+        List<Model> models = new ArrayList<>();
+        models.add(new Plane(new Material(Color.green,Color.white,32,0,1.f,1),new Vec3f(0,1,0),-2));
+        models.add(path == null ? builder.build() : builder.build(path));
+        List<Light> lights = new ArrayList<>();
+        lights.add(new Light(new Vec3f(-1,10,0), Color.lightgray,Color.white));
+        return new Scene(Color.darkgray, models, lights);
+    }
+
+    /**
+     * Creates a scene with a floor and a sphere tessellated in about the given number of triangles, in front of the point of view.
+     * @param triangles number of triangles wanted
+     * @param quantized true to quantize the coordinates of the mesh
+     * @param compact true to store the indices of the mesh on 16 bits if possible
+     * @return
+     */
+    public static Scene meshSphere(int triangles, boolean quantized, boolean compact) {
+        List<Model> models = new ArrayList<>();
+        models.add(new Plane(new Material(Color.green,Color.white,32,0,1.f,1),new Vec3f(0,1,0),-2));
+        models.add(tessellatedSphere(new Material(Color.red,Color.white,32), new Vec3f(0,0,-6), 2, triangles, quantized, compact));
+        List<Light> lights = new ArrayList<>();
+        lights.add(new Light(new Vec3f(-1,10,0), Color.lightgray,Color.white));
+        return new Scene(Color.darkgray, models, lights);
+    }
+
+    /**
+     * Creates a triangle mesh of a sphere made of stacks and slices, with about the given number of triangles.
+     * @param material
+     * @param center
+     * @param radius
+     * @param triangles number of triangles wanted
+     * @param quantized true to quantize the coordinates
+     * @param compact true to store the indices on 16 bits if possible
+     * @return
+     */
+    public static TriangleMesh tessellatedSphere(Material material, Vec3f center, float radius, int triangles,
+                                                 boolean quantized, boolean compact) {
+        int stacks = Math.max(2, (int) Math.sqrt(triangles / 4.));
+        int slices = Math.max(3, triangles / (2 * stacks));
+        float[] positions = new float[3 * (stacks + 1) * (slices + 1)];
+        for (int i = 0; i <= stacks; i++) {
+            double theta = Math.PI * i / stacks;
+            for (int j = 0; j <= slices; j++) {
+                double phi = 2 * Math.PI * j / slices;
+                int o = 3 * (i * (slices + 1) + j);
+                positions[o] = center.x + radius * (float) (Math.sin(theta) * Math.cos(phi));
+                positions[o+1] = center.y + radius * (float) Math.cos(theta);
+                positions[o+2] = center.z + radius * (float) (Math.sin(theta) * Math.sin(phi));
+            }
+        }
+        int[] indices = new int[6 * stacks * slices];
+        int n = 0;
+        for (int i = 0; i < stacks; i++) {
+            for (int j = 0; j < slices; j++) {
+                int a = i * (slices + 1) + j;
+                int b = a + slices + 1;
+                indices[n++] = a; indices[n++] = b; indices[n++] = a + 1;
+                indices[n++] = a + 1; indices[n++] = b; indices[n++] = b + 1;
+            }
+        }
+        return new TriangleMesh(material, positions, indices, quantized, compact);
+    }
+
+    /**
+     * Creates a scene with a floor and a forest of count instances of a single tree, in front of the point of view.
+     * The tree is a group of a tessellated crown and of trunk spheres, shared by all the instances,
+     * each one rotated around the vertical axis, scaled and translated at random.
+     * @param count number of trees
+     * @param seed seed of the random generator
+     * @return
+     */
+    public static Scene forest(int count, long seed) {
+        Random random = new Random(seed);
+        Material bark = new Material(Color.orange,Color.white,8);
+        List<Model> parts = new ArrayList<>();
+        parts.add(tessellatedSphere(new Material(Color.green,Color.white,16), new Vec3f(0,1.6f,0), 0.8f, 512, false, true));
+        for (int i = 0; i < 3; i++)
+            parts.add(new Sphere(bark, new Vec3f(0,0.3f*i,0), 0.2f));
+        ModelGroup tree = new ModelGroup(parts);
+        List<Model> models = new ArrayList<>();
+        models.add(new Plane(new Material(Color.gray,Color.white,32),new Vec3f(0,1,0),-2));
+        float side = (float) Math.sqrt(count) * 2;
+        for (int i = 0; i < count; i++) {
+            float scale = 0.7f + 0.6f * random.nextFloat();
+            float[] matrix = Instance.rotationY((float) (2 * Math.PI * random.nextFloat()));
+            for (int k = 0; k < 9; k++)
+                matrix[k] *= scale;
+            Vec3f position = new Vec3f((random.nextFloat() - 0.5f) * side, -2 + 0.2f * scale, -4 - random.nextFloat() * side);
+            models.add(new Instance(tree, matrix, position));
+        }
+        List<Light> lights = new ArrayList<>();
+        lights.add(new Light(new Vec3f(-1,10,0), Color.lightgray,Color.white));
+        return new Scene(Color.darkgray, models, lights);
+    }
+}
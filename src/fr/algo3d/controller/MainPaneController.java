@@ -1,14 +1,67 @@
 package fr.algo3d.controller;
 
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.InteractiveRenderer;
+import fr.algo3d.model.render.Quantizer;
+import fr.algo3d.view.FrameImage;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
+import javafx.util.Duration;
+
+import java.util.function.BiConsumer;
 
 /**
  * Controller for the main pane.
+ * Once started, the camera is moved with the keyboard and the mouse, each move starting a new frame :
+ * Z/W, S, Q/A, D move forward, backward, left and right, Page Up and Page Down move up and down, the arrows turn the camera,
+ * dragging the mouse turns the camera, the wheel zooms, Home goes back to the camera of the scene, Shift moves faster.
+ * The frames are rendered in two frame buffers in turn, the one shown being never written by another frame,
+ * and a frame is shown only once its first pass is done, so the image shown never mixes two frames.
+ * The image shown is refreshed while its frame is refined, until the last pass of the current frame.
  */
 public class MainPaneController {
+
+    /**
+     * Greatest number of images shown per second while a frame is refined.
+     */
+    public static final int MAX_REFRESH_RATE = 20;
+
+    /**
+     * Distance moved by a key press.
+     */
+    private static final float MOVE_STEP = 0.25f;
+
+    /**
+     * Angle turned by a key press, in degrees.
+     */
+    private static final float TURN_STEP = 2;
+
+    /**
+     * Angle turned by a pixel of mouse drag, in degrees.
+     */
+    private static final float MOUSE_SENSITIVITY = 0.2f;
+
+    /**
+     * Zoom factor of a notch of the mouse wheel.
+     */
+    private static final float ZOOM_STEP = 1.1f;
+
+    /**
+     * Factor of the moves while Shift is down.
+     */
+    private static final float FAST_FACTOR = 5;
+
     /**
      * Main pane.
      */
@@ -21,6 +74,50 @@ public class MainPaneController {
     @FXML
     private ImageView imageView;
 
+    private Scene scene;
+
+    private InteractiveRenderer renderer;
+
+    /**
+     * Point of view of the last frame asked.
+     */
+    private Camera camera;
+
+    /**
+     * The two frame buffers the frames are rendered in, in turn.
+     */
+    private final FrameBuffer[] frameBuffers = new FrameBuffer[2];
+
+    /**
+     * Images showing the frame buffers.
+     */
+    private final FrameImage[] images = new FrameImage[2];
+
+    /**
+     * Index of the frame buffer shown, -1 before the first frame.
+     */
+    private int shown = -1;
+
+    /**
+     * Generation of the frame shown.
+     */
+    private int shownGeneration;
+
+    /**
+     * Refresh of the image shown, running from the start of a frame to its last pass.
+     */
+    private Timeline refresh;
+
+    /**
+     * Receiver of the frames fully rendered with their camera, called by a thread of the renderer, or null.
+     */
+    private BiConsumer<Camera, FrameBuffer> frameDone;
+
+    /**
+     * Position of the mouse at the last drag event.
+     */
+    private double mouseX, mouseY;
+
     /**
      * Binds the ImageView and the main pane heights and widths.
      */
@@ -38,4 +135,132 @@ public class MainPaneController {
         imageView.setImage(image);
     }
 
+    /**
+     * Renders a scene seen by its camera and lets the user move the camera.
+     * @param scene
+     * @param width width of the images
+     * @param height height of the images
+     * @param frameDone receiver of the frames fully rendered with their camera, called by a thread of the renderer
+     *                  before the frame buffer is written again, or null
+     */
+    public void start(Scene scene, int width, int height, BiConsumer<Camera, FrameBuffer> frameDone) {
+        this.scene = scene;
+        this.renderer = new InteractiveRenderer(scene);
+        this.camera = scene.getCamera();
+        this.frameDone = frameDone;
+        Quantizer quantizer = new Quantizer();
+        for (int i = 0; i < 2; i++) {
+            frameBuffers[i] = new FrameBuffer(width, height);
+            images[i] = new FrameImage(frameBuffers[i], quantizer);
+        }
+        refresh = new Timeline(new KeyFrame(Duration.millis(1000.0 / MAX_REFRESH_RATE), e -> refresh()));
+        refresh.setCycleCount(Animation.INDEFINITE);
+        mainPane.setFocusTraversable(true);
+        mainPane.setOnKeyPressed(this::keyPressed);
+        mainPane.setOnMousePressed(this::mousePressed);
+        mainPane.setOnMouseDragged(this::mouseDragged);
+        mainPane.setOnScroll(this::scroll);
+        mainPane.requestFocus();
+        renderFrame();
+    }
+
+    /**
+     * Stops rendering.
+     */
+    public void stop() {
+        if (renderer != null)
+            renderer.cancel();
+        if (refresh != null)
+            refresh.stop();
+    }
+
+    /**
+     * Starts rendering a frame seen by the current camera, in the frame buffer not shown, and refreshing the image shown.
+     */
+    private void renderFrame() {
+        int target = shown == 0 ? 1 : 0;
+        Camera frameCamera = camera;
+        renderer.render(frameCamera, frameBuffers[target], images[target].getDirtyTiles(), (generation, pass, step) -> {
+            if (step == 1 && frameDone != null && renderer.isCurrent(generation))
+                frameDone.accept(frameCamera, frameBuffers[target]);
+            Platform.runLater(() -> show(generation, target, step));
+        });
+        refresh.play();
+    }
+
+    /**
+     * Shows a frame buffer after a pass of its frame, unless a newer frame was asked since.
+     * The refresh stops after the last pass.
+     * @param generation generation of the frame
+     * @param target index of its frame buffer
+     * @param step step of the pass, 1 for the last one
+     */
+    private void show(int generation, int target, int step) {
+        if (!renderer.isCurrent(generation))
+            return;
+        images[target].update();
+        if (shown != target) {
+            shown = target;
+            setBackground(images[target].getImage());
+        }
+        shownGeneration = generation;
+        if (step == 1)
+            refresh.stop();
+    }
+
+    /**
+     * Copies the pixels refined since the last refresh into the image shown, if its frame is still current.
+     */
+    private void refresh() {
+        if (shown >= 0 && renderer.isCurrent(shownGeneration))
+            images[shown].update();
+    }
+
+    /**
+     * Moves the camera and renders the new frame.
+     * @param newCamera
+     */
+    private void setCamera(Camera newCamera) {
+        camera = newCamera;
+        renderFrame();
+    }
+
+    private void keyPressed(KeyEvent event) {
+        float move = event.isShiftDown() ? FAST_FACTOR * MOVE_STEP : MOVE_STEP;
+        switch (event.getCode()) {
+            case Z: case W: setCamera(camera.moved(move, 0, 0)); break;
+            case S: setCamera(camera.moved(-move, 0, 0)); break;
+            case Q: case A: setCamera(camera.moved(0, -move, 0)); break;
+            case D: setCamera(camera.moved(0, move, 0)); break;
+            case PAGE_UP: setCamera(camera.moved(0, 0, move)); break;
+            case PAGE_DOWN: setCamera(camera.moved(0, 0, -move)); break;
+            case LEFT: setCamera(camera.turned(TURN_STEP, 0)); break;
+            case RIGHT: setCamera(camera.turned(-TURN_STEP, 0)); break;
+            case UP: setCamera(camera.turned(0, TURN_STEP)); break;
+            case DOWN: setCamera(camera.turned(0, -TURN_STEP)); break;
+            case HOME: setCamera(scene.getCamera()); break;
+            default: return;
+        }
+        event.consume();
+    }
+
+    private void mousePressed(MouseEvent event) {
+        mouseX = event.getX();
+        mouseY = event.getY();
+        mainPane.requestFocus();
+    }
+
+    private void mouseDragged(MouseEvent event) {
+        double dx = event.getX() - mouseX;
+        double dy = event.getY() - mouseY;
+        mouseX = event.getX();
+        mouseY = event.getY();
+        setCamera(camera.turned((float) -dx * MOUSE_SENSITIVITY, (float) -dy * MOUSE_SENSITIVITY));
+    }
+
+    private void scroll(ScrollEvent event) {
+        if (event.getDeltaY() == 0)
+            return;
+        setCamera(camera.zoomed(event.getDeltaY() > 0 ? ZOOM_STEP : 1 / ZOOM_STEP));
+    }
 }
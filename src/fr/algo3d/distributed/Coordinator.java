@@ -0,0 +1,538 @@
+package fr.algo3d.distributed;
+
+import fr.algo3d.io.TgaWriter;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Quantizer;
+import fr.algo3d.model.render.Region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders images on worker processes connected over TCP, on the same machine or on a farm.
+ * The workers connect to the coordinator whenever they want, they take part in the frame being rendered as soon as they are connected.
+ * The scene file is sent once to each worker, which keeps it for the next frames, then the tiles are given one at a time
+ * to the workers asking for work, so the fast workers render more tiles than the slow ones.
+ * <p>
+ * The tiles of a worker which dies, or does not answer within the timeout, are given again to the other workers.
+ * When no tile is left to give, the tiles rendered for more than STRAGGLER_FACTOR times the mean time of a tile are given
+ * to the idle workers as well, and the first copy rendered is kept : a slow worker does not delay the end of the frame.
+ * A worker which can not load the scene is disconnected and its tiles are rendered by the others :
+ * the frame fails only if no worker is left. The tiles received after the end of a frame are ignored.
+ */
+public class Coordinator implements Closeable {
+
+    /**
+     * Default port of the coordinator.
+     */
+    public static final int DEFAULT_PORT = 7878;
+
+    /**
+     * Default width and height of the tiles given to the workers, which split them again among their processors.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /**
+     * Default time in milliseconds after which a silent worker is considered dead, and a frame without worker fails.
+     */
+    public static final int DEFAULT_TIMEOUT = 60000;
+
+    /**
+     * Ratio between the time of a tile and the mean time of a tile above which the tile is given to another worker.
+     */
+    public static final float STRAGGLER_FACTOR = 3;
+
+    private final ServerSocket server;
+
+    private final int tileSize;
+
+    /**
+     * Time in milliseconds after which a silent worker is considered dead.
+     */
+    private final int timeout;
+
+    /**
+     * Lock of the state of the coordinator : the workers and the frame being rendered.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Workers connected.
+     */
+    private final List<Connection> workers = new ArrayList<>();
+
+    /**
+     * Frame being rendered, null between two frames.
+     */
+    private Frame frame;
+
+    private boolean closed;
+
+    /**
+     * Constructor with tiles of the default size and the default timeout.
+     * @param port port listened by the coordinator, 0 for any free port
+     * @throws IOException
+     */
+    public Coordinator(int port) throws IOException {
+        this(port, DEFAULT_TILE_SIZE, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     * Starts accepting the workers.
+     * @param port port listened by the coordinator, 0 for any free port
+     * @param tileSize width and height of the tiles given to the workers
+     * @param timeout time in milliseconds after which a silent worker is considered dead
+     * @throws IOException
+     */
+    public Coordinator(int port, int tileSize, int timeout) throws IOException {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive : " + tileSize);
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Timeout must be positive : " + timeout);
+        this.tileSize = tileSize;
+        this.timeout = timeout;
+        this.server = new ServerSocket(port);
+        Thread acceptor = new Thread(this::accept, "coordinator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port listened by the coordinator.
+     * @return
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of workers connected.
+     * @return
+     */
+    public int getWorkerCount() {
+        synchronized (lock) {
+            return workers.size();
+        }
+    }
+
+    /**
+     * Accepts the workers, each one served by its own thread.
+     */
+    private void accept() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (server.isClosed())
+                    return;
+                continue;
+            }
+            Connection connection = new Connection(socket);
+            Thread thread = new Thread(connection::run, "coordinator-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Renders an image described by a scene file on the workers.
+     * The meshes of the scene are loaded by each worker from its own mesh directory.
+     * @param sceneFile
+     * @param frameBuffer frame buffer receiving the image, which gives its size
+     * @throws IOException if the file can not be read, no worker is left after a worker could not load the scene,
+     * or no worker is connected during the timeout
+     * @throws InterruptedException
+     */
+    public void render(Path sceneFile, FrameBuffer frameBuffer) throws IOException, InterruptedException {
+        render(sceneFile, frameBuffer, 0);
+    }
+
+    /**
+     * Renders an image described by a scene file on the workers, anti-aliased by an AdaptiveSampler on each worker.
+     * The meshes of the scene are loaded by each worker from its own mesh directory.
+     * @param sceneFile
+     * @param frameBuffer frame buffer receiving the image, which gives its size
+     * @param samples greatest number of samples of a pixel, 0 to trace one ray per pixel
+     * @throws IOException if the file can not be read, no worker is left after a worker could not load the scene,
+     * or no worker is connected during the timeout
+     * @throws InterruptedException
+     */
+    public void render(Path sceneFile, FrameBuffer frameBuffer, int samples) throws IOException, InterruptedException {
+        if (samples < 0)
+            throw new IllegalArgumentException("Invalid number of samples : " + samples);
+        byte[] scene = Files.readAllBytes(sceneFile);
+        Frame f = new Frame(scene, frameBuffer, samples, tiles(frameBuffer.getWidth(), frameBuffer.getHeight()));
+        synchronized (lock) {
+            if (closed)
+                throw new IOException("Coordinator closed");
+            if (frame != null)
+                throw new IllegalStateException("A frame is already being rendered");
+            frame = f;
+            lock.notifyAll();
+            try {
+                long alone = System.currentTimeMillis();
+                while (f.remaining > 0) {
+                    if (closed)
+                        throw new IOException("Coordinator closed");
+                    long now = System.currentTimeMillis();
+                    if (!workers.isEmpty())
+                        alone = now;
+                    else if (f.failure != null)
+                        throw f.failure;
+                    else if (now - alone >= timeout)
+                        throw new IOException("No worker connected for " + timeout + " ms");
+                    lock.wait(Math.max(1, timeout - (now - alone)));
+                }
+            } finally {
+                frame = null;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the tiles of an image, row by row.
+     * @param w
+     * @param h
+     * @return
+     */
+    private Region[] tiles(int w, int h) {
+        List<Region> tiles = new ArrayList<>();
+        for (int y = 0; y < h; y += tileSize)
+            for (int x = 0; x < w; x += tileSize)
+                tiles.add(new Region(x, y, Math.min(tileSize, w - x), Math.min(tileSize, h - y)));
+        return tiles.toArray(new Region[0]);
+    }
+
+    /**
+     * Says bye to the workers and stops accepting new ones.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        List<Connection> connections;
+        synchronized (lock) {
+            closed = true;
+            connections = new ArrayList<>(workers);
+            lock.notifyAll();
+        }
+        server.close();
+        for (Connection c : connections)
+            c.bye();
+    }
+
+    /**
+     * State of a frame being rendered, guarded by the lock of the coordinator.
+     */
+    private static class Frame {
+        private final byte[] scene;
+        private final byte[] hash;
+        private final FrameBuffer frameBuffer;
+
+        /**
+         * Greatest number of samples of a pixel, 0 for one ray per pixel.
+         */
+        private final int samples;
+
+        private final Region[] tiles;
+
+        /**
+         * Tiles not given to any worker yet, or given back by the dead workers.
+         */
+        private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+
+        private final boolean[] done;
+
+        /**
+         * Number of workers rendering each tile.
+         */
+        private final int[] copies;
+
+        /**
+         * Time the last copy of each tile was given, in nanoseconds.
+         */
+        private final long[] started;
+
+        private int remaining;
+
+        /**
+         * Total time of the tiles rendered in nanoseconds, for their mean.
+         */
+        private long renderTime;
+
+        private int rendered;
+
+        /**
+         * Last failure of a worker to load the scene, thrown if no worker is left.
+         */
+        private IOException failure;
+
+        Frame(byte[] scene, FrameBuffer frameBuffer, int samples, Region[] tiles) {
+            this.scene = scene;
+            this.hash = Protocol.hash(scene);
+            this.frameBuffer = frameBuffer;
+            this.samples = samples;
+            this.tiles = tiles;
+            this.done = new boolean[tiles.length];
+            this.copies = new int[tiles.length];
+            this.started = new long[tiles.length];
+            this.remaining = tiles.length;
+            for (int t = 0; t < tiles.length; t++)
+                pending.add(t);
+        }
+
+        /**
+         * Returns a straggling tile rendered by only one worker, -1 if there is none.
+         * @param now
+         * @return
+         */
+        private int straggler(long now) {
+            if (rendered == 0)
+                return -1;
+            long limit = (long) (STRAGGLER_FACTOR * renderTime / rendered);
+            for (int t = 0; t < tiles.length; t++)
+                if (!done[t] && copies[t] == 1 && now - started[t] > limit)
+                    return t;
+            return -1;
+        }
+
+        /**
+         * Copies a tile rendered into the frame buffer, unless another copy of the tile was rendered first.
+         * @param t
+         * @param data pixels of the tile
+         * @param time time taken by the worker in nanoseconds
+         */
+        private void complete(int t, float[] data, long time) {
+            if (done[t])
+                return;
+            done[t] = true;
+            remaining--;
+            renderTime += time;
+            rendered++;
+            Region r = tiles[t];
+            float[] target = frameBuffer.getData();
+            int w = frameBuffer.getWidth();
+            for (int row = 0; row < r.getHeight(); row++)
+                System.arraycopy(data, 3 * row * r.getWidth(), target, 3 * ((r.getY() + row) * w + r.getX()), 3 * r.getWidth());
+        }
+    }
+
+    /**
+     * Connection to a worker, served by its own thread.
+     */
+    private class Connection {
+        private final Socket socket;
+        private DataOutputStream out;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Greets the worker then gives it the tiles of the frames until it dies or the coordinator is closed.
+         */
+        private void run() {
+            Frame f = null;
+            int tile = -1;
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (in.readInt() != Protocol.MAGIC || in.readInt() != Protocol.VERSION)
+                    throw new IOException("Not a worker of this version");
+                synchronized (lock) {
+                    if (closed)
+                        return;
+                    workers.add(this);
+                    lock.notifyAll();
+                }
+                float[] data = new float[0];
+                ByteBuffer bytes = ByteBuffer.allocate(0);
+                while ((f = nextFrame(f)) != null) {
+                    start(f, in);
+                    while ((tile = nextTile(f)) >= 0) {
+                        Region r = f.tiles[tile];
+                        long start = System.nanoTime();
+                        synchronized (this) {
+                            out.writeByte(Protocol.TILE);
+                            out.writeInt(r.getX());
+                            out.writeInt(r.getY());
+                            out.writeInt(r.getWidth());
+                            out.writeInt(r.getHeight());
+                            out.flush();
+                        }
+                        int size = 3 * r.getWidth() * r.getHeight();
+                        if (data.length != size) {
+                            data = new float[size];
+                            bytes = ByteBuffer.allocate(4 * size);
+                        }
+                        in.readFully(bytes.array());
+                        bytes.asFloatBuffer().get(data);
+                        synchronized (lock) {
+                            f.copies[tile]--;
+                            // the frame buffer of a frame which is over belongs to its caller again
+                            if (frame == f)
+                                f.complete(tile, data, System.nanoTime() - start);
+                            tile = -1;
+                            lock.notifyAll();
+                        }
+                    }
+                }
+                bye();
+            } catch (IOException | InterruptedException e) {
+                // the worker is dead or can not load the scene : its tile is given to the others
+            } finally {
+                synchronized (lock) {
+                    workers.remove(this);
+                    if (tile >= 0) {
+                        f.copies[tile]--;
+                        if (!f.done[tile] && f.copies[tile] == 0)
+                            f.pending.addFirst(tile);
+                    }
+                    lock.notifyAll();
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+
+        /**
+         * Waits for a frame other than the previous one.
+         * @param previous
+         * @return the frame or null if the coordinator is closed
+         * @throws InterruptedException
+         */
+        private Frame nextFrame(Frame previous) throws InterruptedException {
+            synchronized (lock) {
+                while (!closed && (frame == null || frame == previous))
+                    lock.wait();
+                return closed ? null : frame;
+            }
+        }
+
+        /**
+         * Gives the frame to the worker, with the scene file if the worker does not have it.
+         * @param f
+         * @param in
+         * @throws IOException if the worker is dead or can not load the scene, the failure being kept by the frame
+         */
+        private void start(Frame f, DataInputStream in) throws IOException {
+            synchronized (this) {
+                out.writeByte(Protocol.JOB);
+                out.write(f.hash);
+                out.writeInt(f.frameBuffer.getWidth());
+                out.writeInt(f.frameBuffer.getHeight());
+                out.writeInt(f.samples);
+                out.flush();
+            }
+            int answer = in.readUnsignedByte();
+            if (answer == Protocol.NEED) {
+                synchronized (this) {
+                    out.writeInt(f.scene.length);
+                    out.write(f.scene);
+                    out.flush();
+                }
+                // loading a big scene takes longer than a tile
+                socket.setSoTimeout(0);
+                answer = in.readUnsignedByte();
+                socket.setSoTimeout(timeout);
+            }
+            if (answer == Protocol.ERROR) {
+                IOException failure = new IOException("The scene can not be loaded by a worker : " + in.readUTF());
+                synchronized (lock) {
+                    f.failure = failure;
+                    lock.notifyAll();
+                }
+                throw failure;
+            }
+            if (answer != Protocol.READY)
+                throw new IOException("Unexpected answer " + answer);
+        }
+
+        /**
+         * Takes a tile to render : a tile not given yet, else a straggling tile, waiting while all the tiles are being rendered.
+         * @param f
+         * @return the tile, or -1 if the frame is finished
+         * @throws InterruptedException
+         */
+        private int nextTile(Frame f) throws InterruptedException {
+            synchronized (lock) {
+                while (true) {
+                    if (closed || frame != f || f.remaining == 0)
+                        return -1;
+                    long now = System.nanoTime();
+                    Integer pending = f.pending.poll();
+                    int t = pending != null ? pending : f.straggler(now);
+                    if (t >= 0) {
+                        f.copies[t]++;
+                        f.started[t] = now;
+                        return t;
+                    }
+                    long mean = f.rendered == 0 ? 0 : f.renderTime / f.rendered;
+                    lock.wait(Math.max(1, mean / 1000000));
+                }
+            }
+        }
+
+        /**
+         * Tells the worker to stop.
+         */
+        private void bye() {
+            try {
+                synchronized (this) {
+                    if (out == null)
+                        return;
+                    out.writeByte(Protocol.BYE);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // already dead
+            }
+        }
+    }
+
+    /**
+     * Renders a scene file on the workers which connect, then writes the image in a TGA file.
+     * @param args scene file, width, height, TGA file, then optionally the port and the greatest number of samples of a pixel
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage : Coordinator scene width height image.tga [port [samples]]");
+            return;
+        }
+        int w = Integer.parseInt(args[1]);
+        int h = Integer.parseInt(args[2]);
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_PORT;
+        int samples = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        try (Coordinator coordinator = new Coordinator(port)) {
+            System.out.println("Waiting for workers on port " + coordinator.getPort());
+            FrameBuffer frameBuffer = new FrameBuffer(w, h);
+            long start = System.currentTimeMillis();
+            coordinator.render(Paths.get(args[0]), frameBuffer, samples);
+            System.out.println("Temps ecoule = " + (System.currentTimeMillis() - start) + " ms");
+            TgaWriter.write(Paths.get(args[3]), new Quantizer().quantize(frameBuffer, Quantizer.Layout.BGR), w, h);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("Image not rendered :" + e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fr.algo3d.distributed;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Messages exchanged between the coordinator and its workers over TCP, with DataInputStream and DataOutputStream.
+ * <pre>
+ * worker      : MAGIC VERSION                                    once, after connecting
+ * coordinator : JOB hash[32] width height samples                for each frame, samples being 0 for one ray per pixel
+ * worker      : READY, or NEED then coordinator : length bytes[length] and worker : READY or ERROR message
+ * coordinator : TILE x y width height                            for each tile
+ * worker      : 3 * width * height floats                        pixels of the tile, row by row from its bottom
+ * coordinator : BYE                                              the worker stops
+ * </pre>
+ * The scene is sent as the content of its scene file, only to the workers which do not have it yet.
+ */
+final class Protocol {
+
+    static final int MAGIC = 0x52545744;
+
+    static final int VERSION = 2;
+
+    static final int JOB = 1;
+    static final int TILE = 2;
+    static final int BYE = 3;
+
+    static final int READY = 1;
+    static final int NEED = 2;
+    static final int ERROR = 3;
+
+    /**
+     * Size of the hash of a scene.
+     */
+    static final int HASH_SIZE = 32;
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns the SHA-256 of the content of a scene file.
+     * @param scene
+     * @return
+     */
+    static byte[] hash(byte[] scene) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(scene);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
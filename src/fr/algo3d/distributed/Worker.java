@@ -0,0 +1,168 @@
+package fr.algo3d.distributed;
+
+import fr.algo3d.io.SceneLoader;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.render.AdaptiveSampler;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Region;
+import fr.algo3d.model.render.TileRenderer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Process rendering the tiles given by a coordinator.
+ * The scene files received are kept in the cache directory under their hash, with the cache of the big sets of spheres of SceneLoader,
+ * so a worker does not parse nor build again a scene it has already rendered.
+ * The tiles are rendered with a TileRenderer on all the processors of the worker, anti-aliased if the frame asks for it.
+ */
+public class Worker {
+
+    /**
+     * Directory of the scene files received and of the cache of the scene loader.
+     */
+    private final Path cacheDirectory;
+
+    /**
+     * Directory against which the paths of the meshes of the scenes are resolved.
+     */
+    private final Path meshDirectory;
+
+    /**
+     * Constructor.
+     * @param cacheDirectory directory of the scene files received and of the cache of the scene loader, created if needed
+     * @param meshDirectory directory against which the paths of the meshes of the scenes are resolved
+     */
+    public Worker(Path cacheDirectory, Path meshDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        this.meshDirectory = meshDirectory;
+    }
+
+    /**
+     * Connects to a coordinator and renders its tiles until it says bye or closes the connection.
+     * @param host
+     * @param port
+     * @throws IOException if the connection fails
+     */
+    public void run(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(Protocol.MAGIC);
+            out.writeInt(Protocol.VERSION);
+            out.flush();
+            byte[] sceneHash = null;
+            TileRenderer renderer = null;
+            int width = 0;
+            int height = 0;
+            AdaptiveSampler sampler = null;
+            FrameBuffer tile = null;
+            ByteBuffer bytes = null;
+            while (true) {
+                int command = in.read();
+                switch (command) {
+                    case -1:
+                    case Protocol.BYE:
+                        if (renderer != null)
+                            renderer.shutdown();
+                        return;
+                    case Protocol.JOB:
+                        byte[] hash = new byte[Protocol.HASH_SIZE];
+                        in.readFully(hash);
+                        width = in.readInt();
+                        height = in.readInt();
+                        int samples = in.readInt();
+                        if (samples < 0)
+                            throw new IOException("Invalid number of samples " + samples);
+                        if (samples == 0)
+                            sampler = null;
+                        else if (sampler == null || sampler.getMaxSamples() != samples)
+                            sampler = new AdaptiveSampler(samples);
+                        if (Arrays.equals(hash, sceneHash)) {
+                            out.writeByte(Protocol.READY);
+                            out.flush();
+                            break;
+                        }
+                        out.writeByte(Protocol.NEED);
+                        out.flush();
+                        byte[] scene = new byte[in.readInt()];
+                        in.readFully(scene);
+                        try {
+                            renderer = new TileRenderer(load(hash, scene));
+                            sceneHash = hash;
+                            out.writeByte(Protocol.READY);
+                        } catch (IOException | RuntimeException e) {
+                            renderer = null;
+                            sceneHash = null;
+                            out.writeByte(Protocol.ERROR);
+                            out.writeUTF(String.valueOf(e));
+                        }
+                        out.flush();
+                        break;
+                    case Protocol.TILE:
+                        Region region = new Region(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                        if (renderer == null)
+                            throw new IOException("Tile received without scene");
+                        renderer.setAntiAliasing(sampler);
+                        if (tile == null || tile.getWidth() != region.getWidth() || tile.getHeight() != region.getHeight()) {
+                            tile = new FrameBuffer(region.getWidth(), region.getHeight());
+                            bytes = ByteBuffer.allocate(4 * tile.getData().length);
+                        }
+                        renderer.renderCrop(width, height, region, tile);
+                        FloatBuffer floats = bytes.asFloatBuffer();
+                        floats.put(tile.getData());
+                        out.write(bytes.array());
+                        out.flush();
+                        break;
+                    default:
+                        throw new IOException("Unknown command " + command);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a scene received, keeping its file in the cache directory.
+     * @param hash
+     * @param scene content of the scene file
+     * @return
+     * @throws IOException
+     */
+    private Scene load(byte[] hash, byte[] scene) throws IOException {
+        if (!Arrays.equals(hash, Protocol.hash(scene)))
+            throw new IOException("Corrupted scene");
+        return new SceneLoader(cacheDirectory).load(scene, meshDirectory);
+    }
+
+    /**
+     * @param args host and port of the coordinator, then optionally the directory of the meshes of the scenes
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage : Worker host port [meshDirectory]");
+            return;
+        }
+        Path meshDirectory = Paths.get(args.length > 2 ? args[2] : ".").toAbsolutePath();
+        Worker worker = new Worker(Paths.get(System.getProperty("java.io.tmpdir"), "raytracing-cache"), meshDirectory);
+        try {
+            worker.run(args[0], Integer.parseInt(args[1]));
+        }
+        catch (EOFException e) {
+            System.err.println("Connection closed by the coordinator");
+        }
+        catch (IOException e) {
+            System.err.println("Worker stopped :" + e);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package fr.algo3d.io;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.models.TriangleMesh;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Loads the geometry of Wavefront OBJ files into triangle meshes.
+ * Only the vertices (v) and the faces (f) are read, faces with more than 3 vertices are split in a fan of triangles.
+ * The file is mapped in memory and cut at line boundaries in chunks parsed in parallel, without creating any string per line.
+ * Negative indices, relative to the vertices read before the face, are resolved once the vertices of the previous chunks are counted.
+ * Only the geometry is kept : the lines of the other kinds, like texture coordinates, normals, groups or materials, are skipped.
+ */
+public class ObjLoader {
+
+    /**
+     * Default size of a chunk parsed by one task.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    /**
+     * Greatest size of a mapped region of the file.
+     */
+    private static final long MAX_REGION = Integer.MAX_VALUE - 1024;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    /**
+     * Size of a chunk parsed by one task.
+     */
+    private final int chunkSize;
+
+    /**
+     * Constructor with chunks of the default size.
+     */
+    public ObjLoader() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param chunkSize size in bytes of a chunk parsed by one task
+     */
+    public ObjLoader(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size : " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Loads a mesh with coordinates and indices on 32 bits.
+     * @param path
+     * @param material
+     * @return
+     * @throws IOException
+     */
+    public TriangleMesh load(Path path, Material material) throws IOException {
+        return load(path, material, false, false);
+    }
+
+    /**
+     * Loads a mesh.
+     * @param path
+     * @param material
+     * @param quantized true to store the coordinates on 16 bits
+     * @param compact true to store the indices on 16 bits if the mesh is small enough
+     * @return
+     * @throws IOException if the file can not be read or is not a valid OBJ file
+     */
+    public TriangleMesh load(Path path, Material material, boolean quantized, boolean compact) throws IOException {
+        Chunk[] chunks = parse(path);
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (Chunk chunk : chunks) {
+            chunk.firstVertex = vertexCount;
+            chunk.firstIndex = indexCount;
+            vertexCount += chunk.vertexCount;
+            indexCount += chunk.indexCount;
+        }
+        if (indexCount == 0)
+            throw new IOException("No face in " + path);
+        float[] positions = new float[3 * vertexCount];
+        int[] indices = new int[indexCount];
+        IntStream.range(0, chunks.length).parallel().forEach(c -> chunks[c].copy(positions, indices));
+        for (int index : indices)
+            if (index < 0 || index >= vertexCount)
+                throw new IOException("Invalid vertex index in " + path + " : " + (index < 0 ? index : index + 1));
+        return new TriangleMesh(material, positions, indices, quantized, compact);
+    }
+
+    /**
+     * Parses the chunks of the file in parallel.
+     * @param path
+     * @return the chunks in the order of the file
+     * @throws IOException
+     */
+    private Chunk[] parse(Path path) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                // regions end at a line boundary, except the last one
+                long regionSize = Math.min(MAX_REGION, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                int end = (int) regionSize;
+                if (position + regionSize < size) {
+                    while (end > 0 && region.get(end - 1) != '\n')
+                        end--;
+                    if (end == 0)
+                        throw new IOException("Line too long in " + path);
+                }
+                int start = 0;
+                while (start < end) {
+                    int stop = Math.min(end, start + chunkSize);
+                    while (stop < end && region.get(stop - 1) != '\n')
+                        stop++;
+                    chunks.add(new Chunk(region, start, stop));
+                    start = stop;
+                }
+                position += end;
+            }
+        }
+        Chunk[] array = chunks.toArray(new Chunk[0]);
+        try {
+            Arrays.stream(array).parallel().forEach(Chunk::parse);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid OBJ file " + path + " : " + e.getMessage(), e);
+        }
+        return array;
+    }
+
+    /**
+     * Part of the file made of whole lines.
+     */
+    private static class Chunk {
+        private final MappedByteBuffer buffer;
+        private final int start;
+        private final int end;
+        private int position;
+
+        /**
+         * Coordinates of the vertices of the chunk.
+         */
+        float[] positions = new float[3 * 1024];
+        int vertexCount;
+
+        /**
+         * Indices of the triangles of the chunk, counted from 0.
+         * A negative index of the file is stored relatively to the first vertex of the chunk, and may be negative.
+         */
+        int[] indices = new int[3 * 1024];
+        int indexCount;
+
+        /**
+         * Positions in indices of the indices relative to the first vertex of the chunk.
+         */
+        int[] relative = new int[16];
+        int relativeCount;
+
+        int firstVertex;
+        int firstIndex;
+
+        Chunk(MappedByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse() {
+            int[] face = new int[16];
+            boolean[] faceRelative = new boolean[16];
+            position = start;
+            while (position < end) {
+                skipBlanks();
+                if (position >= end)
+                    break;
+                byte c = buffer.get(position);
+                byte next = position + 1 < end ? buffer.get(position + 1) : (byte) '\n';
+                if (c == 'v' && (next == ' ' || next == '\t')) {
+                    position++;
+                    if (3 * vertexCount + 3 > positions.length)
+                        positions = Arrays.copyOf(positions, 2 * positions.length);
+                    positions[3 * vertexCount] = parseFloat();
+                    positions[3 * vertexCount + 1] = parseFloat();
+                    positions[3 * vertexCount + 2] = parseFloat();
+                    vertexCount++;
+                } else if (c == 'f' && (next == ' ' || next == '\t')) {
+                    position++;
+                    int n = 0;
+                    while (true) {
+                        skipBlanks();
+                        if (position >= end || isEndOfLine(buffer.get(position)))
+                            break;
+                        if (n == face.length) {
+                            face = Arrays.copyOf(face, 2 * n);
+                            faceRelative = Arrays.copyOf(faceRelative, 2 * n);
+                        }
+                        faceRelative[n] = position < end && buffer.get(position) == '-';
+                        face[n++] = parseIndex();
+                    }
+                    if (n < 3)
+                        throw new IllegalArgumentException("face with " + n + " vertices");
+                    for (int k = 1; k < n - 1; k++) {
+                        addIndex(face[0], faceRelative[0]);
+                        addIndex(face[k], faceRelative[k]);
+                        addIndex(face[k + 1], faceRelative[k + 1]);
+                    }
+                }
+                skipLine();
+            }
+        }
+
+        private void addIndex(int index, boolean isRelative) {
+            if (indexCount == indices.length)
+                indices = Arrays.copyOf(indices, 2 * indices.length);
+            if (isRelative) {
+                if (relativeCount == relative.length)
+                    relative = Arrays.copyOf(relative, 2 * relative.length);
+                relative[relativeCount++] = indexCount;
+            }
+            indices[indexCount++] = index;
+        }
+
+        /**
+         * Copies the vertices and the indices of the chunk at their place in the arrays of the mesh.
+         * @param allPositions
+         * @param allIndices
+         */
+        void copy(float[] allPositions, int[] allIndices) {
+            System.arraycopy(positions, 0, allPositions, 3 * firstVertex, 3 * this.vertexCount);
+            for (int i = 0; i < relativeCount; i++)
+                indices[relative[i]] += firstVertex;
+            System.arraycopy(indices, 0, allIndices, firstIndex, indexCount);
+            positions = null;
+            indices = null;
+            relative = null;
+        }
+
+        private void skipBlanks() {
+            while (position < end) {
+                byte c = buffer.get(position);
+                if (c != ' ' && c != '\t' && c != '\r')
+                    break;
+                position++;
+            }
+        }
+
+        private void skipLine() {
+            while (position < end && buffer.get(position) != '\n')
+                position++;
+            position++;
+        }
+
+        private static boolean isEndOfLine(byte c) {
+            return c == '\n' || c == '\r' || c == '#';
+        }
+
+        /**
+         * Parses the index of the vertex of a face vertex like 5, 5/1, 5//2 or -3, ignoring the texture and normal indices.
+         * @return the index from 0, relative to the first vertex of the chunk for a negative index of the file
+         */
+        private int parseIndex() {
+            boolean negative = false;
+            if (position < end && buffer.get(position) == '-') {
+                negative = true;
+                position++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (position < end) {
+                byte c = buffer.get(position);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("index too big");
+                digits++;
+                position++;
+            }
+            if (digits == 0 || value == 0)
+                throw new IllegalArgumentException("invalid index");
+            // skips the texture and normal indices
+            while (position < end) {
+                byte c = buffer.get(position);
+                if (c == ' ' || c == '\t' || isEndOfLine(c))
+                    break;
+                position++;
+            }
+            return negative ? vertexCount - (int) value : (int) value - 1;
+        }
+
+        /**
+         * Parses a decimal number like 1, -0.5, .25 or 1.5e-3.
+         * @return
+         */
+        private float parseFloat() {
+            skipBlanks();
+            boolean negative = false;
+            if (position < end) {
+                byte c = buffer.get(position);
+                if (c == '-' || c == '+') {
+                    negative = c == '-';
+                    position++;
+                }
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean point = false;
+            while (position < end) {
+                byte c = buffer.get(position);
+                if (c >= '0' && c <= '9') {
+                    // the digits beyond the precision of a long only change the exponent
+                    if (mantissa < 100_000_000_000_000_000L) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if (point)
+                            exponent--;
+                    } else if (!point)
+                        exponent++;
+                    digits++;
+                } else if (c == '.' && !point)
+                    point = true;
+                else
+                    break;
+                position++;
+            }
+            if (digits == 0)
+                throw new IllegalArgumentException("invalid number");
+            if (position < end && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+                position++;
+                boolean negativeExponent = false;
+                if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                    negativeExponent = buffer.get(position) == '-';
+                    position++;
+                }
+                int e = 0;
+                while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+                    e = Math.min(e * 10 + (buffer.get(position) - '0'), 1000);
+                    position++;
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+            double value = mantissa;
+            if (exponent < 0)
+                value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+            else if (exponent > 0)
+                value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+            return (float) (negative ? -value : value);
+        }
+    }
+}
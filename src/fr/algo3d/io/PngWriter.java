@@ -0,0 +1,392 @@
+package fr.algo3d.io;
+
+import fr.algo3d.model.render.Quantizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 24 bits PNG files, compressed in parallel like pigz.
+ * The image is split in horizontal strips deflated independently on the common ForkJoinPool :
+ * each strip uses the last 32 KB of the previous one as preset dictionary and ends with a sync flush,
+ * so that the compressed strips form a single zlib stream once concatenated.
+ * The strips are written in order as soon as they are compressed, each in its own IDAT chunk.
+ * The buffers have 3 bytes per pixel and their first row is the bottom of the image, like the TGA files.
+ */
+public class PngWriter {
+
+    /**
+     * Default number of rows of a strip.
+     */
+    public static final int DEFAULT_STRIP_HEIGHT = 128;
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    /**
+     * Size of the window of deflate, the greatest useful dictionary.
+     */
+    private static final int WINDOW_SIZE = 32768;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    /**
+     * Compression level of deflate, from 0 to 9.
+     */
+    private final int level;
+
+    /**
+     * Number of rows of a strip.
+     */
+    private final int stripHeight;
+
+    /**
+     * Constructor with the default compression level and strips of the default height.
+     */
+    public PngWriter() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_STRIP_HEIGHT);
+    }
+
+    /**
+     * Constructor.
+     * @param level compression level of deflate, from 0 to 9, or -1 for the default level
+     * @param stripHeight number of rows of a strip, compressed by one task
+     */
+    public PngWriter(int level, int stripHeight) {
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("Invalid compression level : " + level);
+        if (stripHeight <= 0)
+            throw new IllegalArgumentException("Invalid strip height : " + stripHeight);
+        this.level = level;
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * Saves a PNG file.
+     * @param path final PNG file
+     * @param buffer buffer that contains the image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param layout order of the channels in the buffer
+     * @throws IOException
+     */
+    public void write(Path path, byte[] buffer, int width, int height, Quantizer.Layout layout) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, buffer, width, height, layout);
+        }
+    }
+
+    /**
+     * Writes a PNG image in a channel, like the body of an HTTP response. The channel is not closed.
+     * @param channel
+     * @param buffer buffer that contains the image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param layout order of the channels in the buffer
+     * @throws IOException
+     */
+    public void write(WritableByteChannel channel, byte[] buffer, int width, int height, Quantizer.Layout layout) throws IOException {
+        if (width <= 0 || height <= 0 || (3L * width + 1) * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid PNG size : " + width + "x" + height);
+        int strips = (height + stripHeight - 1) / stripHeight;
+        List<CompletableFuture<Strip>> tasks = new ArrayList<>(strips);
+        for (int s = 0; s < strips; s++) {
+            int first = s * stripHeight;
+            int end = Math.min(height, first + stripHeight);
+            boolean last = s == strips - 1;
+            tasks.add(CompletableFuture.supplyAsync(() -> compress(buffer, width, height, layout, first, end, last)));
+        }
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height);
+        ihdr.put((byte) 8); // Bit depth
+        ihdr.put((byte) 2); // Color type: RGB
+        ihdr.put((byte) 0); // Compression method: deflate
+        ihdr.put((byte) 0); // Filter method: adaptive
+        ihdr.put((byte) 0); // Interlace method: none
+        write(channel, ByteBuffer.wrap(SIGNATURE));
+        writeChunk(channel, "IHDR", ihdr.array(), 0, ihdr.capacity());
+        long adler = 1;
+        byte[] zlibHeader = zlibHeader();
+        for (int s = 0; s < strips; s++) {
+            Strip strip = tasks.get(s).join();
+            adler = combineAdler32(adler, strip.adler, strip.length);
+            ByteArrayOutputStream data = strip.data;
+            if (s == 0)
+                data = concat(zlibHeader, data);
+            if (s == strips - 1) {
+                data.write((int) (adler >>> 24));
+                data.write((int) (adler >>> 16));
+                data.write((int) (adler >>> 8));
+                data.write((int) adler);
+            }
+            writeChunk(channel, "IDAT", data.toByteArray(), 0, data.size());
+        }
+        writeChunk(channel, "IEND", new byte[0], 0, 0);
+    }
+
+    /**
+     * Compressed strip.
+     */
+    private static class Strip {
+        /**
+         * Raw deflate data.
+         */
+        final ByteArrayOutputStream data;
+
+        /**
+         * Adler-32 checksum of the uncompressed data.
+         */
+        final long adler;
+
+        /**
+         * Length of the uncompressed data.
+         */
+        final long length;
+
+        Strip(ByteArrayOutputStream data, long adler, long length) {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Filters and compresses the rows of the file between first (included) and end (excluded).
+     * The rows before the strip are filtered again to get the preset dictionary.
+     * @param buffer
+     * @param width
+     * @param height
+     * @param layout
+     * @param first first row of the strip, counted from the top of the image
+     * @param end
+     * @param last true for the last strip, which ends the deflate stream
+     * @return
+     */
+    private Strip compress(byte[] buffer, int width, int height, Quantizer.Layout layout, int first, int end, boolean last) {
+        int rowSize = 3 * width + 1;
+        int dictionaryRows = Math.min(first, (WINDOW_SIZE + rowSize - 1) / rowSize);
+        int start = first - dictionaryRows;
+        byte[] filtered = new byte[(end - start) * rowSize];
+        byte[] previous = new byte[3 * width];
+        byte[] current = new byte[3 * width];
+        if (start > 0)
+            readRow(buffer, width, height, layout, start - 1, previous);
+        for (int row = start; row < end; row++) {
+            readRow(buffer, width, height, layout, row, current);
+            filterRow(current, previous, filtered, (row - start) * rowSize);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        int offset = dictionaryRows * rowSize;
+        int length = filtered.length - offset;
+        Deflater deflater = new Deflater(level, true);
+        // like libpng, the filtered bytes are small values with short matches
+        deflater.setStrategy(Deflater.FILTERED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] chunk = new byte[16384];
+        try {
+            // applies the strategy before the dictionary, changing the parameters later would drop it
+            deflater.deflate(chunk, 0, chunk.length, Deflater.NO_FLUSH);
+            if (offset > 0) {
+                int size = Math.min(offset, WINDOW_SIZE);
+                deflater.setDictionary(filtered, offset - size, size);
+            }
+            deflater.setInput(filtered, offset, length);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished())
+                    out.write(chunk, 0, deflater.deflate(chunk));
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                    out.write(chunk, 0, n);
+                } while (n == chunk.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        Adler32 adler = new Adler32();
+        adler.update(filtered, offset, length);
+        return new Strip(out, adler.getValue(), length);
+    }
+
+    /**
+     * Copies a row of the image in the RGB order.
+     * @param buffer
+     * @param width
+     * @param height
+     * @param layout
+     * @param row row counted from the top of the image
+     * @param out
+     */
+    private static void readRow(byte[] buffer, int width, int height, Quantizer.Layout layout, int row, byte[] out) {
+        int in = 3 * (height - 1 - row) * width;
+        if (layout == Quantizer.Layout.RGB) {
+            System.arraycopy(buffer, in, out, 0, 3 * width);
+            return;
+        }
+        for (int i = 0; i < 3 * width; i += 3) {
+            out[i] = buffer[in + i + 2];
+            out[i + 1] = buffer[in + i + 1];
+            out[i + 2] = buffer[in + i];
+        }
+    }
+
+    /**
+     * Filters a row with the filter giving the smallest sum of absolute differences, the heuristic of libpng.
+     * The sums of the five filters are computed in a single pass over the row.
+     * @param current row to filter
+     * @param previous row above, filled with zeros for the first row of the image
+     * @param out
+     * @param offset index in out of the filter type, followed by the filtered row
+     */
+    private static void filterRow(byte[] current, byte[] previous, byte[] out, int offset) {
+        // the sums fit in an int : at most 128 per byte of a row of at most 3 * 65535 bytes
+        int none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+        for (int i = 0; i < current.length; i++) {
+            int x = current[i] & 0xFF;
+            int b = previous[i] & 0xFF;
+            int a = 0, c = 0;
+            if (i >= 3) {
+                a = current[i - 3] & 0xFF;
+                c = previous[i - 3] & 0xFF;
+            }
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >> 1)));
+            paeth += Math.abs((byte) (x - paethPredictor(a, b, c)));
+        }
+        int best = FILTER_NONE;
+        int bestSum = none;
+        if (sub < bestSum) { best = FILTER_SUB; bestSum = sub; }
+        if (up < bestSum) { best = FILTER_UP; bestSum = up; }
+        if (average < bestSum) { best = FILTER_AVERAGE; bestSum = average; }
+        if (paeth < bestSum) best = FILTER_PAETH;
+        out[offset++] = (byte) best;
+        switch (best) {
+            case FILTER_NONE:
+                System.arraycopy(current, 0, out, offset, current.length);
+                break;
+            case FILTER_SUB:
+                for (int i = 0; i < current.length; i++)
+                    out[offset + i] = (byte) (current[i] - (i >= 3 ? current[i - 3] : 0));
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < current.length; i++)
+                    out[offset + i] = (byte) (current[i] - previous[i]);
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < current.length; i++) {
+                    int a = i >= 3 ? current[i - 3] & 0xFF : 0;
+                    out[offset + i] = (byte) (current[i] - ((a + (previous[i] & 0xFF)) >> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < current.length; i++) {
+                    int a = i >= 3 ? current[i - 3] & 0xFF : 0;
+                    int c = i >= 3 ? previous[i - 3] & 0xFF : 0;
+                    out[offset + i] = (byte) (current[i] - paethPredictor(a, previous[i] & 0xFF, c));
+                }
+        }
+    }
+
+    /**
+     * Predictor of the Paeth filter : the neighbour closest to a + b - c.
+     * @param a left byte
+     * @param b byte above
+     * @param c byte above on the left
+     * @return
+     */
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    /**
+     * Builds the two bytes of the header of the zlib stream.
+     * @return
+     */
+    private byte[] zlibHeader() {
+        int cmf = 0x78; // deflate with a 32 KB window
+        int flevel = level == Deflater.DEFAULT_COMPRESSION || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Computes the Adler-32 checksum of two concatenated sequences from their checksums, like adler32_combine of zlib.
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 length of the second sequence
+     * @return
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static ByteArrayOutputStream concat(byte[] prefix, ByteArrayOutputStream data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(prefix.length + data.size() + 4);
+        out.write(prefix, 0, prefix.length);
+        out.write(data.toByteArray(), 0, data.size());
+        return out;
+    }
+
+    /**
+     * Writes a chunk, its length, type, data and CRC in a single call.
+     * @param channel
+     * @param type
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    private static void writeChunk(WritableByteChannel channel, String type, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(length + 12);
+        chunk.putInt(length);
+        for (int i = 0; i < 4; i++)
+            chunk.put((byte) type.charAt(i));
+        chunk.put(data, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array(), 4, length + 4);
+        chunk.putInt((int) crc.getValue());
+        chunk.flip();
+        write(channel, chunk);
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
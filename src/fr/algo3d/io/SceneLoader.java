@@ -0,0 +1,685 @@
+package fr.algo3d.io;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.Material;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.lights.Light;
+import fr.algo3d.model.models.Color;
+import fr.algo3d.model.models.Instance;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Plane;
+import fr.algo3d.model.models.Sphere;
+import fr.algo3d.model.models.SphereSet;
+import fr.algo3d.model.models.TriangleMesh;
+import fr.algo3d.model.models.Vec3f;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads scenes from text files, so that a scene can be changed without compiling the program again.
+ * <p>
+ * A file has one statement per line, made of words and numbers separated by spaces, the paths being between double quotes.
+ * The end of a line after a # is a comment. The colors are given by their red, green and blue components.
+ * <pre>
+ * ambient r g b
+ * material name color r g b [specular r g b] [shininess s] [transparency t] [reflection r] [refraction n]
+ * sphere material x y z radius
+ * plane material nx ny nz distance
+ * mesh material "file.obj" [translate x y z] [rotate-y degrees] [scale s]
+ * light x y z [diffuse r g b] [specular r g b]
+ * camera [position x y z] [target x y z] [up x y z] [fov degrees]
+ * </pre>
+ * A material must be declared before being used. The paths of the meshes are relative to the directory of the scene file,
+ * or to the mesh directory given, and must lead inside this directory, so a scene received can not read other files. The meshes of a same file and material are loaded once and shared by instances when they are transformed.
+ * <p>
+ * The file is read as a stream, line by line, and never held in memory. The spheres are kept apart from the other statements :
+ * when there are at least sphereSetThreshold spheres, they are stored in a SphereSet instead of Sphere objects.
+ * With a cache directory, the set and its hierarchy are written in a file named after the SHA-256 of the content of the scene file,
+ * so loading the same scene again maps this file instead of parsing the spheres and building the hierarchy.
+ */
+public class SceneLoader {
+
+    /**
+     * Default number of spheres from which they are stored in a SphereSet.
+     */
+    public static final int DEFAULT_SPHERE_SET_THRESHOLD = 4096;
+
+    /**
+     * Extension of the files of the cache.
+     */
+    public static final String CACHE_EXTENSION = ".spheres";
+
+    /**
+     * Extension of the scene files kept in the cache by load(byte[], Path).
+     */
+    public static final String SCENE_EXTENSION = ".scene";
+
+    /**
+     * Size of the buffer of bytes read from the file.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte[] SPHERE = "sphere".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Directory of the cached sets of spheres, null for no cache.
+     */
+    private final Path cacheDirectory;
+
+    /**
+     * Number of spheres from which they are stored in a SphereSet.
+     */
+    private final int sphereSetThreshold;
+
+    private final ObjLoader objLoader = new ObjLoader();
+
+    /**
+     * Constructor without cache.
+     */
+    public SceneLoader() {
+        this(null, DEFAULT_SPHERE_SET_THRESHOLD);
+    }
+
+    /**
+     * Constructor with a cache of the sets of spheres.
+     * @param cacheDirectory directory of the cache, created if needed
+     */
+    public SceneLoader(Path cacheDirectory) {
+        this(cacheDirectory, DEFAULT_SPHERE_SET_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     * @param cacheDirectory directory of the cache, created if needed, null for no cache
+     * @param sphereSetThreshold number of spheres from which they are stored in a SphereSet
+     */
+    public SceneLoader(Path cacheDirectory, int sphereSetThreshold) {
+        if (sphereSetThreshold <= 0)
+            throw new IllegalArgumentException("Invalid threshold : " + sphereSetThreshold);
+        this.cacheDirectory = cacheDirectory;
+        this.sphereSetThreshold = sphereSetThreshold;
+    }
+
+    /**
+     * Loads a scene.
+     * The first pass reads every statement but the spheres and computes the hash of the file,
+     * the second one, skipped when the set of spheres is in the cache, reads the spheres.
+     * @param path
+     * @return
+     * @throws IOException if a file can not be read or the scene file is not valid
+     */
+    public Scene load(Path path) throws IOException {
+        return load(path, path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Loads a scene whose meshes are in another directory, like a scene file received by a worker of a distributed rendering.
+     * @param path
+     * @param meshDirectory directory against which the paths of the meshes are resolved
+     * @return
+     * @throws IOException if a file can not be read or the scene file is not valid
+     */
+    public Scene load(Path path, Path meshDirectory) throws IOException {
+        return load(path, meshDirectory, null);
+    }
+
+    /**
+     * Loads a scene whose meshes are in another directory, giving the files of its meshes,
+     * so that a program keeping the scene can see when they change.
+     * @param path
+     * @param meshDirectory directory against which the paths of the meshes are resolved
+     * @param meshFiles receives the path of each mesh file and its modification time read before loading it, or null
+     * @return
+     * @throws IOException if a file can not be read or the scene file is not valid
+     */
+    public Scene load(Path path, Path meshDirectory, Map<Path, FileTime> meshFiles) throws IOException {
+        Description description = new Description(meshDirectory, meshFiles);
+        MessageDigest digest = sha256();
+        read(path, digest, false, description::statement);
+        if (description.sphereCount > 0 && description.materials.isEmpty())
+            throw new IOException("Spheres without material in " + path);
+        List<Model> models = new ArrayList<>(description.models);
+        if (description.sphereCount >= sphereSetThreshold)
+            models.add(sphereSet(path, description, hex(digest.digest())));
+        else if (description.sphereCount > 0)
+            read(path, null, true, line -> {
+                models.add(new Sphere(description.sphereMaterial(line), line.nextVec3f(), line.nextRadius()));
+                line.end();
+            });
+        if (models.isEmpty())
+            throw new IOException("No model in " + path);
+        return new Scene(description.ambient, models, description.lights, description.camera);
+    }
+
+    /**
+     * Loads a scene from the content of a scene file, received over the network for instance.
+     * With a cache directory, the content is kept there in a file named after its SHA-256, so the sets of spheres are cached too,
+     * else it is written in a temporary file deleted once the scene is loaded.
+     * @param content content of a scene file
+     * @param meshDirectory directory against which the paths of the meshes are resolved
+     * @return
+     * @throws IOException if a file can not be read or the scene is not valid
+     */
+    public Scene load(byte[] content, Path meshDirectory) throws IOException {
+        return load(content, meshDirectory, null);
+    }
+
+    /**
+     * Loads a scene from the content of a scene file, giving the files of its meshes,
+     * so that a program keeping the scene can see when they change.
+     * @param content content of a scene file
+     * @param meshDirectory directory against which the paths of the meshes are resolved
+     * @param meshFiles receives the path of each mesh file and its modification time read before loading it, or null
+     * @return
+     * @throws IOException if a file can not be read or the scene is not valid
+     */
+    public Scene load(byte[] content, Path meshDirectory, Map<Path, FileTime> meshFiles) throws IOException {
+        if (cacheDirectory == null) {
+            Path temporary = Files.createTempFile("scene", ".tmp");
+            try {
+                Files.write(temporary, content);
+                return load(temporary, meshDirectory, meshFiles);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        String key = hex(sha256().digest(content));
+        Files.createDirectories(cacheDirectory);
+        Path file = cacheDirectory.resolve(key + SCENE_EXTENSION);
+        if (!Files.isRegularFile(file)) {
+            Path temporary = Files.createTempFile(cacheDirectory, key, ".tmp");
+            try {
+                Files.write(temporary, content);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        return load(file, meshDirectory, meshFiles);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the set of the spheres of the scene, mapped from the cache if it is there.
+     * A file of the cache which can not be opened, written by another version for instance, is built again.
+     * @param path
+     * @param description
+     * @param key hash of the content of the scene file
+     * @return
+     * @throws IOException
+     */
+    private SphereSet sphereSet(Path path, Description description, String key) throws IOException {
+        Material[] materials = description.materials.toArray(new Material[0]);
+        Path cached = null;
+        if (cacheDirectory != null) {
+            cached = cacheDirectory.resolve(key + CACHE_EXTENSION);
+            if (Files.isRegularFile(cached)) {
+                try {
+                    return SphereSet.open(cached, materials);
+                } catch (IOException e) {
+                    // built again below
+                }
+            }
+        }
+        SphereSet.Builder builder = new SphereSet.Builder(materials);
+        read(path, null, true, line -> {
+            int material = description.sphereMaterialIndex(line);
+            builder.add(line.nextVec3f(), line.nextRadius(), material);
+            line.end();
+        });
+        if (cached == null)
+            return builder.build();
+        Files.createDirectories(cacheDirectory);
+        // written under another name then renamed, so that a file of the cache is always complete
+        Path temporary = Files.createTempFile(cacheDirectory, key, ".tmp");
+        try {
+            SphereSet set = builder.build(temporary);
+            Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return set;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Receives the lines of a file.
+     */
+    private interface LineHandler {
+        void line(Line line) throws IOException;
+    }
+
+    /**
+     * Reads a file line by line through a buffer, giving the statements to a handler.
+     * @param path
+     * @param digest digest updated with every byte of the file, or null
+     * @param spheres true to give only the spheres to the handler, false to give every statement
+     * @param handler
+     * @throws IOException
+     */
+    private static void read(Path path, MessageDigest digest, boolean spheres, LineHandler handler) throws IOException {
+        Line line = new Line(path);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            boolean end = false;
+            while (!end) {
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                int n = in.read(buffer, length, buffer.length - length);
+                int start = 0;
+                int from = length;
+                if (n < 0) {
+                    end = true;
+                    // the last line may have no end of line
+                    buffer = Arrays.copyOf(buffer, length + 1);
+                    buffer[length++] = '\n';
+                } else {
+                    if (digest != null)
+                        digest.update(buffer, length, n);
+                    length += n;
+                }
+                for (int i = from; i < length; i++) {
+                    if (buffer[i] != '\n')
+                        continue;
+                    line.set(buffer, start, i);
+                    if (!line.isEmpty() && (!spheres || line.isSphere()))
+                        handler.line(line);
+                    start = i + 1;
+                }
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                length -= start;
+            }
+        }
+    }
+
+    /**
+     * Statements of a file but the spheres, which are only counted.
+     */
+    private class Description {
+
+        /**
+         * Directory against which the paths of the meshes are resolved.
+         */
+        private final Path meshDirectory;
+
+        private Color ambient = Color.darkgray;
+
+        private final List<Material> materials = new ArrayList<>();
+
+        /**
+         * Index of each material in materials, by name.
+         */
+        private final Map<String, Integer> materialIndices = new HashMap<>();
+
+        /**
+         * Line of the declaration of each material.
+         */
+        private final List<Integer> declarationLines = new ArrayList<>();
+
+        private final List<Model> models = new ArrayList<>();
+
+        private final List<Light> lights = new ArrayList<>();
+
+        private Camera camera = new Camera();
+
+        /**
+         * Meshes already loaded, by path and material.
+         */
+        private final Map<String, TriangleMesh> meshes = new HashMap<>();
+
+        /**
+         * Receives the mesh files and their modification times, or null.
+         */
+        private final Map<Path, FileTime> meshFiles;
+
+        private int sphereCount;
+
+        private Description(Path meshDirectory, Map<Path, FileTime> meshFiles) {
+            this.meshDirectory = meshDirectory;
+            this.meshFiles = meshFiles;
+        }
+
+        private void statement(Line line) throws IOException {
+            if (line.isSphere()) {
+                sphereCount++;
+                return;
+            }
+            String keyword = line.next();
+            switch (keyword) {
+                case "ambient":
+                    ambient = line.nextColor();
+                    break;
+                case "material":
+                    declareMaterial(line);
+                    break;
+                case "plane":
+                    models.add(new Plane(material(line), line.nextVec3f(), line.nextFloat()));
+                    break;
+                case "mesh":
+                    mesh(line);
+                    break;
+                case "light":
+                    light(line);
+                    break;
+                case "camera":
+                    camera(line);
+                    break;
+                default:
+                    throw line.error("Unknown statement " + keyword);
+            }
+            line.end();
+        }
+
+        private void declareMaterial(Line line) throws IOException {
+            String name = line.next();
+            if (materialIndices.containsKey(name))
+                throw line.error("Material " + name + " already declared");
+            Color color = null;
+            Color specular = Color.white;
+            float shininess = 32, transparency = 0, reflection = 0, refraction = 1;
+            while (line.hasNext()) {
+                String key = line.next();
+                switch (key) {
+                    case "color": color = line.nextColor(); break;
+                    case "specular": specular = line.nextColor(); break;
+                    case "shininess": shininess = line.nextFloat(); break;
+                    case "transparency": transparency = line.nextFloat(); break;
+                    case "reflection": reflection = line.nextFloat(); break;
+                    case "refraction": refraction = line.nextFloat(); break;
+                    default: throw line.error("Unknown property of a material " + key);
+                }
+            }
+            if (color == null)
+                throw line.error("Material " + name + " without color");
+            if (refraction <= 0)
+                throw line.error("Invalid refraction index " + refraction);
+            materialIndices.put(name, materials.size());
+            materials.add(new Material(color, specular, shininess, transparency, reflection, refraction));
+            declarationLines.add(line.number);
+        }
+
+        /**
+         * Reads the name of a material and returns its index.
+         * @param line
+         * @return
+         * @throws IOException if the material is not declared before the line
+         */
+        private int materialIndex(Line line) throws IOException {
+            String name = line.next();
+            Integer index = materialIndices.get(name);
+            if (index == null || declarationLines.get(index) > line.number)
+                throw line.error("Unknown material " + name);
+            return index;
+        }
+
+        private Material material(Line line) throws IOException {
+            return materials.get(materialIndex(line));
+        }
+
+        private int sphereMaterialIndex(Line line) throws IOException {
+            line.next();
+            return materialIndex(line);
+        }
+
+        private Material sphereMaterial(Line line) throws IOException {
+            return materials.get(sphereMaterialIndex(line));
+        }
+
+        private void mesh(Line line) throws IOException {
+            String materialName = line.peek();
+            Material material = material(line);
+            String file = line.nextString();
+            Path directory = meshDirectory.toAbsolutePath().normalize();
+            Path meshPath = directory.resolve(file).normalize();
+            if (!meshPath.startsWith(directory))
+                throw line.error("Mesh outside the mesh directory : " + file);
+            String key = materialName + '\n' + meshPath;
+            TriangleMesh mesh = meshes.get(key);
+            if (mesh == null) {
+                // read before the file, so a change made while it is loaded is seen later
+                if (meshFiles != null)
+                    meshFiles.put(meshPath, Files.getLastModifiedTime(meshPath));
+                mesh = objLoader.load(meshPath, material);
+                meshes.put(key, mesh);
+            }
+            Vec3f translation = new Vec3f();
+            float[] matrix = {1,0,0, 0,1,0, 0,0,1};
+            boolean transformed = false;
+            while (line.hasNext()) {
+                String transform = line.next();
+                switch (transform) {
+                    case "translate":
+                        translation = line.nextVec3f();
+                        break;
+                    case "rotate-y":
+                        matrix = Instance.multiply(Instance.rotationY((float) Math.toRadians(line.nextFloat())), matrix);
+                        break;
+                    case "scale":
+                        float s = line.nextFloat();
+                        matrix = Instance.multiply(new float[]{s,0,0, 0,s,0, 0,0,s}, matrix);
+                        break;
+                    default:
+                        throw line.error("Unknown transform " + transform);
+                }
+                transformed = true;
+            }
+            try {
+                models.add(transformed ? new Instance(mesh, matrix, translation) : mesh);
+            } catch (IllegalArgumentException e) {
+                throw line.error(e.getMessage());
+            }
+        }
+
+        private void light(Line line) throws IOException {
+            Vec3f position = line.nextVec3f();
+            Color diffuse = Color.white;
+            Color specular = Color.white;
+            while (line.hasNext()) {
+                String key = line.next();
+                switch (key) {
+                    case "diffuse": diffuse = line.nextColor(); break;
+                    case "specular": specular = line.nextColor(); break;
+                    default: throw line.error("Unknown property of a light " + key);
+                }
+            }
+            lights.add(new Light(position, diffuse, specular));
+        }
+
+        private void camera(Line line) throws IOException {
+            Vec3f position = camera.getPosition();
+            Vec3f target = camera.getTarget();
+            Vec3f up = camera.getUp();
+            float fov = camera.getFov();
+            while (line.hasNext()) {
+                String key = line.next();
+                switch (key) {
+                    case "position": position = line.nextVec3f(); break;
+                    case "target": target = line.nextVec3f(); break;
+                    case "up": up = line.nextVec3f(); break;
+                    case "fov": fov = line.nextFloat(); break;
+                    default: throw line.error("Unknown property of the camera " + key);
+                }
+            }
+            try {
+                camera = new Camera(position, target, up, fov);
+            } catch (IllegalArgumentException e) {
+                throw line.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Current line of a file, cut in words on demand, without comment.
+     */
+    private static class Line {
+
+        private final Path path;
+
+        private byte[] buffer;
+
+        /**
+         * Position of the next word.
+         */
+        private int position;
+
+        /**
+         * End of the line, before its comment.
+         */
+        private int end;
+
+        /**
+         * Number of the line in the file, from 1.
+         */
+        private int number;
+
+        private Line(Path path) {
+            this.path = path;
+        }
+
+        private void set(byte[] buffer, int start, int end) {
+            this.buffer = buffer;
+            this.end = end;
+            number++;
+            for (int i = start; i < end; i++)
+                if (buffer[i] == '#') {
+                    this.end = i;
+                    break;
+                }
+            position = start;
+            skipSpaces();
+        }
+
+        private void skipSpaces() {
+            while (position < end && buffer[position] <= ' ')
+                position++;
+        }
+
+        private boolean isEmpty() {
+            return position == end;
+        }
+
+        /**
+         * Returns true if the line is a sphere, without cutting it in words.
+         * @return
+         */
+        private boolean isSphere() {
+            if (end - position <= SPHERE.length || buffer[position + SPHERE.length] > ' ')
+                return false;
+            for (int k = 0; k < SPHERE.length; k++)
+                if (buffer[position + k] != SPHERE[k])
+                    return false;
+            return true;
+        }
+
+        private boolean hasNext() {
+            return position < end;
+        }
+
+        private int wordEnd() throws IOException {
+            if (position == end)
+                throw error("Unexpected end of line");
+            int e = position;
+            while (e < end && buffer[e] > ' ')
+                e++;
+            return e;
+        }
+
+        private String peek() throws IOException {
+            return new String(buffer, position, wordEnd() - position, StandardCharsets.UTF_8);
+        }
+
+        private String next() throws IOException {
+            int e = wordEnd();
+            String word = new String(buffer, position, e - position, StandardCharsets.UTF_8);
+            position = e;
+            skipSpaces();
+            return word;
+        }
+
+        /**
+         * Returns the next string, between double quotes.
+         * @return
+         * @throws IOException
+         */
+        private String nextString() throws IOException {
+            if (position == end || buffer[position] != '"')
+                throw error("String between double quotes expected");
+            int e = position + 1;
+            while (e < end && buffer[e] != '"')
+                e++;
+            if (e == end)
+                throw error("Unterminated string");
+            String s = new String(buffer, position + 1, e - position - 1, StandardCharsets.UTF_8);
+            position = e + 1;
+            skipSpaces();
+            return s;
+        }
+
+        private float nextFloat() throws IOException {
+            String word = next();
+            try {
+                float f = Float.parseFloat(word);
+                if (Float.isNaN(f) || Float.isInfinite(f))
+                    throw error("Invalid number " + word);
+                return f;
+            } catch (NumberFormatException e) {
+                throw error("Number expected instead of " + word);
+            }
+        }
+
+        private float nextRadius() throws IOException {
+            float r = nextFloat();
+            if (r <= 0)
+                throw error("Invalid radius " + r);
+            return r;
+        }
+
+        private Vec3f nextVec3f() throws IOException {
+            return new Vec3f(nextFloat(), nextFloat(), nextFloat());
+        }
+
+        private Color nextColor() throws IOException {
+            return new Color(nextFloat(), nextFloat(), nextFloat());
+        }
+
+        /**
+         * Checks that the whole line was read.
+         * @throws IOException
+         */
+        private void end() throws IOException {
+            if (position != end)
+                throw error("Unexpected " + peek());
+        }
+
+        private IOException error(String message) {
+            return new IOException(path + ":" + number + " : " + message);
+        }
+    }
+}
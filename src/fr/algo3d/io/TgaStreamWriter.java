@@ -0,0 +1,172 @@
+package fr.algo3d.io;
+
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Quantizer;
+import fr.algo3d.model.render.TileRenderer;
+import fr.algo3d.model.render.TileSink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes an uncompressed TGA file while the image is rendered.
+ * The tiles of a same row are gathered in a band, written at its position in the file once all its tiles are done.
+ * The memory used is bounded by the bands being rendered and not by the size of the image.
+ * The tiles must be those of the whole image rendered with tiles of the size given to the writer :
+ * a tile of another size or position, for example from a renderer with other tiles or from a region, is rejected at once,
+ * like a tile received twice. Closing the writer fails if a band of the image was not written.
+ */
+public class TgaStreamWriter implements TileSink, Closeable {
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final Quantizer quantizer;
+
+    /**
+     * Number of rows of tiles of the image.
+     */
+    private final int bandCount;
+
+    /**
+     * Bands being rendered, by index of their row of tiles, guarded by the writer.
+     */
+    private final Map<Integer, Band> bands = new HashMap<>();
+
+    /**
+     * Bands already written in the file, guarded by the writer.
+     */
+    private final BitSet written = new BitSet();
+
+    /**
+     * Row of tiles, in the byte layout of the file.
+     */
+    private static class Band {
+        final byte[] data;
+        /**
+         * Tiles received, by column of tiles, guarded by the writer.
+         */
+        final boolean[] received;
+        int remaining;
+
+        Band(int size, int tiles) {
+            data = new byte[size];
+            received = new boolean[tiles];
+            remaining = tiles;
+        }
+    }
+
+    /**
+     * Creates the file and writes its header, with tiles of the default size of the renderer.
+     * @param path
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    public TgaStreamWriter(Path path, int width, int height) throws IOException {
+        this(path, width, height, TileRenderer.DEFAULT_TILE_SIZE, new Quantizer());
+    }
+
+    /**
+     * Creates the file and writes its header.
+     * @param path
+     * @param width
+     * @param height
+     * @param tileSize size of the tiles of the renderer
+     * @param quantizer conversion of the colors into bytes
+     * @throws IOException
+     */
+    public TgaStreamWriter(Path path, int width, int height, int tileSize, Quantizer quantizer) throws IOException {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Invalid tile size : " + tileSize);
+        ByteBuffer header = TgaWriter.header(width, height, false);
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.bandCount = (height + tileSize - 1) / tileSize;
+        this.quantizer = quantizer;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        write(header, 0);
+    }
+
+    /**
+     * Copies a tile in its band, and writes the band once all its tiles are done.
+     * @param col0
+     * @param row0
+     * @param tile
+     * @param tileWidth
+     * @param tileHeight
+     * @throws IllegalArgumentException if the tile is not a tile of the writer, or was already received
+     */
+    @Override
+    public void tileDone(int col0, int row0, FrameBuffer tile, int tileWidth, int tileHeight) {
+        if (col0 < 0 || col0 >= width || row0 < 0 || row0 >= height || col0 % tileSize != 0 || row0 % tileSize != 0
+                || tileWidth != Math.min(tileSize, width - col0) || tileHeight != Math.min(tileSize, height - row0))
+            throw new IllegalArgumentException("Tile " + tileWidth + "x" + tileHeight + " at (" + col0 + ", " + row0
+                    + ") is not a tile of " + tileSize + " pixels of the " + width + "x" + height + " image");
+        int bandIndex = row0 / tileSize;
+        int bandHeight = Math.min(tileSize, height - bandIndex * tileSize);
+        int tilesX = (width + tileSize - 1) / tileSize;
+        Band band;
+        synchronized (this) {
+            band = written.get(bandIndex) ? null : bands.computeIfAbsent(bandIndex, k -> new Band(3 * width * bandHeight, tilesX));
+            if (band == null || band.received[col0 / tileSize])
+                throw new IllegalArgumentException("Tile at (" + col0 + ", " + row0 + ") received twice");
+            band.received[col0 / tileSize] = true;
+        }
+        int offset = 3 * ((row0 - bandIndex * tileSize) * width + col0);
+        quantizer.quantizeRegion(tile, tileWidth, tileHeight, col0, row0, Quantizer.Layout.BGR, band.data, offset, 3 * width);
+        boolean complete;
+        synchronized (this) {
+            complete = --band.remaining == 0;
+        }
+        if (complete) {
+            try {
+                write(ByteBuffer.wrap(band.data), TgaWriter.HEADER_SIZE + 3L * width * bandIndex * tileSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // the band stays known until it is written, so a tile received again meanwhile is rejected
+            synchronized (this) {
+                bands.remove(bandIndex);
+                written.set(bandIndex);
+            }
+        }
+    }
+
+    /**
+     * Writes a buffer at a position of the file, from any thread.
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException if the file can not be closed or if some tiles were not received
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        int count;
+        synchronized (this) {
+            count = written.cardinality();
+        }
+        if (count != bandCount)
+            throw new IOException("Incomplete TGA image : " + (bandCount - count) + " of " + bandCount + " bands not written");
+    }
+}
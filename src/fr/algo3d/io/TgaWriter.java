@@ -0,0 +1,148 @@
+package fr.algo3d.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes 24 bits TGA files, uncompressed or compressed with run-length encoding.
+ * The buffers have 3 bytes per pixel ordered this way : Blue, Green, Red, and their first row is the bottom of the image.
+ * @author P. Meseure based on a Java Adaptation of a C code by B. Debouchages (M1, 2018-2019)
+ */
+public final class TgaWriter {
+
+    /**
+     * Size of the header of a TGA file in bytes.
+     */
+    public static final int HEADER_SIZE = 18;
+
+    /**
+     * Greatest width or height of a TGA image.
+     */
+    public static final int MAX_SIZE = 0xFFFF;
+
+    /**
+     * Greatest number of pixels of a packet of the run-length encoding.
+     */
+    private static final int MAX_PACKET = 128;
+
+    private TgaWriter() {
+    }
+
+    /**
+     * Builds the header of a TGA file, ready to be written.
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param rle true if the pixels are compressed with run-length encoding
+     * @return
+     */
+    public static ByteBuffer header(int width, int height, boolean rle) {
+        if (width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE)
+            throw new IllegalArgumentException("Invalid TGA size : " + width + "x" + height);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0); // Comment size, no comment
+        header.put((byte) 0); // Colormap type: No colormap
+        header.put((byte) (rle ? 10 : 2)); // Image type
+        header.putShort((short) 0); // Origin
+        header.putShort((short) 0); // Length
+        header.put((byte) 0); // Depth
+        header.putShort((short) 0); // X origin
+        header.putShort((short) 0); // Y origin
+        header.putShort((short) width); // Width of the image
+        header.putShort((short) height); // Height of the image
+        header.put((byte) 24); // Pixel size in bits (24bpp)
+        header.put((byte) 0); // Descriptor
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Saves an uncompressed TGA file, the header and the pixels are written in a single call.
+     * @param path final TGA file
+     * @param buffer buffer that contains the image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @throws IOException
+     */
+    public static void write(Path path, byte[] buffer, int width, int height) throws IOException {
+        write(path, header(width, height, false), ByteBuffer.wrap(buffer, 0, 3 * width * height));
+    }
+
+    /**
+     * Saves a TGA file compressed with run-length encoding.
+     * The packets do not cross the end of the rows, as recommended by the format.
+     * @param path final TGA file
+     * @param buffer buffer that contains the image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @throws IOException
+     */
+    public static void writeRLE(Path path, byte[] buffer, int width, int height) throws IOException {
+        ByteBuffer header = header(width, height, true);
+        // worst case : one packet header every MAX_PACKET pixels
+        byte[] out = new byte[3 * width * height + height * ((width + MAX_PACKET - 1) / MAX_PACKET)];
+        int length = 0;
+        for (int row = 0; row < height; row++)
+            length = encodeRow(buffer, 3 * row * width, width, out, length);
+        write(path, header, ByteBuffer.wrap(out, 0, length));
+    }
+
+    /**
+     * Encodes a row of pixels with run-length encoding.
+     * Runs of at least 2 identical pixels are written in run-length packets, the others in raw packets.
+     * @param buffer
+     * @param in index in buffer of the first byte of the row
+     * @param width number of pixels of the row
+     * @param out
+     * @param length index in out of the next byte
+     * @return the new index in out of the next byte
+     */
+    private static int encodeRow(byte[] buffer, int in, int width, byte[] out, int length) {
+        int x = 0;
+        while (x < width) {
+            int run = 1;
+            while (x + run < width && run < MAX_PACKET && samePixel(buffer, in + 3 * x, in + 3 * (x + run)))
+                run++;
+            if (run > 1) {
+                out[length++] = (byte) (0x80 | (run - 1));
+                System.arraycopy(buffer, in + 3 * x, out, length, 3);
+                length += 3;
+                x += run;
+                continue;
+            }
+            // raw packet until the beginning of the next run
+            int raw = 1;
+            while (x + raw < width && raw < MAX_PACKET
+                    && !(x + raw + 1 < width && samePixel(buffer, in + 3 * (x + raw), in + 3 * (x + raw + 1))))
+                raw++;
+            out[length++] = (byte) (raw - 1);
+            System.arraycopy(buffer, in + 3 * x, out, length, 3 * raw);
+            length += 3 * raw;
+            x += raw;
+        }
+        return length;
+    }
+
+    private static boolean samePixel(byte[] buffer, int i, int j) {
+        return buffer[i] == buffer[j] && buffer[i + 1] == buffer[j + 1] && buffer[i + 2] == buffer[j + 2];
+    }
+
+    /**
+     * Writes the header and the pixels with a single gathering write.
+     * @param path
+     * @param header
+     * @param pixels
+     * @throws IOException
+     */
+    private static void write(Path path, ByteBuffer header, ByteBuffer pixels) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] buffers = {header, pixels};
+            while (pixels.hasRemaining())
+                channel.write(buffers);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package fr.algo3d.model;
+
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Class to represent the point of view of a scene : its position, the point it looks at, its up direction and its vertical field of view.
+ * The default camera is at the origin, looks toward -z with y up, and sees the rows of the image between -0.5 and 0.5 at z = -1 :
+ * its primary rays are exactly the rays the renderers traced before the cameras.
+ * The rays of an image of a given size are given by a Viewport, which precomputes the offset of each column and of each row.
+ */
+public class Camera {
+
+    /**
+     * Vertical field of view of the default camera, in degrees.
+     */
+    public static final float DEFAULT_FOV = (float) Math.toDegrees(2 * Math.atan(0.5));
+
+    /**
+     * Smallest field of view given by zoomed, in degrees.
+     */
+    public static final float MIN_FOV = 1;
+
+    /**
+     * Greatest field of view given by zoomed, in degrees.
+     */
+    public static final float MAX_FOV = 170;
+
+    /**
+     * Greatest elevation of the direction looked at given by turned, in degrees.
+     */
+    public static final float MAX_ELEVATION = 89;
+
+    private final Vec3f position;
+
+    private final Vec3f target;
+
+    private final Vec3f up;
+
+    /**
+     * Vertical field of view, in degrees.
+     */
+    private final float fov;
+
+    /**
+     * Normalized direction looked at.
+     */
+    private final Vec3f forward;
+
+    /**
+     * Normalized direction of the columns of the image.
+     */
+    private final Vec3f right;
+
+    /**
+     * Normalized direction of the rows of the image, orthogonal to forward and right.
+     */
+    private final Vec3f vertical;
+
+    /**
+     * Height of the image plane at distance 1 from the position.
+     */
+    private final float scale;
+
+    /**
+     * Constructor of the default camera.
+     */
+    public Camera() {
+        this(new Vec3f(), new Vec3f(0,0,-1), new Vec3f(0,1,0), DEFAULT_FOV);
+    }
+
+    /**
+     * Constructor.
+     * @param position
+     * @param target point looked at
+     * @param up up direction, which must not be parallel to the direction looked at
+     * @param fov vertical field of view in degrees, strictly between 0 and 180
+     */
+    public Camera(Vec3f position, Vec3f target, Vec3f up, float fov) {
+        if (!(fov > 0 && fov < 180))
+            throw new IllegalArgumentException("Invalid field of view : " + fov);
+        Vec3f direction = new Vec3f().setSub(target, position);
+        if (direction.lengthSquare() == 0)
+            throw new IllegalArgumentException("The camera must not be at its target");
+        if (new Vec3f().setCrossProduct(direction, up).lengthSquare() == 0)
+            throw new IllegalArgumentException("The up direction must not be parallel to the direction looked at");
+        this.position = new Vec3f(position);
+        this.target = new Vec3f(target);
+        this.up = new Vec3f(up);
+        this.fov = fov;
+        this.forward = direction.normalize();
+        this.right = new Vec3f().setCrossProduct(forward, up).normalize();
+        this.vertical = new Vec3f().setCrossProduct(right, forward);
+        this.scale = (float) (2 * Math.tan(Math.toRadians(fov) / 2));
+    }
+
+    /**
+     * Returns a copy of the position.
+     * @return
+     */
+    public Vec3f getPosition() {
+        return new Vec3f(position);
+    }
+
+    /**
+     * Returns a copy of the point looked at.
+     * @return
+     */
+    public Vec3f getTarget() {
+        return new Vec3f(target);
+    }
+
+    /**
+     * Returns a copy of the up direction.
+     * @return
+     */
+    public Vec3f getUp() {
+        return new Vec3f(up);
+    }
+
+    /**
+     * Returns the vertical field of view, in degrees.
+     * @return
+     */
+    public float getFov() {
+        return fov;
+    }
+
+    /**
+     * Returns the camera moved along its own axes, looking in the same direction.
+     * @param forwardDistance distance along the direction looked at
+     * @param rightDistance distance along the columns of the image
+     * @param upDistance distance along the rows of the image
+     * @return
+     */
+    public Camera moved(float forwardDistance, float rightDistance, float upDistance) {
+        Vec3f d = new Vec3f().setScale(forwardDistance, forward).addScale(rightDistance, right).addScale(upDistance, vertical);
+        return new Camera(new Vec3f(position).add(d), new Vec3f(target).add(d), up, fov);
+    }
+
+    /**
+     * Returns the camera turned around its position, its target staying at the same distance.
+     * The elevation of the direction looked at is kept within MAX_ELEVATION degrees of the horizontal plane of the up direction,
+     * so the camera never looks along its up direction.
+     * @param yaw angle around the up direction in degrees, positive to turn left
+     * @param pitch angle of elevation in degrees, positive to look up
+     * @return
+     */
+    public Camera turned(float yaw, float pitch) {
+        Vec3f direction = new Vec3f().setSub(target, position);
+        float distance = direction.length();
+        Vec3f upAxis = new Vec3f(up).normalize();
+        float sinElevation = Math.max(-1, Math.min(1, direction.normalize().dotProduct(upAxis)));
+        double elevation = Math.asin(sinElevation) + Math.toRadians(pitch);
+        elevation = Math.max(-Math.toRadians(MAX_ELEVATION), Math.min(Math.toRadians(MAX_ELEVATION), elevation));
+        Vec3f horizontal = direction.subScale(sinElevation, upAxis).normalize();
+        double a = Math.toRadians(yaw);
+        // the horizontal direction is orthogonal to the axis, so its rotation needs no term along the axis
+        Vec3f side = new Vec3f().setCrossProduct(upAxis, horizontal);
+        horizontal.scale((float) Math.cos(a)).addScale((float) Math.sin(a), side);
+        Vec3f newDirection = horizontal.scale((float) Math.cos(elevation)).addScale((float) Math.sin(elevation), upAxis);
+        return new Camera(position, new Vec3f(position).addScale(distance, newDirection), up, fov);
+    }
+
+    /**
+     * Returns the camera with its field of view divided by a factor, kept between MIN_FOV and MAX_FOV degrees.
+     * @param factor greater than 1 to zoom in
+     * @return
+     */
+    public Camera zoomed(float factor) {
+        return new Camera(position, target, up, Math.max(MIN_FOV, Math.min(MAX_FOV, fov / factor)));
+    }
+
+    /**
+     * Returns the primary rays of an image of w x h pixels.
+     * @param w width of the image
+     * @param h height of the image
+     * @return
+     */
+    public Viewport viewport(int w, int h) {
+        return new Viewport(w, h);
+    }
+
+    /**
+     * Primary rays of an image of a given size seen by the camera.
+     * The direction of the pixel (col, row) is forward + the offset of the column + the offset of the row, both computed once,
+     * so a ray costs two additions per coordinate and a normalization. The pixels are square, the first row is at the bottom.
+     */
+    public class Viewport {
+
+        private final int width;
+
+        private final int height;
+
+        /**
+         * Offset of the direction of each column, 3 floats per column.
+         */
+        private final float[] columns;
+
+        /**
+         * Offset of the direction of each row, 3 floats per row.
+         */
+        private final float[] rows;
+
+        /**
+         * Constructor.
+         * @param w width of the image
+         * @param h height of the image
+         */
+        private Viewport(int w, int h) {
+            if (w <= 0 || h <= 0)
+                throw new IllegalArgumentException("Invalid image size : " + w + "x" + h);
+            width = w;
+            height = h;
+            columns = new float[3 * w];
+            for (int col = 0; col < w; col++) {
+                float x = (col - w/2.f)/h * scale;
+                columns[3*col] = right.x * x;
+                columns[3*col+1] = right.y * x;
+                columns[3*col+2] = right.z * x;
+            }
+            rows = new float[3 * h];
+            for (int row = 0; row < h; row++) {
+                float y = (row - h/2.f)/h * scale;
+                rows[3*row] = vertical.x * y;
+                rows[3*row+1] = vertical.y * y;
+                rows[3*row+2] = vertical.z * y;
+            }
+        }
+
+        /**
+         * Returns the width of the image.
+         * @return
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the height of the image.
+         * @return
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Puts the origin of the primary rays, the position of the camera, into out.
+         * @param out
+         * @return out
+         */
+        public Vec3f origin(Vec3f out) {
+            return out.set(position);
+        }
+
+        /**
+         * Puts the normalized direction of the primary ray of the pixel (col, row) into out.
+         * @param col
+         * @param row
+         * @param out
+         * @return out
+         */
+        public Vec3f direction(int col, int row, Vec3f out) {
+            int c = 3*col, r = 3*row;
+            return out.set(forward.x + columns[c] + rows[r],
+                    forward.y + columns[c+1] + rows[r+1],
+                    forward.z + columns[c+2] + rows[r+2]).normalize();
+        }
+
+        /**
+         * Puts the normalized direction of the ray through any point of the image into out, to trace several samples per pixel.
+         * The point of integer coordinates (col, row) is the point traced by direction for the pixel (col, row),
+         * whose ray is exactly the same.
+         * @param col
+         * @param row
+         * @param out
+         * @return out
+         */
+        public Vec3f sampleDirection(float col, float row, Vec3f out) {
+            float x = (col - width/2.f)/height * scale;
+            float y = (row - height/2.f)/height * scale;
+            return out.set(forward.x + right.x * x + vertical.x * y,
+                    forward.y + right.y * x + vertical.y * y,
+                    forward.z + right.z * x + vertical.z * y).normalize();
+        }
+    }
+}
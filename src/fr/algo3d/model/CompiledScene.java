@@ -0,0 +1,475 @@
+package fr.algo3d.model;
+
+import fr.algo3d.model.accel.BVH;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.accel.RayPacket;
+import fr.algo3d.model.lights.Light;
+import fr.algo3d.model.models.Color;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Vec3f;
+import fr.algo3d.model.render.ShadingContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable render form of a scene, made by Scene.compile.
+ * The materials and the lights are flattened in tables of floats indexed by int, with the constants of the hits precomputed :
+ * the ambient color of each material, its reflection, transmission and diffuse ratios, the inverse of its refract index
+ * and the product of its specular color with the specular color of each light.
+ * A hit finds the index of its material with one lookup instead of going through the getters of the model and of the material.
+ * The specular factor can also be read in a table per shininess instead of calling Math.pow, which is an approximation.
+ * Without the tables, the colors are exactly the ones of the recursive findColor of the scene.
+ */
+public final class CompiledScene {
+
+    /**
+     * Number of intervals of the tables of the specular factor.
+     */
+    public static final int SPECULAR_TABLE_SIZE = 1024;
+
+    /**
+     * Hierarchy over the models of the scene.
+     */
+    private final BVH bvh;
+
+    /**
+     * Number of lights.
+     */
+    private final int lightCount;
+
+    /**
+     * Positions of the lights.
+     */
+    private final Vec3f[] lightPositions;
+
+    /**
+     * Diffuse colors of the lights, 3 floats per light.
+     */
+    private final float[] lightDiffuse;
+
+    /**
+     * Materials of the scene, in the order of their index.
+     */
+    private final Material[] materials;
+
+    /**
+     * Open addressing table from the materials to their index : the keys and the indices of the slots.
+     */
+    private final Material[] slotKeys;
+    private final int[] slotIndices;
+
+    /**
+     * Shift giving the first slot of a hash code.
+     */
+    private final int slotShift;
+
+    /**
+     * Diffuse colors of the materials, 3 floats per material.
+     */
+    private final float[] colors;
+
+    /**
+     * Ambient color of the scene multiplied by the color of each material, 3 floats per material.
+     */
+    private final float[] ambientColors;
+
+    /**
+     * Specular color of each material multiplied by the specular color of each light, 3 floats per pair, light index varying fastest.
+     */
+    private final float[] specularColors;
+
+    private final float[] shininess;
+    private final float[] reflections;
+    private final float[] transparencies;
+    private final float[] reflRatios;
+    private final float[] transRatios;
+    private final float[] diffuseRatios;
+    private final float[] refractIndices;
+    private final float[] inverseRefractIndices;
+
+    /**
+     * Table of the specular factor of each material, null to call Math.pow.
+     */
+    private final float[][] specularTables;
+
+    /**
+     * Constructor.
+     * @param ambient ambient color of the scene
+     * @param models models of the scene, giving the materials
+     * @param lights
+     * @param bvh hierarchy over the models
+     * @param specularTables true to read the specular factor in tables instead of calling Math.pow
+     */
+    CompiledScene(Color ambient, List<Model> models, List<Light> lights, BVH bvh, boolean specularTables) {
+        this.bvh = bvh;
+        lightCount = lights.size();
+        lightPositions = new Vec3f[lightCount];
+        lightDiffuse = new float[3*lightCount];
+        for (int i = 0; i < lightCount; i++) {
+            Light l = lights.get(i);
+            lightPositions[i] = new Vec3f(l.getPosition());
+            store(lightDiffuse, i, l.getDiffuse());
+        }
+
+        Map<Material,Integer> indices = new IdentityHashMap<>();
+        List<Material> table = new ArrayList<>();
+        for (Model m : models)
+            for (Material material : m.getMaterials())
+                if (material != null && !indices.containsKey(material)) {
+                    indices.put(material, table.size());
+                    table.add(material);
+                }
+        materials = table.toArray(new Material[0]);
+        int n = materials.length;
+
+        int bits = 1;
+        while ((1 << bits) < 2 * n)
+            bits++;
+        slotShift = 32 - bits;
+        slotKeys = new Material[1 << bits];
+        slotIndices = new int[1 << bits];
+        for (int k = 0; k < n; k++) {
+            int slot = slot(materials[k]);
+            while (slotKeys[slot] != null)
+                slot = (slot + 1) & (slotKeys.length - 1);
+            slotKeys[slot] = materials[k];
+            slotIndices[slot] = k;
+        }
+
+        colors = new float[3*n];
+        ambientColors = new float[3*n];
+        specularColors = new float[3*n*lightCount];
+        shininess = new float[n];
+        reflections = new float[n];
+        transparencies = new float[n];
+        reflRatios = new float[n];
+        transRatios = new float[n];
+        diffuseRatios = new float[n];
+        refractIndices = new float[n];
+        inverseRefractIndices = new float[n];
+        this.specularTables = specularTables ? new float[n][] : null;
+        Map<Float,float[]> tables = new HashMap<>();
+        Color tmp = new Color();
+        for (int k = 0; k < n; k++) {
+            Material material = materials[k];
+            store(colors, k, material.getColor());
+            store(ambientColors, k, tmp.setMul(ambient, material.getColor()));
+            for (int i = 0; i < lightCount; i++)
+                store(specularColors, k*lightCount + i, tmp.setMul(material.getSpecColor(), lights.get(i).getSpecular()));
+            shininess[k] = material.getShininess();
+            reflections[k] = material.getReflection();
+            transparencies[k] = material.getTransparency();
+            reflRatios[k] = material.getReflection() / (1 + material.getReflection()+ material.getTransparency());
+            transRatios[k] = material.getTransparency() / (1 + material.getReflection()+ material.getTransparency());
+            diffuseRatios[k] = 1 / (1 + material.getReflection()+ material.getTransparency());
+            refractIndices[k] = material.getRefractIndex();
+            inverseRefractIndices[k] = 1 / material.getRefractIndex();
+            if (specularTables)
+                this.specularTables[k] = tables.computeIfAbsent(material.getShininess(), CompiledScene::specularTable);
+        }
+    }
+
+    private static void store(float[] array, int index, Color c) {
+        array[3*index] = c.getR();
+        array[3*index+1] = c.getG();
+        array[3*index+2] = c.getB();
+    }
+
+    /**
+     * Returns the table of the specular factor for a shininess, on SPECULAR_TABLE_SIZE intervals between 0 and 1.
+     * @param shininess
+     * @return
+     */
+    private static float[] specularTable(float shininess) {
+        float[] table = new float[SPECULAR_TABLE_SIZE + 1];
+        for (int k = 0; k <= SPECULAR_TABLE_SIZE; k++)
+            table[k] = (float) Math.pow((double) k / SPECULAR_TABLE_SIZE, shininess);
+        return table;
+    }
+
+    /**
+     * Returns the first slot of a material in the open addressing table.
+     * @param material
+     * @return
+     */
+    private int slot(Material material) {
+        return (System.identityHashCode(material) * 0x9E3779B9) >>> slotShift;
+    }
+
+    /**
+     * Returns the index of the material of a model hit.
+     * @param model
+     * @return
+     * @throws IllegalStateException if the material is not in the scene compiled
+     */
+    public int materialIndex(Model model) {
+        Material material = model.getMaterial();
+        int slot = slot(material);
+        while (true) {
+            Material key = slotKeys[slot];
+            if (key == material)
+                return slotIndices[slot];
+            if (key == null)
+                throw new IllegalStateException("Material not compiled in the scene : " + material);
+            slot = (slot + 1) & (slotKeys.length - 1);
+        }
+    }
+
+    /**
+     * Returns the hierarchy of the scene compiled.
+     * @return
+     */
+    public BVH getBVH() {
+        return bvh;
+    }
+
+    /**
+     * Returns the number of materials.
+     * @return
+     */
+    public int getMaterialCount() {
+        return materials.length;
+    }
+
+    /**
+     * Returns the material of an index.
+     * @param material
+     * @return
+     */
+    public Material getMaterial(int material) {
+        return materials[material];
+    }
+
+    /**
+     * Returns the reflection of a material.
+     * @param material index of the material
+     * @return
+     */
+    public float getReflection(int material) {
+        return reflections[material];
+    }
+
+    /**
+     * Returns the transparency of a material.
+     * @param material index of the material
+     * @return
+     */
+    public float getTransparency(int material) {
+        return transparencies[material];
+    }
+
+    /**
+     * Returns true if the specular factor is read in tables.
+     * @return
+     */
+    public boolean hasSpecularTables() {
+        return specularTables != null;
+    }
+
+    /**
+     * Puts the color found by the ray defined by P and v into out, without any allocation.
+     * Computes the color of findColor(P, v, depth) of the scene but uses the frame of the context at this depth for every intermediate value.
+     * P and v are never modified, so they may belong to the frame of the caller.
+     * @param P
+     * @param v
+     * @param depth
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color findColor(Vec3f P, Vec3f v, int depth, ShadingContext ctx, Color out) {
+        Hit hit = ctx.frame(depth).hit.reset(Float.MAX_VALUE);
+        if (!bvh.intersect(P,v,1E-3f,hit,ctx.stack))
+            return out.set(Color.black);
+        return shade(P, v, hit, depth, ctx, out);
+    }
+
+    /**
+     * Looks for the closest intersection of the ray defined by P and v with a lambda lower than hit.lambda, as findColor does.
+     * @param P
+     * @param v
+     * @param hit
+     * @param ctx scratch values of the current thread
+     * @return true if the hit was updated
+     */
+    public boolean intersect(Vec3f P, Vec3f v, Hit hit, ShadingContext ctx) {
+        return bvh.intersect(P,v,1E-3f,hit,ctx.stack);
+    }
+
+    /**
+     * Looks for the closest intersection of each ray of a packet, as findColor does for a single ray.
+     * @param packet
+     * @param ctx scratch values of the current thread
+     */
+    public void intersect(RayPacket packet, ShadingContext ctx) {
+        bvh.intersect(packet, 1E-3f, ctx.stack);
+    }
+
+    /**
+     * Puts the color of the ray defined by P and v into out, knowing its closest intersection, without any allocation.
+     * Calculates the diffuse and specular color for each light if it is not obscured in a shadow,
+     * then the reflected and refracted colors with findColor.
+     * @param P
+     * @param v
+     * @param hit closest intersection of the ray, read before anything else
+     * @param depth
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color shade(Vec3f P, Vec3f v, Hit hit, int depth, ShadingContext ctx, Color out) {
+        ShadingContext.Frame f = ctx.frame(depth);
+        Color color = shadeLocal(P, v, hit, f, ctx, out);
+        int m = f.material;
+        float reflection = reflections[m];
+        float transparency = transparencies[m];
+        if ((reflection > 0 || transparency > 0) && depth < Scene.MAX_RAY_DEPTH) {
+            Color child = f.child;
+            if (reflection > 0.f) {
+                reflectedRay(f, v);
+                findColor(f.origin,f.dir,depth+1,ctx,child);
+                child.setScale(reflection, child);
+                color.setAdd(color, child.setScale(f.reflRatio, child));
+            }
+            if (transparency > 0.f) {
+                refractedRay(f, v);
+                findColor(f.origin,f.dir,depth+1,ctx,child);
+                child.setScale(transparency, child);
+                color.setAdd(color, child.setScale(f.transRatio, child));
+            }
+        }
+        return color;
+    }
+
+    /**
+     * Puts the color of the ray defined by P and v due to the lights into out, knowing its closest intersection, without any allocation.
+     * Calculates the diffuse and specular color for each light if it is not obscured in a shadow.
+     * Leaves in the frame the material hit, the intersection point, the normal facing the ray and the reflection and transmission ratios,
+     * to compute the reflected and refracted rays.
+     * @param P
+     * @param v
+     * @param hit closest intersection of the ray, read before anything else
+     * @param f frame of the depth of the ray
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color shadeLocal(Vec3f P, Vec3f v, Hit hit, ShadingContext.Frame f, ShadingContext ctx, Color out) {
+        int m = materialIndex(hit.model);
+        f.material = m;
+        Vec3f I = f.I.set(P).addScale(hit.lambda, v);
+        Vec3f normal = hit.getNormal(I, f.normal);
+        f.inside = false;
+        if (v.dotProduct(normal) > 0) {
+            normal.scale(-1);
+            f.inside = true;
+        }
+        f.reflRatio = reflRatios[m];
+        f.transRatio = transRatios[m];
+        float diffuseRatio = diffuseRatios[m];
+        float cr = colors[3*m], cg = colors[3*m+1], cb = colors[3*m+2];
+        float ar = ambientColors[3*m], ag = ambientColors[3*m+1], ab = ambientColors[3*m+2];
+
+        float r = 0, g = 0, b = 0;
+        float shadowBias = 1e-4f;
+        Vec3f shadowOrigin = f.shadowOrigin.set(I).addScale(shadowBias, normal);
+        for (int i = 0; i < lightCount; i++) {
+            r = Math.min(r + ar, 1.f);
+            g = Math.min(g + ag, 1.f);
+            b = Math.min(b + ab, 1.f);
+            Vec3f IS = f.IS.setSub(lightPositions[i], I);
+            if (occluded(shadowOrigin, IS, 1, i, ctx))
+                continue;
+            IS.normalize();
+            float weight = Math.max(normal.dotProduct(IS), 0.f);
+            r = Math.min(r + cr * (lightDiffuse[3*i] * weight) * diffuseRatio, 1.f);
+            g = Math.min(g + cg * (lightDiffuse[3*i+1] * weight) * diffuseRatio, 1.f);
+            b = Math.min(b + cb * (lightDiffuse[3*i+2] * weight) * diffuseRatio, 1.f);
+            Vec3f halfdir = f.halfdir.setSub(IS, v);
+            halfdir.normalize();
+            float spec = specular(m, Math.max(halfdir.dotProduct(normal), 0.f));
+            int s = 3 * (m*lightCount + i);
+            r = Math.min(r + specularColors[s] * spec * diffuseRatio, 1.f);
+            g = Math.min(g + specularColors[s+1] * spec * diffuseRatio, 1.f);
+            b = Math.min(b + specularColors[s+2] * spec * diffuseRatio, 1.f);
+        }
+        return out.set(r, g, b);
+    }
+
+    /**
+     * Returns the specular factor of a material, the cosine of the angle between the half vector and the normal raised to the shininess.
+     * @param material
+     * @param cos not negative
+     * @return
+     */
+    private float specular(int material, float cos) {
+        if (specularTables == null)
+            return (float) Math.pow(cos, shininess[material]);
+        float[] table = specularTables[material];
+        float position = Math.min(cos, 1.f) * SPECULAR_TABLE_SIZE;
+        int k = (int) position;
+        if (k >= SPECULAR_TABLE_SIZE)
+            return table[SPECULAR_TABLE_SIZE];
+        return table[k] + (position - k) * (table[k+1] - table[k]);
+    }
+
+    /**
+     * Puts the reflected ray into the origin and the direction of the frame, after shadeLocal.
+     * @param f frame of the depth of the incident ray
+     * @param v direction of the incident ray
+     */
+    public void reflectedRay(ShadingContext.Frame f, Vec3f v) {
+        Vec3f normal = f.normal;
+        Vec3f r = f.dir.set(v);
+        r.subScale(2*normal.dotProduct(v),normal);
+        r.normalize();
+        float bias = 1e-4f;
+        Vec3f biasedI = f.origin.set(f.I);
+        biasedI.addScale(bias,normal);
+    }
+
+    /**
+     * Puts the refracted ray into the origin and the direction of the frame, after shadeLocal.
+     * @param f frame of the depth of the incident ray
+     * @param v direction of the incident ray
+     */
+    public void refractedRay(ShadingContext.Frame f, Vec3f v) {
+        Vec3f normal = f.normal;
+        float refractIndex = f.inside ? refractIndices[f.material] : inverseRefractIndices[f.material];
+        float c1 = -normal.dotProduct(v);
+        float c2 = (float) Math.sqrt(1 - refractIndex*refractIndex*(1-c1*c1));
+        Vec3f t = f.dir.set(v);
+        t.scale(refractIndex);
+        t.addScale(refractIndex*c1-c2,normal);
+        t.normalize();
+        float bias = 1e-4f;
+        Vec3f biasedI = f.origin.set(f.I);
+        biasedI.subScale(bias,normal);
+    }
+
+    /**
+     * Returns true if a model hides the light of index lightIndex from P, v going from P to the light.
+     * The last model which hid this light to the current thread is tested first, as neighbouring points are usually hidden by the same model.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @param lightIndex
+     * @param ctx scratch values of the current thread, holding the last occluders
+     * @return
+     */
+    private boolean occluded(Vec3f P, Vec3f v, float maxDist, int lightIndex, ShadingContext ctx) {
+        Model[] lastOccluders = ctx.lastOccluders(this, lightCount);
+        Model last = lastOccluders[lightIndex];
+        if (last != null && last.occluded(P, v, maxDist))
+            return true;
+        Model occluder = bvh.findOccluder(P, v, maxDist, ctx.stack);
+        if (occluder == null)
+            return false;
+        lastOccluders[lightIndex] = occluder;
+        return true;
+    }
+}
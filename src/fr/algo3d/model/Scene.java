@@ -1,7 +1,16 @@
 package fr.algo3d.model;
 
+import fr.algo3d.model.accel.BVH;
+import fr.algo3d.model.accel.FlatBVH;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.accel.RayPacket;
 import fr.algo3d.model.models.*;
 import fr.algo3d.model.lights.*;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Region;
+import fr.algo3d.model.render.ShadingContext;
+import fr.algo3d.model.render.TileRenderer;
+import fr.algo3d.model.render.TileSink;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -32,6 +41,26 @@ public class Scene {
      */
     private List<Light> lights = new ArrayList<>();
 
+    /**
+     * Point of view of the scene.
+     */
+    private volatile Camera camera = new Camera();
+
+    /**
+     * Bounding volume hierarchy over the models, used by every ray.
+     */
+    private BVH bvh;
+
+    /**
+     * Render form of the scene, made on the first render and when the hierarchy is built again.
+     */
+    private volatile CompiledScene compiled;
+
+    /**
+     * True to compile the scene with tables of the specular factor.
+     */
+    private volatile boolean specularTables;
+
     /**
      * Constructor.
      * Creates a scene with one infinite plane below and one above the point of view, and five spheres.
@@ -51,11 +80,120 @@ public class Scene {
         models.add(new Sphere(red,new Vec3f(3f,-1,-12.5f),1));
         models.add(new Sphere(yellow,new Vec3f(-3f,-1,-12.5f),1));
         lights.add(new Light(new Vec3f(-1,1,0), Color.lightgray,Color.white));
+        bvh = new BVH(models);
+    }
+
+    /**
+     * Constructor.
+     * Creates a scene with the given models and lights.
+     * @param ambient
+     * @param models
+     * @param lights
+     */
+    public Scene(Color ambient, List<Model> models, List<Light> lights) {
+        this(ambient, models, lights, new Camera());
+    }
+
+    /**
+     * Constructor.
+     * Creates a scene with the given models, lights and point of view, like the scenes read by SceneLoader.
+     * @param ambient
+     * @param models
+     * @param lights
+     * @param camera
+     */
+    public Scene(Color ambient, List<Model> models, List<Light> lights, Camera camera) {
+        this.ambient = ambient;
+        this.camera = camera;
+        this.models.addAll(models);
+        this.lights.addAll(lights);
+        bvh = new BVH(this.models);
+    }
+
+    /**
+     * Returns the models of the scene.
+     * @return an unmodifiable view of the models
+     */
+    public List<Model> getModels() {
+        return Collections.unmodifiableList(models);
+    }
+
+    /**
+     * Returns the point of view of the scene.
+     * @return
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Changes the point of view of the scene, used by the next renders.
+     * The renders in progress keep the camera they started with.
+     * @param camera
+     */
+    public void setCamera(Camera camera) {
+        this.camera = Objects.requireNonNull(camera);
+    }
+
+    /**
+     * Updates the hierarchy of the scene after models have moved, between two frames of an animation.
+     * The spheres are moved by Sphere.setOrigin and the instances by Instance.setTransform,
+     * the groups whose models have moved must be refitted first by ModelGroup.refit.
+     * The hierarchy is refitted in parallel, and built again only if its cost exceeds BVH.DEFAULT_REBUILD_THRESHOLD times its cost when it was built.
+     * Must not be called during a render.
+     * @return true if the hierarchy was built again
+     */
+    public boolean refit() {
+        return refit(BVH.DEFAULT_REBUILD_THRESHOLD);
+    }
+
+    /**
+     * Updates the hierarchy of the scene after models have moved, between two frames of an animation.
+     * @param threshold ratio between the cost of the refitted hierarchy and its cost when it was built, above which it is built again
+     * @return true if the hierarchy was built again
+     */
+    public boolean refit(float threshold) {
+        bvh.refit();
+        if (!bvh.isDegraded(threshold))
+            return false;
+        bvh = new BVH(models);
+        return true;
+    }
+
+    /**
+     * Returns the render form of the scene, used by the renderers.
+     * It is made once and kept while the hierarchy is the same : the scene must not be modified after being compiled,
+     * except by moving models and calling refit.
+     * @return
+     */
+    public CompiledScene compile() {
+        CompiledScene c = compiled;
+        if (c == null || c.getBVH() != bvh || c.hasSpecularTables() != specularTables) {
+            c = new CompiledScene(ambient, models, lights, bvh, specularTables);
+            compiled = c;
+        }
+        return c;
+    }
+
+    /**
+     * Selects how the renderers compute the specular factor : with Math.pow, or with tables, which is an approximation.
+     * @param specularTables true to read the specular factor in tables
+     */
+    public void setSpecularTables(boolean specularTables) {
+        this.specularTables = specularTables;
+    }
+
+    /**
+     * Returns true if the renderers read the specular factor in tables.
+     * @return
+     */
+    public boolean hasSpecularTables() {
+        return specularTables;
     }
 
     /**
      * Returns the color found by the ray defined by P and v.
-     * Looks if the ray intersects a model. If no then the color is black.
+     * Looks in the bounding volume hierarchy if the ray intersects a model. If no then the color is black.
      * Else, it calculates the diffuse and specular color for each light if it is not obscured in a shadow.
      * Then it calculates the reflected and refracted colors.
      * @param P
@@ -65,22 +203,16 @@ public class Scene {
      */
     public Color findColor(Vec3f P, Vec3f v, int depth){
         Color color = new Color();
-        float lambdaMin = Float.MAX_VALUE;
-        Model modelMin = null;
-        for (Model m : models) {
-            float lambda = m.getIntersection(P,v);
-            if (lambda > 1E-3 && lambda < lambdaMin){
-                lambdaMin = lambda;
-                modelMin = m;
-            }
-        }
-        if (modelMin == null)
+        Hit hit = new Hit();
+        if (!bvh.intersect(P,v,1E-3f,hit))
             return Color.black;
+        float lambdaMin = hit.lambda;
+        Model modelMin = hit.model;
         Vec3f I = new Vec3f();
         Vec3f lambdaMinV = new Vec3f();
         lambdaMinV.setScale(lambdaMin,v);
         I.setAdd(P, lambdaMinV);
-        Vec3f normal = modelMin.getNormal(I);
+        Vec3f normal = hit.getNormal(I, new Vec3f());
         boolean inside = false;
         if (v.dotProduct(normal) > 0) {
             normal = normal.inverse();
@@ -90,20 +222,16 @@ public class Scene {
         float transRatio = modelMin.getTransparency() / (1 + modelMin.getReflection()+ modelMin.getTransparency());
         float diffuseRatio = 1 / (1 + modelMin.getReflection()+ modelMin.getTransparency());
 
-        for (Light l : lights) {
+        float shadowBias = 1e-4f;
+        Vec3f shadowOrigin = new Vec3f(I);
+        shadowOrigin.addScale(shadowBias, normal);
+        ShadingContext ctx = ShadingContext.current();
+        for (int i = 0; i < lights.size(); i++) {
+            Light l = lights.get(i);
             color = color.add(ambient.mul(modelMin.getColor()));
-            boolean seen = true;
             Vec3f IS = new Vec3f();
             IS.setSub(l.getPosition(), I);
-            for (Model m : models) {
-                float bias = 1e-4f;
-                I.addScale(bias, normal);
-                lambdaMin = m.getIntersection(I, IS);
-                if (lambdaMin > 0 && lambdaMin < 1) {
-                    seen = false;
-                    break;
-                }
-            }
+            boolean seen = !occluded(shadowOrigin, IS, 1, i, ctx);
             if (seen) {
                 Color diffuse;
                 IS.normalize();
@@ -153,6 +281,54 @@ public class Scene {
         return color;
     }
 
+    /**
+     * Puts the color found by the ray defined by P and v into out, without any allocation, with the compiled form of the scene.
+     * Computes exactly the same color as findColor(P, v, depth) but uses the frame of the context at this depth for every intermediate value.
+     * @param P
+     * @param v
+     * @param depth
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color findColor(Vec3f P, Vec3f v, int depth, ShadingContext ctx, Color out) {
+        return compile().findColor(P, v, depth, ctx, out);
+    }
+
+    /**
+     * Returns true if a model intersects the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * Stops at the first model found instead of looking for the closest one.
+     * @param P
+     * @param v
+     * @param maxDist maximum lambda, 1 if v goes from P to a light
+     * @return
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        return bvh.findOccluder(P, v, maxDist, new int[FlatBVH.STACK_SIZE]) != null;
+    }
+
+    /**
+     * Returns true if a model hides the light of index lightIndex from P, v going from P to the light.
+     * The last model which hid this light to the current thread is tested first, as neighbouring points are usually hidden by the same model.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @param lightIndex
+     * @param ctx scratch values of the current thread, holding the last occluders
+     * @return
+     */
+    private boolean occluded(Vec3f P, Vec3f v, float maxDist, int lightIndex, ShadingContext ctx) {
+        Model[] lastOccluders = ctx.lastOccluders(this, lights.size());
+        Model last = lastOccluders[lightIndex];
+        if (last != null && last.occluded(P, v, maxDist))
+            return true;
+        Model occluder = bvh.findOccluder(P, v, maxDist, ctx.stack);
+        if (occluder == null)
+            return false;
+        lastOccluders[lightIndex] = occluder;
+        return true;
+    }
+
     /**
      * Builds a list of ray in sequential then uses this list in parallel via stream to call findcolor on each element. Uses the transform/map parallel pattern.
      * @param w
@@ -161,17 +337,15 @@ public class Scene {
      * @param image
      */
     public void renderParallelMap(int w, int h, byte[] buffer, byte[] image) {
+        Camera.Viewport viewport = camera.viewport(w, h);
         List<Vec3f> list = new ArrayList<>();
         for(int row = 0; row < h; row++){ // for each row of the image
             for(int col = 0; col < w; col++) { // for each column of the image
-                float x = (col - w / 2.f) / h;
-                float y = (row - h / 2.f) / h;
-                float z = -1f;
-                Vec3f ray = new Vec3f(x,y,z).normalize();
+                Vec3f ray = viewport.direction(col, row, new Vec3f());
                 list.add(ray);
             }
         }
-        List<Color> colors = list.parallelStream().map(ray -> findColor(new Vec3f(), ray,0)).collect(Collectors.toList());
+        List<Color> colors = list.parallelStream().map(ray -> findColor(viewport.origin(new Vec3f()), ray,0)).collect(Collectors.toList());
         for(int row = 0; row < h; row++) { // for each row of the image
             for (int col = 0; col < w; col++) { // for each column of the image
                 int index = 3 * ((row * w) + col); // compute index of color for pixel (x,y) in the buffer
@@ -197,19 +371,17 @@ public class Scene {
      * @param image
      */
     public void renderParallelForEach(int w, int h, byte[] buffer, byte[] image) {
+        Camera.Viewport viewport = camera.viewport(w, h);
         Map<Integer,Vec3f> map = new HashMap<>();
         for(int row = 0; row < h; row++){ // for each row of the image
             for(int col = 0; col < w; col++) { // for each column of the image
-                float x = (col - w / 2.f) / h;
-                float y = (row - h / 2.f) / h;
-                float z = -1f;
                 int index = 3 * ((row * w) + col); // compute index of color for pixel (x,y) in the buffer
-                Vec3f ray = new Vec3f(x,y,z).normalize();
+                Vec3f ray = viewport.direction(col, row, new Vec3f());
                 map.put(index,ray);
             }
         }
         map.entrySet().parallelStream().forEach(integerVec3fEntry -> {
-            Color c = findColor(new Vec3f(), integerVec3fEntry.getValue(),0);
+            Color c = findColor(viewport.origin(new Vec3f()), integerVec3fEntry.getValue(),0);
             buffer[integerVec3fEntry.getKey()]= (byte) (Math.min(c.getB(),1.f)*255); // blue : take care, blue is the first component !!!
             buffer[integerVec3fEntry.getKey()+1]= (byte) (Math.min(c.getG(),1.f)*255); // green
             buffer[integerVec3fEntry.getKey()+2]= (byte) (Math.min(c.getR(),1.f)*255); // red (red is the last component !!!)
@@ -231,13 +403,11 @@ public class Scene {
      * @param image
      */
     public void renderParallelNestedLoops(int w, int h, byte[] buffer, byte[] image) {
+        Camera.Viewport viewport = camera.viewport(w, h);
         IntStream.range(0,h).parallel().forEach(row -> {
             IntStream.range(0,w).parallel().forEach(col -> {
                 int index = 3*((row*w)+col); // compute index of color for pixel (x,y) in the buffer
-                float x = (col - w/2.f)/h;
-                float y = (row -h/2.f)/h;
-                float z = -1f;
-                Color c = findColor(new Vec3f(),(new Vec3f(x,y,z)).normalize(),0);
+                Color c = findColor(viewport.origin(new Vec3f()),viewport.direction(col, row, new Vec3f()),0);
                 // Ensure that the pixel is black
 
                 buffer[index]= (byte) (Math.min(c.getB(),1.f)*255); // blue : take care, blue is the first component !!!
@@ -252,6 +422,67 @@ public class Scene {
         });
     }
 
+    /**
+     * Splits the image in tiles of the default size scheduled on the common ForkJoinPool with work stealing.
+     * Gives the same pixels as the sequential algorithm.
+     * @param w
+     * @param h
+     * @param buffer
+     * @param image
+     */
+    public void renderParallelTiles(int w, int h, byte[] buffer, byte[] image) {
+        new TileRenderer(this).render(w, h, buffer, image);
+    }
+
+    /**
+     * Splits the image in tiles of the default size scheduled on the common ForkJoinPool with work stealing.
+     * Writes the linear colors in a frame buffer, to be converted by a Quantizer into the byte layout of each consumer.
+     * @param frameBuffer
+     */
+    public void renderParallelTiles(FrameBuffer frameBuffer) {
+        new TileRenderer(this).render(frameBuffer);
+    }
+
+    /**
+     * Splits a region of the image in tiles of the default size scheduled on the common ForkJoinPool with work stealing.
+     * Only the pixels of the region are traced, the other pixels of the frame buffer are left unchanged.
+     * @param frameBuffer
+     * @param region
+     */
+    public void renderParallelTiles(FrameBuffer frameBuffer, Region region) {
+        new TileRenderer(this).render(frameBuffer, region);
+    }
+
+    /**
+     * Splits the image in tiles of the default size scheduled on the common ForkJoinPool with work stealing.
+     * Gives each tile to the sink as soon as it is rendered, so the whole image is never in memory.
+     * @param w
+     * @param h
+     * @param sink
+     */
+    public void renderParallelTiles(int w, int h, TileSink sink) {
+        new TileRenderer(this).render(w, h, sink);
+    }
+
+    /**
+     * Splits the image in tiles scheduled on a ForkJoinPool with work stealing.
+     * Gives the same pixels as the sequential algorithm.
+     * @param w
+     * @param h
+     * @param buffer
+     * @param image
+     * @param tileSize width and height of a tile in pixels, 16 or 32 are good values
+     * @param threads number of threads, 0 to use the common pool
+     */
+    public void renderParallelTiles(int w, int h, byte[] buffer, byte[] image, int tileSize, int threads) {
+        TileRenderer renderer = new TileRenderer(this, tileSize, threads);
+        try {
+            renderer.render(w, h, buffer, image);
+        } finally {
+            renderer.shutdown();
+        }
+    }
+
     /**
      * Classical ray tracing algorithm in sequential.
      * @param w
@@ -260,14 +491,12 @@ public class Scene {
      * @param image
      */
     public void renderSequential(int w, int h, byte[] buffer, byte[] image) {
+        Camera.Viewport viewport = camera.viewport(w, h);
         for(int row = 0; row < h; row++){ // for each row of the image
             for(int col = 0; col < w; col++){ // for each column of the image
 
                 int index = 3*((row*w)+col); // compute index of color for pixel (x,y) in the buffer
-                float x = (col - w/2.f)/h;
-                float y = (row -h/2.f)/h;
-                float z = -1f;
-                Color c = findColor(new Vec3f(),(new Vec3f(x,y,z)).normalize(),0);
+                Color c = findColor(viewport.origin(new Vec3f()),viewport.direction(col, row, new Vec3f()),0);
                 // Ensure that the pixel is black
 
                 buffer[index]= (byte) (Math.min(c.getB(),1.f)*255); // blue : take care, blue is the first component !!!
@@ -0,0 +1,96 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Class to represent axis aligned bounding boxes.
+ */
+public class AABB {
+
+    /**
+     * Minimum corner of the box.
+     */
+    public final Vec3f min;
+
+    /**
+     * Maximum corner of the box.
+     */
+    public final Vec3f max;
+
+    /**
+     * Default constructor.
+     * Creates an empty box, extending it with any point or box gives that point or box.
+     */
+    public AABB() {
+        min = new Vec3f(Float.POSITIVE_INFINITY,Float.POSITIVE_INFINITY,Float.POSITIVE_INFINITY);
+        max = new Vec3f(Float.NEGATIVE_INFINITY,Float.NEGATIVE_INFINITY,Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Constructor.
+     * @param min
+     * @param max
+     */
+    public AABB(Vec3f min, Vec3f max) {
+        this.min = new Vec3f(min);
+        this.max = new Vec3f(max);
+    }
+
+    /**
+     * Extends the box so that it contains the point p.
+     * @param p
+     * @return current box
+     */
+    public AABB extend(Vec3f p) {
+        min.set(Math.min(min.x,p.x),Math.min(min.y,p.y),Math.min(min.z,p.z));
+        max.set(Math.max(max.x,p.x),Math.max(max.y,p.y),Math.max(max.z,p.z));
+        return this;
+    }
+
+    /**
+     * Extends the box so that it contains the box b.
+     * @param b
+     * @return current box
+     */
+    public AABB extend(AABB b) {
+        min.set(Math.min(min.x,b.min.x),Math.min(min.y,b.min.y),Math.min(min.z,b.min.z));
+        max.set(Math.max(max.x,b.max.x),Math.max(max.y,b.max.y),Math.max(max.z,b.max.z));
+        return this;
+    }
+
+    /**
+     * Returns true if the box contains nothing.
+     * @return
+     */
+    public boolean isEmpty() {
+        return min.x > max.x || min.y > max.y || min.z > max.z;
+    }
+
+    /**
+     * Returns the surface area of the box, 0 if it is empty.
+     * @return
+     */
+    public float surfaceArea() {
+        if (isEmpty())
+            return 0;
+        float dx = max.x - min.x;
+        float dy = max.y - min.y;
+        float dz = max.z - min.z;
+        return 2 * (dx*dy + dy*dz + dz*dx);
+    }
+
+    /**
+     * Writes the box at the position index of an array storing 6 floats per box : min x, y, z then max x, y, z.
+     * @param bounds
+     * @param index
+     */
+    public void store(float[] bounds, int index) {
+        int o = 6*index;
+        bounds[o] = min.x;
+        bounds[o+1] = min.y;
+        bounds[o+2] = min.z;
+        bounds[o+3] = max.x;
+        bounds[o+4] = max.y;
+        bounds[o+5] = max.z;
+    }
+}
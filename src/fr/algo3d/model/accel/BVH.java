@@ -0,0 +1,334 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Sphere;
+import fr.algo3d.model.models.Vec3f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Class to represent the bounding volume hierarchy over the models of a scene.
+ * Models without bounding box, like infinite planes, are kept aside in a list tested for every ray.
+ * When the bounded models move, the hierarchy can be refitted instead of being built again.
+ */
+public class BVH {
+
+    /**
+     * Default ratio between the cost of a refitted hierarchy and its cost when it was built, above which it should be built again.
+     */
+    public static final float DEFAULT_REBUILD_THRESHOLD = 1.5f;
+
+    /**
+     * Bounded models in the order of the leaves of the hierarchy.
+     */
+    private final Model[] prims;
+
+    /**
+     * Unbounded models.
+     */
+    private final Model[] unbounded;
+
+    /**
+     * Hierarchy over the bounded models, null if there is none.
+     */
+    private final FlatBVH tree;
+
+    /**
+     * Spheres of the bounded models, packed in the order of the leaves.
+     */
+    private final PackedSpheres packed;
+
+    /**
+     * Bounds of the bounded models, indexed like the primitive indices of the hierarchy, updated by refit.
+     */
+    private final float[] primBounds;
+
+    /**
+     * True to build and refit the hierarchy in parallel.
+     */
+    private final boolean parallel;
+
+    /**
+     * Cost of the hierarchy with the surface area heuristic when it was built.
+     */
+    private final float buildCost;
+
+    /**
+     * Cost of the hierarchy with the surface area heuristic after the last refit.
+     */
+    private float cost;
+
+    /**
+     * Constructor.
+     * Builds the hierarchy in parallel.
+     * @param models
+     */
+    public BVH(List<Model> models) {
+        this(models, true);
+    }
+
+    /**
+     * Constructor.
+     * @param models
+     * @param parallel true to build the hierarchy in parallel
+     */
+    public BVH(List<Model> models, boolean parallel) {
+        this.parallel = parallel;
+        List<Model> bounded = new ArrayList<>();
+        List<Model> others = new ArrayList<>();
+        List<AABB> boxes = new ArrayList<>();
+        for (Model m : models) {
+            AABB box = m.getBoundingBox();
+            if (box == null)
+                others.add(m);
+            else {
+                bounded.add(m);
+                boxes.add(box);
+            }
+        }
+        unbounded = others.toArray(new Model[0]);
+        prims = new Model[bounded.size()];
+        if (bounded.isEmpty()) {
+            tree = null;
+            packed = new PackedSpheres(prims);
+            primBounds = null;
+            buildCost = 0;
+            return;
+        }
+        primBounds = new float[6*bounded.size()];
+        for (int i = 0; i < boxes.size(); i++)
+            boxes.get(i).store(primBounds, i);
+        tree = BVHBuilder.build(primBounds, bounded.size(), parallel);
+        for (int i = 0; i < prims.length; i++)
+            prims[i] = bounded.get(tree.primIndices[i]);
+        packed = new PackedSpheres(prims);
+        buildCost = tree.cost();
+        cost = buildCost;
+    }
+
+    /**
+     * Returns the spheres of the bounded models, packed in the order of the leaves.
+     * @return
+     */
+    public PackedSpheres getPackedSpheres() {
+        return packed;
+    }
+
+    /**
+     * Returns the cost of the hierarchy with the surface area heuristic when it was built.
+     * @return
+     */
+    public float getBuildCost() {
+        return buildCost;
+    }
+
+    /**
+     * Returns the cost of the hierarchy with the surface area heuristic after the last refit.
+     * @return
+     */
+    public float getCost() {
+        return cost;
+    }
+
+    /**
+     * Returns true if the cost of the hierarchy exceeds threshold times its cost when it was built.
+     * @param threshold
+     * @return
+     */
+    public boolean isDegraded(float threshold) {
+        return cost > threshold * buildCost;
+    }
+
+    /**
+     * Updates the hierarchy after bounded models have moved, keeping its topology.
+     * The boxes of the models are recomputed, then the boxes of the nodes from the leaves to the root.
+     * The leaves keep the models given by the construction, so the hierarchy gets worse as the models move away from each other :
+     * the cost returned tells when it is worth building a new one.
+     * Must not be called while rays traverse the hierarchy.
+     * @return the cost of the refitted hierarchy with the surface area heuristic
+     * @throws IllegalStateException if a bounded model has no bounding box anymore
+     */
+    public float refit() {
+        if (tree == null)
+            return 0;
+        IntStream range = IntStream.range(0, prims.length);
+        (parallel ? range.parallel() : range).forEach(this::refitModel);
+        cost = tree.refit(primBounds, parallel);
+        return cost;
+    }
+
+    /**
+     * Updates the packed sphere and the bounds of the model of index k in the leaves.
+     * @param k
+     */
+    private void refitModel(int k) {
+        Model m = prims[k];
+        packed.update(k);
+        int index = tree.primIndices[k];
+        if (m instanceof Sphere) {
+            Sphere sphere = (Sphere) m;
+            Vec3f origin = sphere.getOrigin();
+            float r = sphere.getRadius();
+            int o = 6*index;
+            primBounds[o] = origin.x - r;
+            primBounds[o+1] = origin.y - r;
+            primBounds[o+2] = origin.z - r;
+            primBounds[o+3] = origin.x + r;
+            primBounds[o+4] = origin.y + r;
+            primBounds[o+5] = origin.z + r;
+        } else {
+            AABB box = m.getBoundingBox();
+            if (box == null)
+                throw new IllegalStateException("A bounded model can not become unbounded : " + m);
+            box.store(primBounds, index);
+        }
+    }
+
+    /**
+     * Looks for the closest intersection of the ray defined by P and v with a lambda greater than lambdaMin and lower than hit.lambda.
+     * The hit is updated if such an intersection is found.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if an intersection was found
+     */
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        return intersect(P, v, lambdaMin, hit, new int[FlatBVH.STACK_SIZE]);
+    }
+
+    /**
+     * Looks for the closest intersection of the ray defined by P and v with a lambda greater than lambdaMin and lower than hit.lambda.
+     * Uses the stack given by the caller to traverse the hierarchy without allocation.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @param stack array of at least FlatBVH.STACK_SIZE ints
+     * @return true if an intersection was found
+     */
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit, int[] stack) {
+        boolean found = false;
+        for (Model m : unbounded)
+            found |= m.intersect(P, v, lambdaMin, hit);
+        if (tree == null)
+            return found;
+        float invX = FlatBVH.inverse(v.x);
+        float invY = FlatBVH.inverse(v.y);
+        float invZ = FlatBVH.inverse(v.z);
+        int[] nodes = tree.nodes;
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (tree.intersectBox(node, P, invX, invY, invZ, lambdaMin, hit.lambda)) {
+                int count = nodes[2*node+1];
+                if (count > 0) {
+                    int first = nodes[2*node];
+                    found |= packed.intersect(first, first + count, P, v, lambdaMin, hit);
+                } else {
+                    // Visit first the child on the side the ray comes from
+                    int axis = -count - 1;
+                    float dir = axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+                    if (dir < 0) {
+                        stack[sp++] = node + 1;
+                        node = nodes[2*node];
+                    } else {
+                        stack[sp++] = nodes[2*node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                break;
+            node = stack[--sp];
+        }
+        return found;
+    }
+
+    /**
+     * Looks for the closest intersection of each ray of a packet with a lambda greater than lambdaMin.
+     * The rays share the traversal, ordered by the direction of the first ray.
+     * @param packet
+     * @param lambdaMin
+     * @param stack array of at least FlatBVH.STACK_SIZE ints
+     */
+    public void intersect(RayPacket packet, float lambdaMin, int[] stack) {
+        int n = packet.size();
+        for (Model m : unbounded)
+            for (int r = 0; r < n; r++)
+                packet.intersect(r, m, lambdaMin);
+        if (tree == null || n == 0)
+            return;
+        Vec3f v = packet.directions[0];
+        int[] nodes = tree.nodes;
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (packet.anyIntersectsBox(tree.bounds, node, lambdaMin)) {
+                int count = nodes[2*node+1];
+                if (count > 0) {
+                    int first = nodes[2*node];
+                    packed.intersect(first, first + count, packet, lambdaMin);
+                } else {
+                    int axis = -count - 1;
+                    float dir = axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+                    if (dir < 0) {
+                        stack[sp++] = node + 1;
+                        node = nodes[2*node];
+                    } else {
+                        stack[sp++] = nodes[2*node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                break;
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * Looks for any model intersecting the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * Stops at the first one found.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @param stack array of at least FlatBVH.STACK_SIZE ints
+     * @return the first model found, null if there is none
+     */
+    public Model findOccluder(Vec3f P, Vec3f v, float maxDist, int[] stack) {
+        for (Model m : unbounded)
+            if (m.occluded(P, v, maxDist))
+                return m;
+        if (tree == null)
+            return null;
+        float invX = FlatBVH.inverse(v.x);
+        float invY = FlatBVH.inverse(v.y);
+        float invZ = FlatBVH.inverse(v.z);
+        int[] nodes = tree.nodes;
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (tree.intersectBox(node, P, invX, invY, invZ, 0, maxDist)) {
+                int count = nodes[2*node+1];
+                if (count > 0) {
+                    int first = nodes[2*node];
+                    Model occluder = packed.findOccluder(first, first + count, P, v, maxDist);
+                    if (occluder != null)
+                        return occluder;
+                } else {
+                    stack[sp++] = nodes[2*node];
+                    node = node + 1;
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return null;
+            node = stack[--sp];
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package fr.algo3d.model.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds bounding volume hierarchies with the surface area heuristic evaluated on bins.
+ * The primitives are only known by their bounds, 6 floats per primitive : min x, y, z then max x, y, z.
+ * Subtrees bigger than PARALLEL_THRESHOLD are built in parallel in the common ForkJoinPool.
+ */
+public class BVHBuilder {
+
+    /**
+     * Maximum depth of a hierarchy, deeper nodes are turned into leaves.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    /**
+     * Number of bins on each axis to evaluate the surface area heuristic.
+     */
+    public static final int BIN_COUNT = 12;
+
+    /**
+     * Number of primitives under which a node may become a leaf.
+     */
+    public static final int MAX_LEAF_SIZE = 4;
+
+    /**
+     * Cost of the traversal of a node relatively to the cost of a primitive intersection.
+     */
+    public static final float TRAVERSAL_COST = 1.f;
+
+    /**
+     * Number of primitives above which the children of a node are built in parallel.
+     */
+    public static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * Node of the hierarchy during the construction, before being flattened.
+     */
+    private static class BuildNode {
+        float[] box = new float[6];
+        BuildNode left;
+        BuildNode right;
+        int first;
+        int count;
+        int axis;
+        int size = 1;
+    }
+
+    /**
+     * Bounds of the primitives.
+     */
+    private final float[] primBounds;
+
+    /**
+     * Centroids of the primitives, 3 floats per primitive.
+     */
+    private final float[] centroids;
+
+    /**
+     * Indices of the primitives, partitioned during the construction.
+     */
+    private final int[] indices;
+
+    /**
+     * True to build big subtrees in parallel.
+     */
+    private final boolean parallel;
+
+    /**
+     * Constructor.
+     * @param primBounds
+     * @param count
+     * @param parallel
+     */
+    private BVHBuilder(float[] primBounds, int count, boolean parallel) {
+        this.primBounds = primBounds;
+        this.parallel = parallel;
+        centroids = new float[3*count];
+        indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = i;
+            for (int axis = 0; axis < 3; axis++)
+                centroids[3*i+axis] = 0.5f * (primBounds[6*i+axis] + primBounds[6*i+3+axis]);
+        }
+    }
+
+    /**
+     * Builds a hierarchy over count primitives.
+     * @param primBounds bounds of the primitives, 6 floats per primitive
+     * @param count number of primitives, at least one
+     * @param parallel true to build big subtrees in parallel
+     * @return
+     */
+    public static FlatBVH build(float[] primBounds, int count, boolean parallel) {
+        BVHBuilder builder = new BVHBuilder(primBounds, count, parallel);
+        BuildNode root;
+        if (parallel && count > PARALLEL_THRESHOLD)
+            root = ForkJoinPool.commonPool().invoke(builder.new BuildTask(0, count, 0));
+        else root = builder.buildRange(0, count, 0);
+        float[] bounds = new float[6*root.size];
+        int[] nodes = new int[2*root.size];
+        flatten(root, 0, bounds, nodes);
+        return new FlatBVH(bounds, nodes, root.size, builder.indices);
+    }
+
+    /**
+     * Copies a subtree in the flat arrays in depth first order.
+     * @param node root of the subtree
+     * @param index index of the root in the arrays
+     * @param bounds
+     * @param nodes
+     */
+    private static void flatten(BuildNode node, int index, float[] bounds, int[] nodes) {
+        System.arraycopy(node.box, 0, bounds, 6*index, 6);
+        if (node.left == null) {
+            nodes[2*index] = node.first;
+            nodes[2*index+1] = node.count;
+        } else {
+            int right = index + 1 + node.left.size;
+            nodes[2*index] = right;
+            nodes[2*index+1] = -(node.axis + 1);
+            flatten(node.left, index + 1, bounds, nodes);
+            flatten(node.right, right, bounds, nodes);
+        }
+    }
+
+    /**
+     * Task to build the children of a big node in parallel.
+     */
+    private class BuildTask extends RecursiveTask<BuildNode> {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+        private final int depth;
+
+        BuildTask(int start, int end, int depth) {
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+        }
+
+        @Override
+        protected BuildNode compute() {
+            return buildRange(start, end, depth);
+        }
+    }
+
+    /**
+     * Builds the subtree of the primitives between start (included) and end (excluded) in the indices.
+     * @param start
+     * @param end
+     * @param depth
+     * @return
+     */
+    private BuildNode buildRange(int start, int end, int depth) {
+        BuildNode node = new BuildNode();
+        float[] box = node.box;
+        float[] centroidBox = new float[6];
+        initBox(box);
+        initBox(centroidBox);
+        for (int i = start; i < end; i++) {
+            int prim = indices[i];
+            for (int axis = 0; axis < 3; axis++) {
+                box[axis] = Math.min(box[axis], primBounds[6*prim+axis]);
+                box[axis+3] = Math.max(box[axis+3], primBounds[6*prim+3+axis]);
+                float c = centroids[3*prim+axis];
+                centroidBox[axis] = Math.min(centroidBox[axis], c);
+                centroidBox[axis+3] = Math.max(centroidBox[axis+3], c);
+            }
+        }
+        int count = end - start;
+        node.first = start;
+        node.count = count;
+        if (count <= 1 || depth >= MAX_DEPTH - 1)
+            return node;
+
+        // Evaluation of the surface area heuristic on the bins of each axis
+        int[] binCounts = new int[BIN_COUNT];
+        float[] binBoxes = new float[6*BIN_COUNT];
+        float[] rightAreas = new float[BIN_COUNT];
+        int[] rightCounts = new int[BIN_COUNT];
+        float[] acc = new float[6];
+        float bestCost = Float.MAX_VALUE;
+        int bestAxis = -1;
+        int bestSplit = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            float cmin = centroidBox[axis];
+            float extent = centroidBox[axis+3] - cmin;
+            if (extent <= 0)
+                continue;
+            Arrays.fill(binCounts, 0);
+            for (int b = 0; b < BIN_COUNT; b++)
+                initBox(binBoxes, b);
+            float k = BIN_COUNT / extent;
+            for (int i = start; i < end; i++) {
+                int prim = indices[i];
+                int b = Math.min(BIN_COUNT - 1, (int) ((centroids[3*prim+axis] - cmin) * k));
+                binCounts[b]++;
+                for (int a = 0; a < 3; a++) {
+                    binBoxes[6*b+a] = Math.min(binBoxes[6*b+a], primBounds[6*prim+a]);
+                    binBoxes[6*b+3+a] = Math.max(binBoxes[6*b+3+a], primBounds[6*prim+3+a]);
+                }
+            }
+            initBox(acc);
+            int n = 0;
+            for (int b = BIN_COUNT - 1; b > 0; b--) {
+                n += binCounts[b];
+                growBox(acc, binBoxes, b);
+                rightCounts[b] = n;
+                rightAreas[b] = area(acc);
+            }
+            initBox(acc);
+            n = 0;
+            for (int b = 0; b < BIN_COUNT - 1; b++) {
+                n += binCounts[b];
+                growBox(acc, binBoxes, b);
+                if (n == 0 || rightCounts[b+1] == 0)
+                    continue;
+                float cost = n * area(acc) + rightCounts[b+1] * rightAreas[b+1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = b;
+                }
+            }
+        }
+        if (bestAxis < 0)
+            return node;
+        float parentArea = area(box);
+        float splitCost = TRAVERSAL_COST + (parentArea > 0 ? bestCost / parentArea : count);
+        if (splitCost >= count && count <= MAX_LEAF_SIZE)
+            return node;
+
+        // Partition of the indices on both sides of the best split
+        float cmin = centroidBox[bestAxis];
+        float k = BIN_COUNT / (centroidBox[bestAxis+3] - cmin);
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            int b = Math.min(BIN_COUNT - 1, (int) ((centroids[3*indices[i]+bestAxis] - cmin) * k));
+            if (b <= bestSplit)
+                i++;
+            else {
+                int tmp = indices[i];
+                indices[i] = indices[j];
+                indices[j--] = tmp;
+            }
+        }
+        if (i == start || i == end)
+            return node;
+        node.axis = bestAxis;
+        if (parallel && count > PARALLEL_THRESHOLD) {
+            BuildTask leftTask = new BuildTask(start, i, depth + 1);
+            leftTask.fork();
+            node.right = buildRange(i, end, depth + 1);
+            node.left = leftTask.join();
+        } else {
+            node.left = buildRange(start, i, depth + 1);
+            node.right = buildRange(i, end, depth + 1);
+        }
+        node.size = 1 + node.left.size + node.right.size;
+        return node;
+    }
+
+    /**
+     * Sets a box to the empty box.
+     * @param box
+     */
+    private static void initBox(float[] box) {
+        initBox(box, 0);
+    }
+
+    /**
+     * Sets the box at the position index of an array of boxes to the empty box.
+     * @param boxes
+     * @param index
+     */
+    private static void initBox(float[] boxes, int index) {
+        for (int a = 0; a < 3; a++) {
+            boxes[6*index+a] = Float.POSITIVE_INFINITY;
+            boxes[6*index+3+a] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Extends a box with the box at the position index of an array of boxes.
+     * @param box
+     * @param boxes
+     * @param index
+     */
+    private static void growBox(float[] box, float[] boxes, int index) {
+        for (int a = 0; a < 3; a++) {
+            box[a] = Math.min(box[a], boxes[6*index+a]);
+            box[a+3] = Math.max(box[a+3], boxes[6*index+3+a]);
+        }
+    }
+
+    /**
+     * Returns the surface area of a box, 0 if it is empty.
+     * @param box
+     * @return
+     */
+    static float area(float[] box) {
+        return area(box, 0);
+    }
+
+    /**
+     * Returns the surface area of the box at the position index of an array of boxes, 0 if it is empty.
+     * @param boxes
+     * @param index
+     * @return
+     */
+    static float area(float[] boxes, int index) {
+        int o = 6*index;
+        float dx = boxes[o+3] - boxes[o];
+        float dy = boxes[o+4] - boxes[o+1];
+        float dz = boxes[o+5] - boxes[o+2];
+        if (dx < 0 || dy < 0 || dz < 0)
+            return 0;
+        return 2 * (dx*dy + dy*dz + dz*dx);
+    }
+}
@@ -0,0 +1,240 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.models.Vec3f;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class to represent a bounding volume hierarchy stored in flat arrays, in depth first order.
+ * The left child of an inner node is always the next node, so only the right child is stored.
+ * The structure only knows the primitives by their indices, it is used by the acceleration structures of the scene and of the models.
+ */
+public class FlatBVH {
+
+    /**
+     * Size of the stack needed to traverse any hierarchy built by the BVHBuilder.
+     */
+    public static final int STACK_SIZE = BVHBuilder.MAX_DEPTH + 1;
+
+    /**
+     * Bounds of the nodes, 6 floats per node : min x, y, z then max x, y, z.
+     * They are updated in place by refit.
+     */
+    public final float[] bounds;
+
+    /**
+     * Content of the nodes, 2 ints per node.
+     * For a leaf : index of the first primitive in primIndices, number of primitives (strictly positive).
+     * For an inner node : index of the right child, -(split axis + 1).
+     */
+    public final int[] nodes;
+
+    /**
+     * Number of nodes.
+     */
+    public final int nodeCount;
+
+    /**
+     * Indices of the primitives in leaf order, null if the owner already stores its primitives in leaf order.
+     */
+    public final int[] primIndices;
+
+    /**
+     * Constructor.
+     * @param bounds
+     * @param nodes
+     * @param nodeCount
+     * @param primIndices
+     */
+    public FlatBVH(float[] bounds, int[] nodes, int nodeCount, int[] primIndices) {
+        this.bounds = bounds;
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+        this.primIndices = primIndices;
+    }
+
+    /**
+     * Returns true if the node is a leaf.
+     * @param node
+     * @return
+     */
+    public boolean isLeaf(int node) {
+        return nodes[2*node+1] > 0;
+    }
+
+    /**
+     * Returns the cost of the hierarchy with the surface area heuristic used by the BVHBuilder :
+     * the traversal cost of the inner nodes and the number of primitives of the leaves, weighted by the ratio of their area to the area of the root.
+     * @return the cost, 0 if the root has no area
+     */
+    public float cost() {
+        float sum = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int count = nodes[2*node+1];
+            sum += (count > 0 ? count : BVHBuilder.TRAVERSAL_COST) * BVHBuilder.area(bounds, node);
+        }
+        float rootArea = BVHBuilder.area(bounds, 0);
+        return rootArea > 0 ? sum / rootArea : 0;
+    }
+
+    /**
+     * Recomputes the bounds of the nodes from the bounds of the primitives, from the leaves to the root, keeping the topology.
+     * Subtrees of more than BVHBuilder.PARALLEL_THRESHOLD nodes are refitted in parallel in the common ForkJoinPool.
+     * @param primBounds bounds of the primitives, 6 floats per primitive, indexed like primIndices or in leaf order if it is null
+     * @param parallel true to refit big subtrees in parallel
+     * @return the cost of the refitted hierarchy, as given by cost
+     */
+    public float refit(float[] primBounds, boolean parallel) {
+        float sum;
+        if (parallel && nodeCount > BVHBuilder.PARALLEL_THRESHOLD)
+            sum = ForkJoinPool.commonPool().invoke(new RefitTask(primBounds, 0, nodeCount));
+        else sum = refitRange(primBounds, 0);
+        float rootArea = BVHBuilder.area(bounds, 0);
+        return rootArea > 0 ? sum / rootArea : 0;
+    }
+
+    /**
+     * Refits the subtree of a node.
+     * @param primBounds
+     * @param node
+     * @return the cost of the subtree, not divided by the area of the root
+     */
+    private float refitRange(float[] primBounds, int node) {
+        int count = nodes[2*node+1];
+        if (count > 0)
+            return refitLeaf(primBounds, node, count);
+        int right = nodes[2*node];
+        float cost = refitRange(primBounds, node + 1) + refitRange(primBounds, right);
+        return cost + merge(node, node + 1, right);
+    }
+
+    /**
+     * Recomputes the bounds of a leaf from the bounds of its primitives.
+     * @param primBounds
+     * @param node
+     * @param count
+     * @return the cost of the leaf, not divided by the area of the root
+     */
+    private float refitLeaf(float[] primBounds, int node, int count) {
+        int o = 6*node;
+        for (int a = 0; a < 3; a++) {
+            bounds[o+a] = Float.POSITIVE_INFINITY;
+            bounds[o+3+a] = Float.NEGATIVE_INFINITY;
+        }
+        int first = nodes[2*node];
+        for (int k = first; k < first + count; k++) {
+            int p = 6*(primIndices == null ? k : primIndices[k]);
+            for (int a = 0; a < 3; a++) {
+                bounds[o+a] = Math.min(bounds[o+a], primBounds[p+a]);
+                bounds[o+3+a] = Math.max(bounds[o+3+a], primBounds[p+3+a]);
+            }
+        }
+        return count * BVHBuilder.area(bounds, node);
+    }
+
+    /**
+     * Sets the bounds of an inner node to the union of the bounds of its children.
+     * @param node
+     * @param left
+     * @param right
+     * @return the traversal cost of the node, not divided by the area of the root
+     */
+    private float merge(int node, int left, int right) {
+        int o = 6*node;
+        for (int a = 0; a < 3; a++) {
+            bounds[o+a] = Math.min(bounds[6*left+a], bounds[6*right+a]);
+            bounds[o+3+a] = Math.max(bounds[6*left+3+a], bounds[6*right+3+a]);
+        }
+        return BVHBuilder.TRAVERSAL_COST * BVHBuilder.area(bounds, node);
+    }
+
+    /**
+     * Task to refit the children of a big subtree in parallel.
+     */
+    private class RefitTask extends RecursiveTask<Float> {
+        private static final long serialVersionUID = 1L;
+        private final float[] primBounds;
+        private final int node;
+        private final int end;
+
+        RefitTask(float[] primBounds, int node, int end) {
+            this.primBounds = primBounds;
+            this.node = node;
+            this.end = end;
+        }
+
+        @Override
+        protected Float compute() {
+            int count = nodes[2*node+1];
+            if (count > 0 || end - node <= BVHBuilder.PARALLEL_THRESHOLD)
+                return refitRange(primBounds, node);
+            int right = nodes[2*node];
+            RefitTask left = new RefitTask(primBounds, node + 1, right);
+            left.fork();
+            float cost = new RefitTask(primBounds, right, end).compute();
+            cost += left.join();
+            return cost + merge(node, node + 1, right);
+        }
+    }
+
+    /**
+     * Returns true if the ray defined by P and the inverse of its direction crosses the box of the node between tMin and tMax.
+     * @param node
+     * @param P
+     * @param invX inverse of the x coordinate of the direction
+     * @param invY inverse of the y coordinate of the direction
+     * @param invZ inverse of the z coordinate of the direction
+     * @param tMin
+     * @param tMax
+     * @return
+     */
+    public boolean intersectBox(int node, Vec3f P, float invX, float invY, float invZ, float tMin, float tMax) {
+        return intersectBox(bounds, node, P.x, P.y, P.z, invX, invY, invZ, tMin, tMax);
+    }
+
+    /**
+     * Returns the inverse of a coordinate of a ray direction to be used by the slab test.
+     * An infinite inverse is replaced by the largest float so that a ray starting on a slab never gives NaN.
+     * @param d
+     * @return
+     */
+    public static float inverse(float d) {
+        float inv = 1.f / d;
+        if (Float.isInfinite(inv))
+            return Math.copySign(Float.MAX_VALUE, inv);
+        return inv;
+    }
+
+    /**
+     * Slab test between a ray and the box at the position index of an array storing 6 floats per box.
+     * @param bounds
+     * @param index
+     * @param px
+     * @param py
+     * @param pz
+     * @param invX
+     * @param invY
+     * @param invZ
+     * @param tMin
+     * @param tMax
+     * @return true if the ray crosses the box between tMin and tMax
+     */
+    public static boolean intersectBox(float[] bounds, int index, float px, float py, float pz,
+                                       float invX, float invY, float invZ, float tMin, float tMax) {
+        int o = 6*index;
+        float t1 = (bounds[o] - px) * invX;
+        float t2 = (bounds[o+3] - px) * invX;
+        float near = Math.min(t1,t2);
+        float far = Math.max(t1,t2);
+        t1 = (bounds[o+1] - py) * invY;
+        t2 = (bounds[o+4] - py) * invY;
+        near = Math.max(near,Math.min(t1,t2));
+        far = Math.min(far,Math.max(t1,t2));
+        t1 = (bounds[o+2] - pz) * invZ;
+        t2 = (bounds[o+5] - pz) * invZ;
+        near = Math.max(near,Math.min(t1,t2));
+        far = Math.min(far,Math.max(t1,t2));
+        return near <= far && far >= tMin && near <= tMax;
+    }
+}
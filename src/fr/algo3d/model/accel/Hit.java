@@ -0,0 +1,65 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.models.Instance;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Class to stock the closest intersection found by a query on an acceleration structure.
+ */
+public class Hit {
+
+    /**
+     * Lambda of the closest intersection, or the maximum lambda accepted if there is none yet.
+     */
+    public float lambda;
+
+    /**
+     * Model hit, null if there is none.
+     * When the ray hits a group or an instance, it is the model of the group or of the instance which was hit, which gives the material.
+     */
+    public Model model;
+
+    /**
+     * Index of the primitive hit inside the model, like the triangle of a mesh, -1 if the model is a single primitive.
+     */
+    public int primitive;
+
+    /**
+     * Instance whose transform was applied to the ray to hit the model, null if the model was hit directly.
+     */
+    public Instance instance;
+
+    /**
+     * Default constructor.
+     * Creates a hit accepting any lambda.
+     */
+    public Hit() {
+        reset(Float.MAX_VALUE);
+    }
+
+    /**
+     * Clears the hit before a new query.
+     * @param lambdaMax maximum lambda accepted by the query
+     * @return current hit
+     */
+    public Hit reset(float lambdaMax) {
+        lambda = lambdaMax;
+        model = null;
+        primitive = -1;
+        instance = null;
+        return this;
+    }
+
+    /**
+     * Puts the normal of the model hit at the point i into the vector normal, transformed by the instance if there is one.
+     * @param i intersection point in the space of the scene
+     * @param normal
+     * @return normal
+     */
+    public Vec3f getNormal(Vec3f i, Vec3f normal) {
+        if (instance != null)
+            return instance.getNormal(i, model, primitive, normal);
+        return model.getNormal(i, primitive, normal);
+    }
+}
@@ -0,0 +1,260 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Sphere;
+import fr.algo3d.model.models.Vec3f;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structure of arrays of the spheres of an array of models : centers, squared radii and material indices in flat arrays.
+ * Slot i describes the model i, the slots of models which are not spheres have a negative squared radius
+ * and are intersected through the model itself.
+ * Intersecting a range of slots walks contiguous arrays without any virtual call, which makes the leaves of a hierarchy cheap.
+ * Every result is exactly the one of Sphere.getIntersection.
+ */
+public class PackedSpheres {
+
+    /**
+     * Models packed, in slot order.
+     */
+    private final Model[] models;
+
+    /**
+     * Coordinates of the centers.
+     */
+    private final float[] cx, cy, cz;
+
+    /**
+     * Squared radii, negative for the slots which are not spheres.
+     */
+    private final float[] r2;
+
+    /**
+     * Index of the material of each slot in the materials table.
+     */
+    private final int[] materialIndices;
+
+    /**
+     * Distinct materials of the models.
+     */
+    private final Material[] materials;
+
+    /**
+     * Constructor.
+     * @param models
+     */
+    public PackedSpheres(Model[] models) {
+        this.models = models;
+        int n = models.length;
+        cx = new float[n];
+        cy = new float[n];
+        cz = new float[n];
+        r2 = new float[n];
+        materialIndices = new int[n];
+        Map<Material,Integer> indices = new IdentityHashMap<>();
+        List<Material> table = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Material material = models[i].getMaterial();
+            Integer index = indices.get(material);
+            if (index == null) {
+                index = table.size();
+                indices.put(material, index);
+                table.add(material);
+            }
+            materialIndices[i] = index;
+            update(i);
+        }
+        materials = table.toArray(new Material[0]);
+    }
+
+    /**
+     * Copies the center and the radius of the model of a slot, after it has moved.
+     * @param i
+     */
+    public void update(int i) {
+        if (models[i] instanceof Sphere) {
+            Sphere sphere = (Sphere) models[i];
+            Vec3f origin = sphere.getOrigin();
+            cx[i] = origin.x;
+            cy[i] = origin.y;
+            cz[i] = origin.z;
+            r2[i] = sphere.getRadius() * sphere.getRadius();
+        } else r2[i] = -1;
+    }
+
+    /**
+     * Returns the number of slots.
+     * @return
+     */
+    public int size() {
+        return models.length;
+    }
+
+    /**
+     * Returns the index of the material of a slot.
+     * @param i
+     * @return
+     */
+    public int getMaterialIndex(int i) {
+        return materialIndices[i];
+    }
+
+    /**
+     * Returns the table of the materials.
+     * @return
+     */
+    public Material[] getMaterials() {
+        return materials;
+    }
+
+    /**
+     * Looks for the closest intersection of the ray defined by P and v with the models of all the slots.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        return intersect(0, models.length, P, v, lambdaMin, hit);
+    }
+
+    /**
+     * Looks for the closest intersection of the ray defined by P and v with the models of the slots between first (included)
+     * and end (excluded), with a lambda greater than lambdaMin and lower than hit.lambda.
+     * @param first
+     * @param end
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    public boolean intersect(int first, int end, Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        float a = v.lengthSquare();
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        boolean found = false;
+        for (int i = first; i < end; i++) {
+            float rr = r2[i];
+            if (rr < 0) {
+                found |= models[i].intersect(P, v, lambdaMin, hit);
+                continue;
+            }
+            float cpx = px - cx[i];
+            float cpy = py - cy[i];
+            float cpz = pz - cz[i];
+            float b = 2 * (vx*cpx + vy*cpy + vz*cpz);
+            float c = (cpx*cpx + cpy*cpy + cpz*cpz - rr);
+            float delta = b*b - 4 * a * c;
+            if (delta < 0)
+                continue;
+            float lambda = roots(a, b, delta);
+            if (lambda > lambdaMin && lambda < hit.lambda) {
+                hit.lambda = lambda;
+                hit.model = models[i];
+                hit.primitive = -1;
+                hit.instance = null;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Looks for the closest intersection of each ray of a packet with the models of the slots between first (included)
+     * and end (excluded), with a lambda greater than lambdaMin and lower than the current lambda of the ray.
+     * The inner loop runs over the rays, which share the center and the radius of the sphere.
+     * @param first
+     * @param end
+     * @param packet
+     * @param lambdaMin
+     */
+    public void intersect(int first, int end, RayPacket packet, float lambdaMin) {
+        int n = packet.size();
+        float[] ox = packet.ox, oy = packet.oy, oz = packet.oz;
+        float[] dx = packet.dx, dy = packet.dy, dz = packet.dz;
+        float[] a = packet.a;
+        for (int i = first; i < end; i++) {
+            float rr = r2[i];
+            if (rr < 0) {
+                for (int r = 0; r < n; r++)
+                    packet.intersect(r, models[i], lambdaMin);
+                continue;
+            }
+            float sx = cx[i], sy = cy[i], sz = cz[i];
+            for (int r = 0; r < n; r++) {
+                float cpx = ox[r] - sx;
+                float cpy = oy[r] - sy;
+                float cpz = oz[r] - sz;
+                float b = 2 * (dx[r]*cpx + dy[r]*cpy + dz[r]*cpz);
+                float c = (cpx*cpx + cpy*cpy + cpz*cpz - rr);
+                float delta = b*b - 4 * a[r] * c;
+                if (delta >= 0)
+                    packet.update(r, models[i], roots(a[r], b, delta), lambdaMin);
+            }
+        }
+    }
+
+    /**
+     * Looks for any model of the slots between first (included) and end (excluded) intersecting the ray defined by P and v
+     * with a lambda between 0 and maxDist (both excluded).
+     * @param first
+     * @param end
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return the first model found, null if there is none
+     */
+    public Model findOccluder(int first, int end, Vec3f P, Vec3f v, float maxDist) {
+        float a = v.lengthSquare();
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        for (int i = first; i < end; i++) {
+            float rr = r2[i];
+            if (rr < 0) {
+                if (models[i].occluded(P, v, maxDist))
+                    return models[i];
+                continue;
+            }
+            float cpx = px - cx[i];
+            float cpy = py - cy[i];
+            float cpz = pz - cz[i];
+            float b = 2 * (vx*cpx + vy*cpy + vz*cpz);
+            float c = (cpx*cpx + cpy*cpy + cpz*cpz - rr);
+            if (b > 0 && c > 0)
+                continue;
+            float delta = b*b - 4 * a * c;
+            if (delta < 0)
+                continue;
+            float lambda = roots(a, b, delta);
+            if (lambda > 0 && lambda < maxDist)
+                return models[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the closest positive root of a sphere equation whose discriminant is not negative, like Sphere.getIntersection.
+     * @param a
+     * @param b
+     * @param delta
+     * @return the closest positive root or -1 if there is none.
+     */
+    public static float roots(float a, float b, float delta) {
+        if (delta > 0) {
+            float lambda1 = (float) ((-b - Math.sqrt(delta)) / (2 * a));
+            if (lambda1 > 0)
+                return lambda1;
+            float lambda2 = (float) ((-b + Math.sqrt(delta)) / (2 * a));
+            return lambda2 > 0 ? lambda2 : -1;
+        }
+        float lambda = -b / 2*a;
+        return lambda > 0 ? lambda : -1;
+    }
+}
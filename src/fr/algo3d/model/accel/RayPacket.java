@@ -0,0 +1,179 @@
+package fr.algo3d.model.accel;
+
+import fr.algo3d.model.models.Instance;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Bundle of coherent rays intersected together with the models.
+ * The rays share the traversal of the hierarchy : a node is visited if any ray of the packet crosses its box.
+ * The coordinates are also copied in flat arrays so that the intersection loops run over the rays.
+ */
+public class RayPacket {
+
+    /**
+     * Maximum number of rays of a packet, 8x8 rays.
+     */
+    public static final int MAX_SIZE = 64;
+
+    /**
+     * Origins of the rays.
+     */
+    public final Vec3f[] origins = new Vec3f[MAX_SIZE];
+
+    /**
+     * Directions of the rays.
+     */
+    public final Vec3f[] directions = new Vec3f[MAX_SIZE];
+
+    /**
+     * Coordinates of the origins.
+     */
+    final float[] ox = new float[MAX_SIZE], oy = new float[MAX_SIZE], oz = new float[MAX_SIZE];
+
+    /**
+     * Coordinates of the directions.
+     */
+    final float[] dx = new float[MAX_SIZE], dy = new float[MAX_SIZE], dz = new float[MAX_SIZE];
+
+    /**
+     * Inverses of the coordinates of the directions, for the slab test.
+     */
+    final float[] invX = new float[MAX_SIZE], invY = new float[MAX_SIZE], invZ = new float[MAX_SIZE];
+
+    /**
+     * Squared lengths of the directions.
+     */
+    final float[] a = new float[MAX_SIZE];
+
+    /**
+     * Lambda of the closest intersection of each ray, or the maximum lambda if there is none.
+     */
+    public final float[] lambda = new float[MAX_SIZE];
+
+    /**
+     * Model hit by each ray, null if there is none.
+     */
+    public final Model[] model = new Model[MAX_SIZE];
+
+    /**
+     * Primitive hit by each ray inside its model, -1 if the model is a single primitive.
+     */
+    public final int[] primitive = new int[MAX_SIZE];
+
+    /**
+     * Instance through which each ray hit its model, null if it was hit directly.
+     */
+    public final Instance[] instance = new Instance[MAX_SIZE];
+
+    /**
+     * Hit given to the models made of several primitives.
+     */
+    private final Hit hit = new Hit();
+
+    /**
+     * Number of rays in the packet.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    public RayPacket() {
+        for (int i = 0; i < MAX_SIZE; i++) {
+            origins[i] = new Vec3f();
+            directions[i] = new Vec3f();
+        }
+    }
+
+    /**
+     * Empties the packet.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a ray to the packet.
+     * @param P origin
+     * @param v direction
+     * @return index of the ray in the packet
+     */
+    public int add(Vec3f P, Vec3f v) {
+        int i = size++;
+        origins[i].set(P);
+        directions[i].set(v);
+        ox[i] = P.x;
+        oy[i] = P.y;
+        oz[i] = P.z;
+        dx[i] = v.x;
+        dy[i] = v.y;
+        dz[i] = v.z;
+        invX[i] = FlatBVH.inverse(v.x);
+        invY[i] = FlatBVH.inverse(v.y);
+        invZ[i] = FlatBVH.inverse(v.z);
+        a[i] = v.lengthSquare();
+        lambda[i] = Float.MAX_VALUE;
+        model[i] = null;
+        primitive[i] = -1;
+        instance[i] = null;
+        return i;
+    }
+
+    /**
+     * Returns the number of rays.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if a ray of the packet crosses the box of a node between lambdaMin and its current lambda.
+     * @param bounds
+     * @param node
+     * @param lambdaMin
+     * @return
+     */
+    boolean anyIntersectsBox(float[] bounds, int node, float lambdaMin) {
+        for (int i = 0; i < size; i++)
+            if (FlatBVH.intersectBox(bounds, node, ox[i], oy[i], oz[i], invX[i], invY[i], invZ[i], lambdaMin, lambda[i]))
+                return true;
+        return false;
+    }
+
+    /**
+     * Updates the closest intersection of a ray if lambda is between lambdaMin and its current lambda.
+     * @param i
+     * @param m
+     * @param l
+     * @param lambdaMin
+     */
+    void update(int i, Model m, float l, float lambdaMin) {
+        if (l > lambdaMin && l < lambda[i]) {
+            lambda[i] = l;
+            model[i] = m;
+            primitive[i] = -1;
+            instance[i] = null;
+        }
+    }
+
+    /**
+     * Updates the closest intersection of a ray with a model, which records the model, the primitive and the instance hit.
+     * @param i
+     * @param m
+     * @param lambdaMin
+     */
+    void intersect(int i, Model m, float lambdaMin) {
+        hit.lambda = lambda[i];
+        hit.model = model[i];
+        hit.primitive = primitive[i];
+        hit.instance = instance[i];
+        if (m.intersect(origins[i], directions[i], lambdaMin, hit)) {
+            lambda[i] = hit.lambda;
+            model[i] = hit.model;
+            primitive[i] = hit.primitive;
+            instance[i] = hit.instance;
+        }
+    }
+}
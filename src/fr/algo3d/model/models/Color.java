@@ -87,6 +87,70 @@ public class Color {
         return new Color(newR,newG,newB);
     }
 
+    /**
+     * Copy r, g and b in the current object.
+     * Only to be used on colors owned by the caller, never on the constants.
+     * @param r
+     * @param g
+     * @param b
+     * @return current object
+     */
+    public Color set(float r, float g, float b) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        return this;
+    }
+
+    /**
+     * Copy a color in the current object.
+     * @param c
+     * @return current object
+     */
+    public Color set(Color c) {
+        return set(c.r, c.g, c.b);
+    }
+
+    /**
+     * Add two colors and put the result into the current object, as add does.
+     * @param c1
+     * @param c2
+     * @return current object
+     */
+    public Color setAdd(Color c1, Color c2) {
+        return set(Math.min(c1.r + c2.r,1.f), Math.min(c1.g + c2.g,1.f), Math.min(c1.b + c2.b,1.f));
+    }
+
+    /**
+     * Add two colors and put the result into the current object, without clamping the channels to 1.
+     * @param c1
+     * @param c2
+     * @return current object
+     */
+    public Color setAddUnclamped(Color c1, Color c2) {
+        return set(c1.r + c2.r, c1.g + c2.g, c1.b + c2.b);
+    }
+
+    /**
+     * Multiply two colors and put the result into the current object, as mul does.
+     * @param c1
+     * @param c2
+     * @return current object
+     */
+    public Color setMul(Color c1, Color c2) {
+        return set(c1.r * c2.r, c1.g * c2.g, c1.b * c2.b);
+    }
+
+    /**
+     * Multiply a color and a float and put the result into the current object, as scale does.
+     * @param s
+     * @param c
+     * @return current object
+     */
+    public Color setScale(float s, Color c) {
+        return set(c.r * s, c.g * s, c.b * s);
+    }
+
     /**
      * Returns the red channel.
      * @return
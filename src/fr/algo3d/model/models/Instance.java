@@ -0,0 +1,276 @@
+package fr.algo3d.model.models;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
+import fr.algo3d.model.accel.Hit;
+
+import java.util.List;
+
+/**
+ * Class to represent a shared model, like a mesh or a group, placed in the scene with an affine transform.
+ * The point p of the model is at matrix * p + translation in the scene.
+ * The rays are transformed into the space of the model, where its own hierarchy is traversed,
+ * so the geometry is stored only once whatever the number of instances.
+ * A transformed ray keeps the same lambdas, its direction is just not normalized anymore.
+ * The instances can not be nested : the model of an instance can not be an instance or contain one.
+ * The transform can be changed between two frames of an animation, the hierarchies containing the instance must then be refitted.
+ */
+public class Instance extends Model {
+
+    /**
+     * Scratch vectors of the threads transforming rays and normals.
+     */
+    private static final ThreadLocal<Vec3f[]> SCRATCH = ThreadLocal.withInitial(() -> new Vec3f[]{new Vec3f(), new Vec3f()});
+
+    /**
+     * Shared model.
+     */
+    private final Model model;
+
+    /**
+     * Linear part of the transform from the model to the scene, 3x3 matrix stored row by row.
+     */
+    private float[] matrix;
+
+    /**
+     * Inverse of the linear part of the transform.
+     */
+    private float[] inverse;
+
+    /**
+     * Translation of the transform.
+     */
+    private Vec3f translation;
+
+    /**
+     * Constructor of an instance only translated.
+     * @param model
+     * @param translation
+     */
+    public Instance(Model model, Vec3f translation) {
+        this(model, new float[]{1,0,0, 0,1,0, 0,0,1}, translation);
+    }
+
+    /**
+     * Constructor.
+     * @param model shared model
+     * @param matrix linear part of the transform, 3x3 invertible matrix stored row by row
+     * @param translation translation of the transform
+     */
+    public Instance(Model model, float[] matrix, Vec3f translation) {
+        super(model.getMaterial());
+        if (model instanceof Instance)
+            throw new IllegalArgumentException("The instances can not be nested");
+        this.model = model;
+        setTransform(matrix, translation);
+    }
+
+    /**
+     * Changes the transform of the instance.
+     * @param matrix linear part of the transform, 3x3 invertible matrix stored row by row
+     * @param translation translation of the transform
+     */
+    public void setTransform(float[] matrix, Vec3f translation) {
+        if (matrix.length != 9)
+            throw new IllegalArgumentException("The matrix must have 9 coefficients");
+        float[] inv = invert(matrix);
+        this.matrix = matrix.clone();
+        this.inverse = inv;
+        this.translation = new Vec3f(translation);
+    }
+
+    /**
+     * Changes the translation of the instance, keeping its linear part.
+     * @param translation
+     */
+    public void setTranslation(Vec3f translation) {
+        this.translation = new Vec3f(translation);
+    }
+
+    /**
+     * Returns a copy of the linear part of the transform.
+     * @return
+     */
+    public float[] getMatrix() {
+        return matrix.clone();
+    }
+
+    /**
+     * Returns a copy of the translation of the transform.
+     * @return
+     */
+    public Vec3f getTranslation() {
+        return new Vec3f(translation);
+    }
+
+    /**
+     * Returns the 3x3 matrix of a rotation around the y axis.
+     * @param angle in radians
+     * @return
+     */
+    public static float[] rotationY(float angle) {
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+        return new float[]{c,0,s, 0,1,0, -s,0,c};
+    }
+
+    /**
+     * Returns the product of two 3x3 matrices stored row by row.
+     * @param a
+     * @param b
+     * @return a * b
+     */
+    public static float[] multiply(float[] a, float[] b) {
+        float[] m = new float[9];
+        for (int r = 0; r < 3; r++)
+            for (int c = 0; c < 3; c++)
+                m[3*r+c] = a[3*r]*b[c] + a[3*r+1]*b[3+c] + a[3*r+2]*b[6+c];
+        return m;
+    }
+
+    /**
+     * Returns the inverse of a 3x3 matrix stored row by row, with the adjugate matrix.
+     * @param m
+     * @return
+     */
+    private static float[] invert(float[] m) {
+        float c0 = m[4]*m[8] - m[5]*m[7];
+        float c1 = m[5]*m[6] - m[3]*m[8];
+        float c2 = m[3]*m[7] - m[4]*m[6];
+        float det = m[0]*c0 + m[1]*c1 + m[2]*c2;
+        if (det == 0 || Float.isNaN(det))
+            throw new IllegalArgumentException("The matrix of an instance must be invertible");
+        float inv = 1 / det;
+        return new float[]{
+                c0*inv, (m[2]*m[7] - m[1]*m[8])*inv, (m[1]*m[5] - m[2]*m[4])*inv,
+                c1*inv, (m[0]*m[8] - m[2]*m[6])*inv, (m[2]*m[3] - m[0]*m[5])*inv,
+                c2*inv, (m[1]*m[6] - m[0]*m[7])*inv, (m[0]*m[4] - m[1]*m[3])*inv
+        };
+    }
+
+    /**
+     * Returns the shared model.
+     * @return
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * Returns the materials of the shared model.
+     * @return
+     */
+    @Override
+    public List<Material> getMaterials() {
+        return model.getMaterials();
+    }
+
+    /**
+     * Puts the point p of the scene in the space of the model into out.
+     * @param p
+     * @param out
+     * @return out
+     */
+    private Vec3f toModel(Vec3f p, Vec3f out) {
+        out.setSub(p, translation);
+        float x = out.x, y = out.y, z = out.z;
+        out.x = inverse[0]*x + inverse[1]*y + inverse[2]*z;
+        out.y = inverse[3]*x + inverse[4]*y + inverse[5]*z;
+        out.z = inverse[6]*x + inverse[7]*y + inverse[8]*z;
+        return out;
+    }
+
+    /**
+     * Returns the closest intersection lambda.
+     * @param P
+     * @param v
+     * @return the closest interesection lambda or -1 if there is none.
+     */
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        Hit hit = new Hit();
+        return intersect(P, v, 0, hit) ? hit.lambda : -1;
+    }
+
+    /**
+     * Updates the hit with the closest intersection of the model between lambdaMin and hit.lambda, in the space of the model.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    @Override
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        Vec3f[] scratch = SCRATCH.get();
+        Vec3f localP = toModel(P, scratch[0]);
+        Vec3f localV = scratch[1].setMatMultiply(inverse, v);
+        if (model.intersect(localP, localV, lambdaMin, hit)) {
+            hit.instance = this;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the model intersects the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return
+     */
+    @Override
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        Vec3f[] scratch = SCRATCH.get();
+        Vec3f localP = toModel(P, scratch[0]);
+        Vec3f localV = scratch[1].setMatMultiply(inverse, v);
+        return model.occluded(localP, localV, maxDist);
+    }
+
+    /**
+     * The normal depends on the model of the instance which was hit, given by the hit.
+     * @param i
+     * @return
+     * @throws UnsupportedOperationException always, use Hit.getNormal
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i) {
+        throw new UnsupportedOperationException("The normal of an instance needs the model hit");
+    }
+
+    /**
+     * Puts the normal of a model hit through the instance into the vector normal.
+     * The normal of the model is transformed by the transpose of the inverse matrix.
+     * @param i intersection point in the space of the scene
+     * @param hitModel model hit in the space of the instance
+     * @param primitive primitive hit in the model
+     * @param normal
+     * @return normal
+     */
+    public Vec3f getNormal(Vec3f i, Model hitModel, int primitive, Vec3f normal) {
+        Vec3f[] scratch = SCRATCH.get();
+        Vec3f local = hitModel.getNormal(toModel(i, scratch[0]), primitive, scratch[1]);
+        return normal.setTransposeMatMultiply(inverse, local).normalize();
+    }
+
+    /**
+     * Returns the bounding box of the transformed model, enclosing its 8 transformed corners.
+     * @return the bounding box or null if the model is unbounded.
+     */
+    @Override
+    public AABB getBoundingBox() {
+        AABB box = model.getBoundingBox();
+        if (box == null)
+            return null;
+        AABB result = new AABB();
+        Vec3f corner = new Vec3f();
+        Vec3f p = new Vec3f();
+        for (int k = 0; k < 8; k++) {
+            corner.set((k & 1) == 0 ? box.min.x : box.max.x,
+                    (k & 2) == 0 ? box.min.y : box.max.y,
+                    (k & 4) == 0 ? box.min.z : box.max.z);
+            result.extend(p.setMatMultiply(matrix, corner).add(translation));
+        }
+        return result;
+    }
+}
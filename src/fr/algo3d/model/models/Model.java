@@ -1,6 +1,11 @@
 package fr.algo3d.model.models;
 
 import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
+import fr.algo3d.model.accel.Hit;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Abstract class to represent the model to be rendered.
@@ -28,6 +33,40 @@ public abstract class Model {
      */
     public abstract float getIntersection (Vec3f P, Vec3f v);
 
+    /**
+     * Updates the hit if the closest intersection of the ray defined by P and v is between lambdaMin and hit.lambda.
+     * Models made of several primitives override it to record the primitive hit.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        float lambda = getIntersection(P, v);
+        if (lambda > lambdaMin && lambda < hit.lambda) {
+            hit.lambda = lambda;
+            hit.model = this;
+            hit.primitive = -1;
+            hit.instance = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the ray defined by P and v intersects the model with a lambda between 0 and maxDist (both excluded).
+     * Unlike getIntersection, it only needs to know if there is such an intersection, not which one is the closest.
+     * @param P
+     * @param v
+     * @param maxDist maximum lambda, 1 if v goes from P to a light
+     * @return
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        float lambda = getIntersection(P, v);
+        return lambda > 0 && lambda < maxDist;
+    }
+
     /**
      * Returns the normal at the point i.
      * @param i
@@ -35,6 +74,55 @@ public abstract class Model {
      */
     public abstract Vec3f getNormal(Vec3f i);
 
+    /**
+     * Puts the normal at the point i into the vector normal.
+     * Models should override it to avoid allocating a new vector.
+     * @param i
+     * @param normal
+     * @return normal
+     */
+    public Vec3f getNormal(Vec3f i, Vec3f normal) {
+        return normal.set(getNormal(i));
+    }
+
+    /**
+     * Puts the normal at the point i of a primitive of the model into the vector normal.
+     * Models made of several primitives override it, the others ignore the primitive.
+     * @param i
+     * @param primitive index of the primitive hit, given by the Hit
+     * @param normal
+     * @return normal
+     */
+    public Vec3f getNormal(Vec3f i, int primitive, Vec3f normal) {
+        return getNormal(i, normal);
+    }
+
+    /**
+     * Returns the bounding box of the model.
+     * By default, a model is unbounded.
+     * @return the bounding box or null if the model is unbounded.
+     */
+    public AABB getBoundingBox() {
+        return null;
+    }
+
+    /**
+     * Returns the material.
+     * @return
+     */
+    public Material getMaterial() {
+        return material;
+    }
+
+    /**
+     * Returns the materials which the hits on the model can give, to compile the scene.
+     * Models made of other models override it.
+     * @return
+     */
+    public List<Material> getMaterials() {
+        return Collections.singletonList(material);
+    }
+
     /**
      * Returns the material diffuse color.
      * @return
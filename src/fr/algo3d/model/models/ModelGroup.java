@@ -0,0 +1,178 @@
+package fr.algo3d.model.models;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
+import fr.algo3d.model.accel.BVH;
+import fr.algo3d.model.accel.FlatBVH;
+import fr.algo3d.model.accel.Hit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class to represent a group of models, like a tree made of spheres, seen as a single model with its own bounding volume hierarchy.
+ * A group can be shared by many instances, each placing it in the scene with its own transform,
+ * so the group and its hierarchy are stored only once.
+ * The group has no material : the hits give the model of the group which was hit.
+ */
+public class ModelGroup extends Model {
+
+    /**
+     * Stacks of the threads traversing the hierarchy of a group, the traversal of the scene uses its own stack.
+     */
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[FlatBVH.STACK_SIZE]);
+
+    /**
+     * Models of the group.
+     */
+    private final List<Model> models;
+
+    /**
+     * Hierarchy over the models of the group.
+     */
+    private BVH bvh;
+
+    /**
+     * Distinct materials of the models of the group.
+     */
+    private final List<Material> materials;
+
+    /**
+     * Bounding box of the group, null if one of its models is unbounded.
+     */
+    private AABB box;
+
+    /**
+     * Constructor.
+     * The models of the groups given are added to the group, so that the group has a single hierarchy.
+     * @param models models of the group, which can not be instances
+     */
+    public ModelGroup(List<Model> models) {
+        super(null);
+        List<Model> all = new ArrayList<>();
+        for (Model m : models) {
+            if (m instanceof Instance)
+                throw new IllegalArgumentException("The instances can not be nested in a group");
+            if (m instanceof ModelGroup)
+                all.addAll(((ModelGroup) m).models);
+            else all.add(m);
+        }
+        if (all.isEmpty())
+            throw new IllegalArgumentException("Empty group");
+        this.models = Collections.unmodifiableList(all);
+        Set<Material> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Model m : all)
+            distinct.addAll(m.getMaterials());
+        this.materials = Collections.unmodifiableList(new ArrayList<>(distinct));
+        this.box = bounds(all);
+        this.bvh = new BVH(this.models);
+    }
+
+    /**
+     * Returns the box enclosing the boxes of models.
+     * @param models
+     * @return the box or null if one of the models is unbounded
+     */
+    private static AABB bounds(List<Model> models) {
+        AABB bounds = new AABB();
+        for (Model m : models) {
+            AABB b = m.getBoundingBox();
+            if (b == null)
+                return null;
+            bounds.extend(b);
+        }
+        return bounds;
+    }
+
+    /**
+     * Updates the hierarchy and the box of the group after some of its models have moved.
+     * The hierarchy is refitted, and built again if its cost exceeds BVH.DEFAULT_REBUILD_THRESHOLD times its cost when it was built.
+     * Must be called before refitting the scenes containing instances of the group.
+     * @return true if the hierarchy was built again
+     */
+    public boolean refit() {
+        box = bounds(models);
+        bvh.refit();
+        if (!bvh.isDegraded(BVH.DEFAULT_REBUILD_THRESHOLD))
+            return false;
+        bvh = new BVH(models);
+        return true;
+    }
+
+    /**
+     * Returns the models of the group.
+     * @return
+     */
+    public List<Model> getModels() {
+        return models;
+    }
+
+    /**
+     * Returns the distinct materials of the models of the group.
+     * @return
+     */
+    @Override
+    public List<Material> getMaterials() {
+        return materials;
+    }
+
+    /**
+     * Returns the closest intersection lambda.
+     * @param P
+     * @param v
+     * @return the closest interesection lambda or -1 if there is none.
+     */
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        Hit hit = new Hit();
+        return intersect(P, v, 0, hit) ? hit.lambda : -1;
+    }
+
+    /**
+     * Updates the hit with the closest model of the group intersected between lambdaMin and hit.lambda.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    @Override
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        return bvh.intersect(P, v, lambdaMin, hit, STACKS.get());
+    }
+
+    /**
+     * Returns true if a model of the group intersects the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return
+     */
+    @Override
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        return bvh.findOccluder(P, v, maxDist, STACKS.get()) != null;
+    }
+
+    /**
+     * A group has no normal, the hits give the model of the group which was hit.
+     * @param i
+     * @return
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i) {
+        throw new UnsupportedOperationException("The normal of a group is the normal of the model hit");
+    }
+
+    /**
+     * Returns the bounding box of the group.
+     * @return the bounding box or null if one of the models is unbounded.
+     */
+    @Override
+    public AABB getBoundingBox() {
+        return box == null ? null : new AABB(box.min, box.max);
+    }
+}
@@ -17,6 +17,11 @@ public class Plane extends Model{
      */
     private Vec3f A;
 
+    /**
+     * Dot product of the normal and a point of the plane.
+     */
+    private final float offset;
+
     /**
      * Constructor to make a plane with a normal and a point.
      * @param material
@@ -27,6 +32,7 @@ public class Plane extends Model{
         super(material);
         this.normal = normal.normalize();
         this.A = A;
+        this.offset = this.normal.dotProduct(A);
     }
 
     /**
@@ -40,6 +46,7 @@ public class Plane extends Model{
         this.normal = normal.normalize();
         this.A = new Vec3f();
         this.A.setScale(distance,normal);
+        this.offset = this.normal.dotProduct(this.A);
     }
 
 
@@ -51,10 +58,9 @@ public class Plane extends Model{
      */
     @Override
     public float getIntersection(Vec3f P, Vec3f v) {
-        Vec3f tmp = new Vec3f();
-        tmp.setSub(P,A);
-        if (v.dotProduct(normal) != 0)
-            return -tmp.dotProduct(normal)/v.dotProduct(normal);
+        float vn = v.dotProduct(normal);
+        if (vn != 0)
+            return -(P.x*normal.x + P.y*normal.y + P.z*normal.z - offset)/vn;
         else return -1;
     }
 
@@ -67,4 +73,15 @@ public class Plane extends Model{
     public Vec3f getNormal(Vec3f i) {
         return normal;
     }
+
+    /**
+     * Puts the normal at the point i into the vector normal.
+     * @param i
+     * @param normal
+     * @return normal
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i, Vec3f normal) {
+        return normal.set(this.normal);
+    }
 }
@@ -1,6 +1,7 @@
 package fr.algo3d.model.models;
 
 import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
 
 /**
  * Class to represent spheres.
@@ -17,6 +18,11 @@ public class Sphere extends Model{
      */
     private float radius;
 
+    /**
+     * Square of the radius.
+     */
+    private final float radius2;
+
     /**
      * Constructor.
      * @param material
@@ -27,6 +33,32 @@ public class Sphere extends Model{
         super(material);
         this.origin = origin;
         this.radius = radius;
+        this.radius2 = radius * radius;
+    }
+
+    /**
+     * Returns the center.
+     * @return
+     */
+    public Vec3f getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Moves the sphere, for an animation.
+     * The hierarchies containing the sphere must be refitted before the next render.
+     * @param origin new center
+     */
+    public void setOrigin(Vec3f origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Returns the radius.
+     * @return
+     */
+    public float getRadius() {
+        return radius;
     }
 
     /**
@@ -38,10 +70,11 @@ public class Sphere extends Model{
     @Override
     public float getIntersection(Vec3f P, Vec3f v) {
         float a = v.lengthSquare();
-        Vec3f cp = new Vec3f();
-        cp.setSub(P,origin);
-        float b = 2 * (v.dotProduct(cp));
-        float c  = (cp.lengthSquare() - radius * radius);
+        float cpx = P.x - origin.x;
+        float cpy = P.y - origin.y;
+        float cpz = P.z - origin.z;
+        float b = 2 * (v.x*cpx + v.y*cpy + v.z*cpz);
+        float c  = (cpx*cpx + cpy*cpy + cpz*cpz - radius2);
         float delta = b*b - 4 * a * c;
         if (delta > 0) {
             float lambda1 = (float) ((-b - Math.sqrt(delta)) / (2 * a));
@@ -59,6 +92,30 @@ public class Sphere extends Model{
         } else return -1;
     }
 
+    /**
+     * Returns true if the ray defined by P and v intersects the sphere with a lambda between 0 and maxDist (both excluded).
+     * Rejects a sphere behind P or missed by the ray before any square root.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return
+     */
+    @Override
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        float cpx = P.x - origin.x;
+        float cpy = P.y - origin.y;
+        float cpz = P.z - origin.z;
+        float b = 2 * (v.x*cpx + v.y*cpy + v.z*cpz);
+        float c  = (cpx*cpx + cpy*cpy + cpz*cpz - radius2);
+        if (b > 0 && c > 0) // P outside and the sphere behind it : both roots are negative
+            return false;
+        float a = v.lengthSquare();
+        if (b*b - 4 * a * c < 0)
+            return false;
+        float lambda = getIntersection(P, v);
+        return lambda > 0 && lambda < maxDist;
+    }
+
     /**
      * Returns the normal at the point i.
      * @param i
@@ -71,4 +128,24 @@ public class Sphere extends Model{
         return tmp.normalize();
     }
 
+    /**
+     * Puts the normal at the point i into the vector normal.
+     * @param i
+     * @param normal
+     * @return normal
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i, Vec3f normal) {
+        return normal.setSub(i,origin).normalize();
+    }
+
+    /**
+     * Returns the bounding box of the sphere.
+     * @return
+     */
+    @Override
+    public AABB getBoundingBox() {
+        return new AABB(new Vec3f(origin.x-radius,origin.y-radius,origin.z-radius),
+                new Vec3f(origin.x+radius,origin.y+radius,origin.z+radius));
+    }
 }
@@ -0,0 +1,683 @@
+package fr.algo3d.model.models;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
+import fr.algo3d.model.accel.BVHBuilder;
+import fr.algo3d.model.accel.FlatBVH;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.accel.PackedSpheres;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class to represent a big set of spheres stored outside of the Java heap.
+ * The centers, the radii, the material indices and the nodes of the hierarchy of the set are stored in direct buffers,
+ * or in buffers mapped from a file : opening a file maps it without reading it, the pages are loaded when the rays reach them.
+ * A sphere costs 18 bytes plus its share of the nodes, about 40 bytes in all, instead of the objects of a Sphere, its center and its material.
+ * The spheres are sorted in the order of the leaves of the hierarchy.
+ * The set has no material : the hits give a model per material of the set, whose normal is the normal of the sphere hit.
+ * Each section of the storage must fit in a buffer, so a set has at most MAX_SPHERES spheres.
+ * <p>
+ * Layout of a file, in little endian : header of HEADER_SIZE bytes (MAGIC, VERSION, number of spheres, number of nodes, number of materials),
+ * then x, y, z, radius of each sphere, the bounds of the nodes (6 floats per node), the nodes (2 ints per node, like FlatBVH)
+ * and the material index of each sphere on 16 bits.
+ */
+public class SphereSet extends Model {
+
+    /**
+     * First 4 bytes of a file of spheres.
+     */
+    public static final int MAGIC = 0x53504831;
+
+    /**
+     * Version of the layout of the files.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the header of a file.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * Greatest number of spheres of a set, whose coordinates must fit in a buffer.
+     */
+    public static final int MAX_SPHERES = Integer.MAX_VALUE / 16;
+
+    /**
+     * Greatest number of materials of a set, whose indices are stored on 16 bits.
+     */
+    public static final int MAX_MATERIALS = 1 << 16;
+
+    /**
+     * Stacks of the threads traversing the hierarchy of a set, the traversal of the scene uses its own stack.
+     */
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[FlatBVH.STACK_SIZE]);
+
+    /**
+     * Center and radius of the spheres, 4 floats per sphere, in leaf order.
+     */
+    private final FloatBuffer spheres;
+
+    /**
+     * Bounds of the nodes, 6 floats per node.
+     */
+    private final FloatBuffer bounds;
+
+    /**
+     * Content of the nodes, 2 ints per node, with the encoding of FlatBVH.
+     */
+    private final IntBuffer nodes;
+
+    /**
+     * Index of the material of each sphere, in leaf order.
+     */
+    private final CharBuffer materialIndices;
+
+    /**
+     * Number of spheres.
+     */
+    private final int sphereCount;
+
+    /**
+     * Number of nodes.
+     */
+    private final int nodeCount;
+
+    /**
+     * Models given to the hits, one per material.
+     */
+    private final Part[] parts;
+
+    /**
+     * Constructor.
+     * @param materials
+     * @param sphereCount
+     * @param nodeCount
+     * @param sections spheres, bounds, nodes and material indices
+     */
+    private SphereSet(Material[] materials, int sphereCount, int nodeCount, ByteBuffer[] sections) {
+        super(null);
+        this.sphereCount = sphereCount;
+        this.nodeCount = nodeCount;
+        spheres = sections[0].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        bounds = sections[1].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        nodes = sections[2].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        materialIndices = sections[3].order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+        parts = new Part[materials.length];
+        for (int k = 0; k < materials.length; k++)
+            parts[k] = new Part(materials[k]);
+    }
+
+    /**
+     * Opens a file written by Builder.build(Path), mapping it in memory read only.
+     * The mapping stays valid until the set is garbage collected.
+     * @param path
+     * @param materials materials of the set, indexed like when the set was built
+     * @return
+     * @throws IOException if the file can not be read or is not a valid file of spheres
+     */
+    public static SphereSet open(Path path, Material... materials) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining())
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("Truncated header in " + path);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a file of spheres : " + path);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " in " + path);
+            int sphereCount = header.getInt();
+            int nodeCount = header.getInt();
+            int materialCount = header.getInt();
+            if (sphereCount <= 0 || sphereCount > MAX_SPHERES || nodeCount <= 0 || nodeCount > 2 * sphereCount - 1
+                    || materialCount <= 0 || materialCount > MAX_MATERIALS)
+                throw new IOException("Invalid header in " + path);
+            if (materials.length < materialCount)
+                throw new IllegalArgumentException(materialCount + " materials needed by " + path + ", " + materials.length + " given");
+            long[] offsets = offsets(sphereCount, nodeCount);
+            if (channel.size() < offsets[4])
+                throw new IOException("Truncated file " + path);
+            ByteBuffer[] sections = new ByteBuffer[4];
+            for (int k = 0; k < 4; k++)
+                sections[k] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[k], offsets[k+1] - offsets[k]);
+            return new SphereSet(materials, sphereCount, nodeCount, sections);
+        }
+    }
+
+    /**
+     * Returns the offsets of the sections of a file, followed by its size.
+     * @param sphereCount
+     * @param nodeCount
+     * @return
+     */
+    private static long[] offsets(int sphereCount, int nodeCount) {
+        long[] offsets = new long[5];
+        offsets[0] = HEADER_SIZE;
+        offsets[1] = offsets[0] + 16L * sphereCount;
+        offsets[2] = offsets[1] + 24L * nodeCount;
+        offsets[3] = offsets[2] + 8L * nodeCount;
+        offsets[4] = offsets[3] + 2L * sphereCount;
+        for (int k = 0; k < 4; k++)
+            if (offsets[k+1] - offsets[k] > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Too many spheres : " + sphereCount);
+        return offsets;
+    }
+
+    /**
+     * Returns the number of spheres.
+     * @return
+     */
+    public int getSphereCount() {
+        return sphereCount;
+    }
+
+    /**
+     * Returns the number of nodes of the hierarchy.
+     * @return
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of bytes used by the set outside of the heap.
+     * @return
+     */
+    public long getStorageSize() {
+        return offsets(sphereCount, nodeCount)[4] - HEADER_SIZE;
+    }
+
+    /**
+     * Returns the center of a sphere.
+     * @param s index of the sphere, in leaf order
+     * @return
+     */
+    public Vec3f getCenter(int s) {
+        return new Vec3f(spheres.get(4*s), spheres.get(4*s+1), spheres.get(4*s+2));
+    }
+
+    /**
+     * Returns the radius of a sphere.
+     * @param s index of the sphere, in leaf order
+     * @return
+     */
+    public float getRadius(int s) {
+        return spheres.get(4*s+3);
+    }
+
+    /**
+     * Returns the material of a sphere.
+     * @param s index of the sphere, in leaf order
+     * @return
+     */
+    public Material getMaterial(int s) {
+        return parts[materialIndices.get(s)].getMaterial();
+    }
+
+    /**
+     * Returns the materials of the set.
+     * @return
+     */
+    @Override
+    public List<Material> getMaterials() {
+        List<Material> materials = new ArrayList<>(parts.length);
+        for (Part part : parts)
+            materials.add(part.getMaterial());
+        return materials;
+    }
+
+    /**
+     * Slab test between a ray and the box of a node, like FlatBVH.intersectBox.
+     */
+    private boolean intersectBox(int node, float px, float py, float pz, float invX, float invY, float invZ, float tMin, float tMax) {
+        int o = 6*node;
+        float t1 = (bounds.get(o) - px) * invX;
+        float t2 = (bounds.get(o+3) - px) * invX;
+        float near = Math.min(t1,t2);
+        float far = Math.max(t1,t2);
+        t1 = (bounds.get(o+1) - py) * invY;
+        t2 = (bounds.get(o+4) - py) * invY;
+        near = Math.max(near,Math.min(t1,t2));
+        far = Math.min(far,Math.max(t1,t2));
+        t1 = (bounds.get(o+2) - pz) * invZ;
+        t2 = (bounds.get(o+5) - pz) * invZ;
+        near = Math.max(near,Math.min(t1,t2));
+        far = Math.min(far,Math.max(t1,t2));
+        return near <= far && far >= tMin && near <= tMax;
+    }
+
+    /**
+     * Returns the closest intersection lambda.
+     * @param P
+     * @param v
+     * @return the closest interesection lambda or -1 if there is none.
+     */
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        Hit hit = new Hit();
+        return intersect(P, v, 0, hit) ? hit.lambda : -1;
+    }
+
+    /**
+     * Updates the hit with the closest sphere intersected between lambdaMin and hit.lambda, traversing the hierarchy of the set.
+     * Every lambda is exactly the one of Sphere.getIntersection.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    @Override
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        float a = v.lengthSquare();
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        float invX = FlatBVH.inverse(vx);
+        float invY = FlatBVH.inverse(vy);
+        float invZ = FlatBVH.inverse(vz);
+        int[] stack = STACKS.get();
+        boolean found = false;
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (intersectBox(node, px, py, pz, invX, invY, invZ, lambdaMin, hit.lambda)) {
+                int count = nodes.get(2*node+1);
+                if (count > 0) {
+                    int first = nodes.get(2*node);
+                    for (int s = first; s < first + count; s++) {
+                        int o = 4*s;
+                        float cpx = px - spheres.get(o);
+                        float cpy = py - spheres.get(o+1);
+                        float cpz = pz - spheres.get(o+2);
+                        float r = spheres.get(o+3);
+                        float b = 2 * (vx*cpx + vy*cpy + vz*cpz);
+                        float c = (cpx*cpx + cpy*cpy + cpz*cpz - r*r);
+                        float delta = b*b - 4 * a * c;
+                        if (delta < 0)
+                            continue;
+                        float lambda = PackedSpheres.roots(a, b, delta);
+                        if (lambda > lambdaMin && lambda < hit.lambda) {
+                            hit.lambda = lambda;
+                            hit.model = parts[materialIndices.get(s)];
+                            hit.primitive = s;
+                            hit.instance = null;
+                            found = true;
+                        }
+                    }
+                } else {
+                    int axis = -count - 1;
+                    float dir = axis == 0 ? vx : axis == 1 ? vy : vz;
+                    if (dir < 0) {
+                        stack[sp++] = node + 1;
+                        node = nodes.get(2*node);
+                    } else {
+                        stack[sp++] = nodes.get(2*node);
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return found;
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * Returns true if a sphere intersects the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * Stops at the first sphere found.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return
+     */
+    @Override
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        float a = v.lengthSquare();
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        float invX = FlatBVH.inverse(vx);
+        float invY = FlatBVH.inverse(vy);
+        float invZ = FlatBVH.inverse(vz);
+        int[] stack = STACKS.get();
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (intersectBox(node, px, py, pz, invX, invY, invZ, 0, maxDist)) {
+                int count = nodes.get(2*node+1);
+                if (count > 0) {
+                    int first = nodes.get(2*node);
+                    for (int s = first; s < first + count; s++) {
+                        int o = 4*s;
+                        float cpx = px - spheres.get(o);
+                        float cpy = py - spheres.get(o+1);
+                        float cpz = pz - spheres.get(o+2);
+                        float r = spheres.get(o+3);
+                        float b = 2 * (vx*cpx + vy*cpy + vz*cpz);
+                        float c = (cpx*cpx + cpy*cpy + cpz*cpz - r*r);
+                        if (b > 0 && c > 0)
+                            continue;
+                        float delta = b*b - 4 * a * c;
+                        if (delta < 0)
+                            continue;
+                        float lambda = PackedSpheres.roots(a, b, delta);
+                        if (lambda > 0 && lambda < maxDist)
+                            return true;
+                    }
+                } else {
+                    stack[sp++] = nodes.get(2*node);
+                    node = node + 1;
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return false;
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * A set has no single normal at a point, the sphere hit is needed.
+     * @param i
+     * @return
+     * @throws UnsupportedOperationException always, use getNormal(i, primitive, normal)
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i) {
+        throw new UnsupportedOperationException("The normal of a set of spheres needs the sphere hit");
+    }
+
+    /**
+     * Puts the normal of the sphere hit into the vector normal.
+     * @param i
+     * @param primitive index of the sphere hit, given by the Hit
+     * @param normal
+     * @return normal
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i, int primitive, Vec3f normal) {
+        int o = 4*primitive;
+        return normal.set(i.x - spheres.get(o), i.y - spheres.get(o+1), i.z - spheres.get(o+2)).normalize();
+    }
+
+    /**
+     * Returns the bounding box of the set, the box of the root of its hierarchy.
+     * @return
+     */
+    @Override
+    public AABB getBoundingBox() {
+        return new AABB(new Vec3f(bounds.get(0), bounds.get(1), bounds.get(2)),
+                new Vec3f(bounds.get(3), bounds.get(4), bounds.get(5)));
+    }
+
+    /**
+     * Model given to the hits for the spheres of a material.
+     * It gives the material and the normal of the sphere hit, but is not part of any scene.
+     */
+    private class Part extends Model {
+
+        Part(Material material) {
+            super(material);
+        }
+
+        /**
+         * A part is only given by the hits, it is intersected through its set.
+         * @param P
+         * @param v
+         * @return
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public float getIntersection(Vec3f P, Vec3f v) {
+            throw new UnsupportedOperationException("The spheres are intersected through their set");
+        }
+
+        /**
+         * The normal depends on the sphere hit, given by the hit.
+         * @param i
+         * @return
+         * @throws UnsupportedOperationException always, use getNormal(i, primitive, normal)
+         */
+        @Override
+        public Vec3f getNormal(Vec3f i) {
+            throw new UnsupportedOperationException("The normal of a set of spheres needs the sphere hit");
+        }
+
+        @Override
+        public Vec3f getNormal(Vec3f i, int primitive, Vec3f normal) {
+            return SphereSet.this.getNormal(i, primitive, normal);
+        }
+    }
+
+    /**
+     * Gathers spheres outside of the heap, then builds the hierarchy of the set.
+     * The construction of the hierarchy needs the boxes of the spheres in the heap for a moment,
+     * the set built does not use the heap anymore.
+     */
+    public static class Builder {
+
+        private final Material[] materials;
+
+        /**
+         * Center and radius of the spheres added, 4 floats per sphere.
+         */
+        private ByteBuffer data;
+
+        /**
+         * Material index of the spheres added.
+         */
+        private ByteBuffer materialData;
+
+        private int count;
+
+        /**
+         * Constructor.
+         * @param materials materials of the set, the spheres give the index of their material in this array
+         */
+        public Builder(Material... materials) {
+            if (materials.length == 0 || materials.length > MAX_MATERIALS)
+                throw new IllegalArgumentException("Invalid number of materials : " + materials.length);
+            this.materials = materials.clone();
+            data = ByteBuffer.allocateDirect(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            materialData = ByteBuffer.allocateDirect(2 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Adds a sphere.
+         * @param center
+         * @param radius
+         * @param material index of the material in the materials of the builder
+         * @return the builder
+         */
+        public Builder add(Vec3f center, float radius, int material) {
+            if (material < 0 || material >= materials.length)
+                throw new IllegalArgumentException("Invalid material index : " + material);
+            if (count == MAX_SPHERES)
+                throw new IllegalStateException("Too many spheres");
+            if (16 * (count + 1) > data.capacity()) {
+                int capacity = (int) Math.min(2L * data.capacity() / 16, MAX_SPHERES);
+                data = grow(data, 16 * capacity, 16 * count);
+                materialData = grow(materialData, 2 * capacity, 2 * count);
+            }
+            int o = 16*count;
+            data.putFloat(o, center.x);
+            data.putFloat(o+4, center.y);
+            data.putFloat(o+8, center.z);
+            data.putFloat(o+12, radius);
+            materialData.putChar(2*count, (char) material);
+            count++;
+            return this;
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int capacity, int used) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer src = buffer.duplicate();
+            src.clear().limit(used);
+            grown.put(src).clear();
+            return grown;
+        }
+
+        /**
+         * Returns the number of spheres added.
+         * @return
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Builds the set in direct buffers.
+         * @return
+         */
+        public SphereSet build() {
+            FlatBVH tree = buildTree();
+            long[] offsets = offsets(count, tree.nodeCount);
+            ByteBuffer[] sections = new ByteBuffer[4];
+            for (int k = 0; k < 4; k++)
+                sections[k] = ByteBuffer.allocateDirect((int) (offsets[k+1] - offsets[k]));
+            write(tree, sections);
+            return new SphereSet(materials, count, tree.nodeCount, sections);
+        }
+
+        /**
+         * Builds the set in a file mapped in memory, which can be opened again later by SphereSet.open.
+         * The materials are not written, they must be given again to open the file.
+         * @param path
+         * @return
+         * @throws IOException
+         */
+        public SphereSet build(Path path) throws IOException {
+            FlatBVH tree = buildTree();
+            long[] offsets = offsets(count, tree.nodeCount);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(tree.nodeCount).putInt(materials.length).clear();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                ByteBuffer[] sections = new ByteBuffer[4];
+                for (int k = 0; k < 4; k++)
+                    sections[k] = channel.map(FileChannel.MapMode.READ_WRITE, offsets[k], offsets[k+1] - offsets[k]);
+                write(tree, sections);
+                for (ByteBuffer section : sections)
+                    ((MappedByteBuffer) section).force();
+                return new SphereSet(materials, count, tree.nodeCount, sections);
+            }
+        }
+
+        /**
+         * Builds the hierarchy over the boxes of the spheres added.
+         * @return
+         */
+        private FlatBVH buildTree() {
+            if (count == 0)
+                throw new IllegalStateException("Empty set of spheres");
+            float[] primBounds = new float[6*count];
+            for (int s = 0; s < count; s++) {
+                float x = data.getFloat(16*s), y = data.getFloat(16*s+4), z = data.getFloat(16*s+8), r = data.getFloat(16*s+12);
+                int o = 6*s;
+                primBounds[o] = x - r;
+                primBounds[o+1] = y - r;
+                primBounds[o+2] = z - r;
+                primBounds[o+3] = x + r;
+                primBounds[o+4] = y + r;
+                primBounds[o+5] = z + r;
+            }
+            return collapse(BVHBuilder.build(primBounds, count, true));
+        }
+
+        /**
+         * Turns the subtrees of at most BVHBuilder.MAX_LEAF_SIZE spheres into leaves.
+         * The nodes are most of the storage of a set, the bigger leaves almost halve their number.
+         * @param tree
+         * @return
+         */
+        private static FlatBVH collapse(FlatBVH tree) {
+            int[] sizes = new int[tree.nodeCount];
+            countSpheres(tree, 0, sizes);
+            float[] bounds = new float[tree.bounds.length];
+            int[] nodes = new int[tree.nodes.length];
+            int nodeCount = copy(tree, 0, sizes, bounds, nodes, 0);
+            return new FlatBVH(Arrays.copyOf(bounds, 6*nodeCount), Arrays.copyOf(nodes, 2*nodeCount), nodeCount, tree.primIndices);
+        }
+
+        /**
+         * Counts the spheres of each subtree.
+         * @param tree
+         * @param node
+         * @param sizes
+         * @return number of spheres of the subtree of the node
+         */
+        private static int countSpheres(FlatBVH tree, int node, int[] sizes) {
+            int count = tree.nodes[2*node+1];
+            if (count <= 0)
+                count = countSpheres(tree, node + 1, sizes) + countSpheres(tree, tree.nodes[2*node], sizes);
+            sizes[node] = count;
+            return count;
+        }
+
+        /**
+         * Copies a subtree in depth first order, small subtrees becoming leaves.
+         * The spheres of a subtree are contiguous in the leaf order, starting at the first sphere of its leftmost leaf.
+         * @param tree
+         * @param node
+         * @param sizes
+         * @param bounds
+         * @param nodes
+         * @param index
+         * @return index following the subtree copied
+         */
+        private static int copy(FlatBVH tree, int node, int[] sizes, float[] bounds, int[] nodes, int index) {
+            System.arraycopy(tree.bounds, 6*node, bounds, 6*index, 6);
+            if (tree.isLeaf(node) || sizes[node] <= BVHBuilder.MAX_LEAF_SIZE) {
+                int first = node;
+                while (!tree.isLeaf(first))
+                    first++;
+                nodes[2*index] = tree.nodes[2*first];
+                nodes[2*index+1] = sizes[node];
+                return index + 1;
+            }
+            int right = copy(tree, node + 1, sizes, bounds, nodes, index + 1);
+            nodes[2*index] = right;
+            nodes[2*index+1] = tree.nodes[2*node+1];
+            return copy(tree, tree.nodes[2*node], sizes, bounds, nodes, right);
+        }
+
+        /**
+         * Writes the spheres in leaf order and the hierarchy in the sections.
+         * @param tree
+         * @param sections spheres, bounds, nodes and material indices
+         */
+        private void write(FlatBVH tree, ByteBuffer[] sections) {
+            ByteBuffer spheres = sections[0].order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer bounds = sections[1].order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer nodes = sections[2].order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer materialIndices = sections[3].order(ByteOrder.LITTLE_ENDIAN);
+            for (int k = 0; k < count; k++) {
+                int s = tree.primIndices[k];
+                for (int c = 0; c < 16; c += 4)
+                    spheres.putFloat(16*k + c, data.getFloat(16*s + c));
+                materialIndices.putChar(2*k, materialData.getChar(2*s));
+            }
+            for (int i = 0; i < 6 * tree.nodeCount; i++)
+                bounds.putFloat(4*i, tree.bounds[i]);
+            for (int i = 0; i < 2 * tree.nodeCount; i++)
+                nodes.putInt(4*i, tree.nodes[i]);
+        }
+    }
+}
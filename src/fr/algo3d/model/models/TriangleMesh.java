@@ -0,0 +1,413 @@
+package fr.algo3d.model.models;
+
+import fr.algo3d.model.Material;
+import fr.algo3d.model.accel.AABB;
+import fr.algo3d.model.accel.BVHBuilder;
+import fr.algo3d.model.accel.FlatBVH;
+import fr.algo3d.model.accel.Hit;
+
+/**
+ * Class to represent triangle meshes.
+ * The vertices and the indices of the triangles are stored in flat arrays of primitives,
+ * and the triangles are sorted in the order of the leaves of the own bounding volume hierarchy of the mesh.
+ * To save memory, the coordinates of the vertices can be quantized on 16 bits in the bounding box of the mesh,
+ * and the indices stored on 16 bits if the mesh has at most 65536 vertices.
+ * The normal is the normal of the triangle hit, so the hits must give the primitive to getNormal.
+ */
+public class TriangleMesh extends Model {
+
+    /**
+     * Greatest number of vertices of a mesh whose indices can be stored on 16 bits.
+     */
+    public static final int MAX_COMPACT_VERTICES = 1 << 16;
+
+    /**
+     * Greatest value of a quantized coordinate.
+     */
+    private static final float QUANTIZATION_STEPS = 65535.f;
+
+    /**
+     * Stacks of the threads traversing the hierarchy of a mesh, the traversal of the scene uses its own stack.
+     */
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[FlatBVH.STACK_SIZE]);
+
+    /**
+     * Coordinates of the vertices, 3 floats per vertex, null if they are quantized.
+     */
+    private final float[] positions;
+
+    /**
+     * Quantized coordinates of the vertices, 3 per vertex, null if they are not quantized.
+     */
+    private final char[] quantizedPositions;
+
+    /**
+     * Corner of the bounding box of the mesh and size of a quantization step on each axis.
+     */
+    private final float offsetX, offsetY, offsetZ, stepX, stepY, stepZ;
+
+    /**
+     * Indices of the vertices of the triangles, 3 ints per triangle, null if they are stored on 16 bits.
+     */
+    private final int[] indices;
+
+    /**
+     * Indices of the vertices of the triangles on 16 bits, null if they are stored on 32 bits.
+     */
+    private final char[] compactIndices;
+
+    /**
+     * Number of triangles.
+     */
+    private final int triangleCount;
+
+    /**
+     * Hierarchy over the triangles.
+     */
+    private final FlatBVH tree;
+
+    /**
+     * Bounding box of the mesh.
+     */
+    private final AABB box;
+
+    /**
+     * Constructor storing the coordinates and the indices on 32 bits.
+     * @param material
+     * @param positions coordinates of the vertices, 3 floats per vertex
+     * @param indices indices of the vertices of the triangles, 3 ints per triangle
+     */
+    public TriangleMesh(Material material, float[] positions, int[] indices) {
+        this(material, positions, indices, false, false);
+    }
+
+    /**
+     * Constructor.
+     * The arrays given are not kept by the mesh.
+     * @param material
+     * @param positions coordinates of the vertices, 3 floats per vertex
+     * @param indices indices of the vertices of the triangles, 3 ints per triangle
+     * @param quantized true to store the coordinates on 16 bits in the bounding box of the mesh
+     * @param compact true to store the indices on 16 bits, only used if the mesh has at most MAX_COMPACT_VERTICES vertices
+     */
+    public TriangleMesh(Material material, float[] positions, int[] indices, boolean quantized, boolean compact) {
+        super(material);
+        int vertexCount = positions.length / 3;
+        if (positions.length % 3 != 0 || indices.length % 3 != 0 || indices.length == 0)
+            throw new IllegalArgumentException("Invalid mesh : " + positions.length + " coordinates and " + indices.length + " indices");
+        for (int index : indices)
+            if (index < 0 || index >= vertexCount)
+                throw new IllegalArgumentException("Invalid vertex index : " + index);
+        triangleCount = indices.length / 3;
+
+        AABB bounds = new AABB();
+        Vec3f p = new Vec3f();
+        for (int v = 0; v < vertexCount; v++)
+            bounds.extend(p.set(positions[3*v], positions[3*v+1], positions[3*v+2]));
+        offsetX = bounds.min.x;
+        offsetY = bounds.min.y;
+        offsetZ = bounds.min.z;
+        stepX = (bounds.max.x - bounds.min.x) / QUANTIZATION_STEPS;
+        stepY = (bounds.max.y - bounds.min.y) / QUANTIZATION_STEPS;
+        stepZ = (bounds.max.z - bounds.min.z) / QUANTIZATION_STEPS;
+        if (quantized) {
+            this.positions = null;
+            quantizedPositions = new char[positions.length];
+            for (int v = 0; v < vertexCount; v++) {
+                quantizedPositions[3*v] = quantize(positions[3*v], offsetX, stepX);
+                quantizedPositions[3*v+1] = quantize(positions[3*v+1], offsetY, stepY);
+                quantizedPositions[3*v+2] = quantize(positions[3*v+2], offsetZ, stepZ);
+            }
+        } else {
+            this.positions = positions.clone();
+            quantizedPositions = null;
+        }
+
+        // the boxes of the triangles are computed from the stored vertices, so that they enclose the triangles tested
+        float[] primBounds = new float[6*triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            int o = 6*t;
+            primBounds[o] = primBounds[o+1] = primBounds[o+2] = Float.POSITIVE_INFINITY;
+            primBounds[o+3] = primBounds[o+4] = primBounds[o+5] = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < 3; k++) {
+                int v = indices[3*t+k];
+                extend(primBounds, o, x(v), y(v), z(v));
+            }
+        }
+        FlatBVH built = BVHBuilder.build(primBounds, triangleCount, true);
+
+        AABB stored = new AABB();
+        for (int t = 0; t < triangleCount; t++)
+            stored.extend(p.set(primBounds[6*t], primBounds[6*t+1], primBounds[6*t+2]))
+                    .extend(p.set(primBounds[6*t+3], primBounds[6*t+4], primBounds[6*t+5]));
+        box = stored;
+
+        // triangles in leaf order
+        if (compact && vertexCount <= MAX_COMPACT_VERTICES) {
+            this.indices = null;
+            compactIndices = new char[indices.length];
+            for (int t = 0; t < triangleCount; t++)
+                for (int k = 0; k < 3; k++)
+                    compactIndices[3*t+k] = (char) indices[3*built.primIndices[t]+k];
+        } else {
+            this.indices = new int[indices.length];
+            compactIndices = null;
+            for (int t = 0; t < triangleCount; t++)
+                for (int k = 0; k < 3; k++)
+                    this.indices[3*t+k] = indices[3*built.primIndices[t]+k];
+        }
+        // the leaves now give the triangles directly
+        tree = new FlatBVH(built.bounds, built.nodes, built.nodeCount, null);
+    }
+
+    private static char quantize(float c, float offset, float step) {
+        if (step == 0)
+            return 0;
+        return (char) Math.round(Math.min(Math.max((c - offset) / step, 0), QUANTIZATION_STEPS));
+    }
+
+    private static void extend(float[] bounds, int o, float x, float y, float z) {
+        bounds[o] = Math.min(bounds[o], x);
+        bounds[o+1] = Math.min(bounds[o+1], y);
+        bounds[o+2] = Math.min(bounds[o+2], z);
+        bounds[o+3] = Math.max(bounds[o+3], x);
+        bounds[o+4] = Math.max(bounds[o+4], y);
+        bounds[o+5] = Math.max(bounds[o+5], z);
+    }
+
+    /**
+     * Returns the number of triangles.
+     * @return
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * Returns the number of vertices.
+     * @return
+     */
+    public int getVertexCount() {
+        return (positions != null ? positions.length : quantizedPositions.length) / 3;
+    }
+
+    /**
+     * Returns true if the coordinates of the vertices are quantized on 16 bits.
+     * @return
+     */
+    public boolean isQuantized() {
+        return quantizedPositions != null;
+    }
+
+    /**
+     * Returns true if the indices are stored on 16 bits.
+     * @return
+     */
+    public boolean isCompact() {
+        return compactIndices != null;
+    }
+
+    private float x(int v) {
+        return positions != null ? positions[3*v] : offsetX + quantizedPositions[3*v] * stepX;
+    }
+
+    private float y(int v) {
+        return positions != null ? positions[3*v+1] : offsetY + quantizedPositions[3*v+1] * stepY;
+    }
+
+    private float z(int v) {
+        return positions != null ? positions[3*v+2] : offsetZ + quantizedPositions[3*v+2] * stepZ;
+    }
+
+    /**
+     * Returns the index of the vertex k of the triangle t.
+     * @param t
+     * @param k
+     * @return
+     */
+    private int vertex(int t, int k) {
+        return indices != null ? indices[3*t+k] : compactIndices[3*t+k];
+    }
+
+    /**
+     * Returns the lambda of the intersection of the ray with the triangle t, with the Moller-Trumbore algorithm.
+     * Both faces of the triangle are hit.
+     * @param t
+     * @param px
+     * @param py
+     * @param pz
+     * @param vx
+     * @param vy
+     * @param vz
+     * @return the lambda or -1 if there is no intersection.
+     */
+    private float intersectTriangle(int t, float px, float py, float pz, float vx, float vy, float vz) {
+        int i0 = vertex(t, 0), i1 = vertex(t, 1), i2 = vertex(t, 2);
+        float ax = x(i0), ay = y(i0), az = z(i0);
+        float e1x = x(i1) - ax, e1y = y(i1) - ay, e1z = z(i1) - az;
+        float e2x = x(i2) - ax, e2y = y(i2) - ay, e2z = z(i2) - az;
+        // q = v x e2
+        float qx = vy*e2z - vz*e2y;
+        float qy = vz*e2x - vx*e2z;
+        float qz = vx*e2y - vy*e2x;
+        float det = e1x*qx + e1y*qy + e1z*qz;
+        if (det == 0)
+            return -1;
+        float inv = 1 / det;
+        float tx = px - ax, ty = py - ay, tz = pz - az;
+        float u = (tx*qx + ty*qy + tz*qz) * inv;
+        if (u < 0 || u > 1)
+            return -1;
+        // q = t x e1
+        qx = ty*e1z - tz*e1y;
+        qy = tz*e1x - tx*e1z;
+        qz = tx*e1y - ty*e1x;
+        float w = (vx*qx + vy*qy + vz*qz) * inv;
+        if (w < 0 || u + w > 1)
+            return -1;
+        return (e2x*qx + e2y*qy + e2z*qz) * inv;
+    }
+
+    /**
+     * Returns the closest intersection lambda.
+     * @param P
+     * @param v
+     * @return the closest interesection lambda or -1 if there is none.
+     */
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        Hit hit = new Hit();
+        return intersect(P, v, 0, hit) ? hit.lambda : -1;
+    }
+
+    /**
+     * Updates the hit with the closest triangle intersected between lambdaMin and hit.lambda, traversing the hierarchy of the mesh.
+     * @param P
+     * @param v
+     * @param lambdaMin
+     * @param hit
+     * @return true if the hit was updated
+     */
+    @Override
+    public boolean intersect(Vec3f P, Vec3f v, float lambdaMin, Hit hit) {
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        float invX = FlatBVH.inverse(vx);
+        float invY = FlatBVH.inverse(vy);
+        float invZ = FlatBVH.inverse(vz);
+        int[] nodes = tree.nodes;
+        int[] stack = STACKS.get();
+        boolean found = false;
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (FlatBVH.intersectBox(tree.bounds, node, px, py, pz, invX, invY, invZ, lambdaMin, hit.lambda)) {
+                int count = nodes[2*node+1];
+                if (count > 0) {
+                    int first = nodes[2*node];
+                    for (int t = first; t < first + count; t++) {
+                        float lambda = intersectTriangle(t, px, py, pz, vx, vy, vz);
+                        if (lambda > lambdaMin && lambda < hit.lambda) {
+                            hit.lambda = lambda;
+                            hit.model = this;
+                            hit.primitive = t;
+                            hit.instance = null;
+                            found = true;
+                        }
+                    }
+                } else {
+                    int axis = -count - 1;
+                    float dir = axis == 0 ? vx : axis == 1 ? vy : vz;
+                    if (dir < 0) {
+                        stack[sp++] = node + 1;
+                        node = nodes[2*node];
+                    } else {
+                        stack[sp++] = nodes[2*node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return found;
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * Returns true if a triangle intersects the ray defined by P and v with a lambda between 0 and maxDist (both excluded).
+     * Stops at the first triangle found.
+     * @param P
+     * @param v
+     * @param maxDist
+     * @return
+     */
+    @Override
+    public boolean occluded(Vec3f P, Vec3f v, float maxDist) {
+        float px = P.x, py = P.y, pz = P.z;
+        float vx = v.x, vy = v.y, vz = v.z;
+        float invX = FlatBVH.inverse(vx);
+        float invY = FlatBVH.inverse(vy);
+        float invZ = FlatBVH.inverse(vz);
+        int[] nodes = tree.nodes;
+        int[] stack = STACKS.get();
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (FlatBVH.intersectBox(tree.bounds, node, px, py, pz, invX, invY, invZ, 0, maxDist)) {
+                int count = nodes[2*node+1];
+                if (count > 0) {
+                    int first = nodes[2*node];
+                    for (int t = first; t < first + count; t++) {
+                        float lambda = intersectTriangle(t, px, py, pz, vx, vy, vz);
+                        if (lambda > 0 && lambda < maxDist)
+                            return true;
+                    }
+                } else {
+                    stack[sp++] = nodes[2*node];
+                    node = node + 1;
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return false;
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * A mesh has no single normal at a point, the triangle hit is needed.
+     * @param i
+     * @return
+     * @throws UnsupportedOperationException always, use getNormal(i, primitive, normal)
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i) {
+        throw new UnsupportedOperationException("The normal of a mesh needs the triangle hit");
+    }
+
+    /**
+     * Puts the normal of the triangle hit into the vector normal.
+     * @param i
+     * @param primitive index of the triangle hit, given by the Hit
+     * @param normal
+     * @return normal
+     */
+    @Override
+    public Vec3f getNormal(Vec3f i, int primitive, Vec3f normal) {
+        int i0 = vertex(primitive, 0), i1 = vertex(primitive, 1), i2 = vertex(primitive, 2);
+        float ax = x(i0), ay = y(i0), az = z(i0);
+        float e1x = x(i1) - ax, e1y = y(i1) - ay, e1z = z(i1) - az;
+        float e2x = x(i2) - ax, e2y = y(i2) - ay, e2z = z(i2) - az;
+        return normal.set(e1y*e2z - e1z*e2y, e1z*e2x - e1x*e2z, e1x*e2y - e1y*e2x).normalize();
+    }
+
+    /**
+     * Returns the bounding box of the mesh.
+     * @return
+     */
+    @Override
+    public AABB getBoundingBox() {
+        return new AABB(new Vec3f(box.min), new Vec3f(box.max));
+    }
+}
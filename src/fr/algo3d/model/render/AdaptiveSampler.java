@@ -0,0 +1,379 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.CompiledScene;
+import fr.algo3d.model.models.Color;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Anti-aliasing tracing more samples only in the pixels which need them.
+ * Each pixel of a tile is first traced with a few samples, then batches of samples are added to the pixels whose color is uncertain :
+ * the standard error of the mean of their samples is above a threshold, or, after the first batch,
+ * their color differs from the color of a neighbour by more than a threshold.
+ * The neighbours outside the tile are traced with the samples of the first batch only to be compared,
+ * so the pixels along the borders of the tiles are refined like the others and the image does not depend on the tiling,
+ * for a few more rays in the first batch : about 4 / tile size of them for square tiles.
+ * A pixel stops as soon as a batch leaves it certain, or at the greatest number of samples.
+ * So the flat areas keep the first samples, while the silhouettes, the shadow edges and the reflections of the edges
+ * get up to the greatest number, for a fraction of the rays of the same number of samples everywhere.
+ * <p>
+ * The samples follow the 2D Sobol sequence, shifted so the first ones are centred on the point of the pixel :
+ * each prefix of 4^k samples has one sample in each cell of a 2^k x 2^k grid of the pixel, so each batch keeps the samples stratified.
+ * The samples are the same in every pixel, so rendering an image twice gives the same image.
+ * The statistics use the channels clamped to 1, as they are shown, the pixel being the mean of its samples.
+ * <p>
+ * A sampler is shared by the threads of a renderer, each one using its own scratch arrays.
+ */
+public class AdaptiveSampler {
+
+    /**
+     * Default number of samples of the first batch, and of the next batches.
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 4;
+
+    /**
+     * Default greatest number of samples of a pixel.
+     */
+    public static final int DEFAULT_MAX_SAMPLES = 16;
+
+    /**
+     * Default threshold of the standard error of the mean of a channel : a bit less than one step of a channel in the image.
+     */
+    public static final float DEFAULT_ERROR_THRESHOLD = 0.75f / 255;
+
+    /**
+     * Default threshold of the difference of a channel between two neighbours.
+     */
+    public static final float DEFAULT_CONTRAST_THRESHOLD = 0.1f;
+
+    /**
+     * Shift of the samples, centring the first four on the point of the pixel.
+     */
+    private static final float SHIFT = 0.125f;
+
+    /**
+     * Number of samples of the first batch and of the next batches.
+     */
+    private final int minSamples;
+
+    /**
+     * Greatest number of samples of a pixel.
+     */
+    private final int maxSamples;
+
+    /**
+     * Threshold of the standard error of the mean of a channel, above which a pixel gets more samples.
+     */
+    private final float errorThreshold;
+
+    /**
+     * Threshold of the difference of a channel between two neighbours, above which a pixel gets more samples.
+     */
+    private final float contrastThreshold;
+
+    /**
+     * Offset of each sample from the point of the pixel, 2 floats per sample, between -0.5 and 0.5.
+     */
+    private final float[] offsets;
+
+    /**
+     * Number of samples traced since the creation of the sampler.
+     */
+    private final LongAdder sampleCount = new LongAdder();
+
+    /**
+     * Statistics of the pixels of the tile of each thread.
+     */
+    private final ThreadLocal<Statistics> statistics = ThreadLocal.withInitial(Statistics::new);
+
+    /**
+     * Sums of the samples of the pixels of a tile and of its border of one pixel, row by row.
+     */
+    private static class Statistics {
+        /**
+         * Sum of the channels of the samples, 3 floats per pixel.
+         */
+        float[] sum = new float[0];
+        /**
+         * Sum of the channels clamped to 1 of the samples, 3 floats per pixel.
+         */
+        float[] sumShown = new float[0];
+        /**
+         * Sum of the squares of the channels clamped to 1 of the samples, 3 floats per pixel.
+         */
+        float[] sumSquare = new float[0];
+        /**
+         * Number of samples of each pixel, 0 for the pixels of the border outside the image.
+         */
+        int[] count = new int[0];
+        /**
+         * True for the pixels getting the next batch of samples.
+         */
+        boolean[] refine = new boolean[0];
+
+        void clear(int pixels) {
+            if (count.length < pixels) {
+                sum = new float[3 * pixels];
+                sumShown = new float[3 * pixels];
+                sumSquare = new float[3 * pixels];
+                count = new int[pixels];
+                refine = new boolean[pixels];
+                return;
+            }
+            Arrays.fill(sum, 0, 3 * pixels, 0);
+            Arrays.fill(sumShown, 0, 3 * pixels, 0);
+            Arrays.fill(sumSquare, 0, 3 * pixels, 0);
+            Arrays.fill(count, 0, pixels, 0);
+        }
+    }
+
+    /**
+     * Constructor with the default settings : 4 samples first, up to 16.
+     */
+    public AdaptiveSampler() {
+        this(DEFAULT_MIN_SAMPLES, DEFAULT_MAX_SAMPLES, DEFAULT_ERROR_THRESHOLD, DEFAULT_CONTRAST_THRESHOLD);
+    }
+
+    /**
+     * Constructor with the default thresholds and first batch, for a greatest number of samples.
+     * @param maxSamples greatest number of samples of a pixel
+     */
+    public AdaptiveSampler(int maxSamples) {
+        this(Math.min(DEFAULT_MIN_SAMPLES, maxSamples), maxSamples, DEFAULT_ERROR_THRESHOLD, DEFAULT_CONTRAST_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     * With minSamples equal to maxSamples, every pixel gets the same number of samples.
+     * @param minSamples number of samples of the first batch and of the next batches
+     * @param maxSamples greatest number of samples of a pixel
+     * @param errorThreshold threshold of the standard error of the mean of a channel, above which a pixel gets more samples
+     * @param contrastThreshold threshold of the difference of a channel between two neighbours, above which a pixel gets more samples
+     */
+    public AdaptiveSampler(int minSamples, int maxSamples, float errorThreshold, float contrastThreshold) {
+        if (minSamples <= 0 || maxSamples < minSamples)
+            throw new IllegalArgumentException("Invalid numbers of samples : " + minSamples + ", " + maxSamples);
+        if (errorThreshold < 0 || contrastThreshold < 0)
+            throw new IllegalArgumentException("Thresholds must not be negative : " + errorThreshold + ", " + contrastThreshold);
+        this.minSamples = minSamples;
+        this.maxSamples = maxSamples;
+        this.errorThreshold = errorThreshold;
+        this.contrastThreshold = contrastThreshold;
+        this.offsets = new float[2 * maxSamples];
+        for (int i = 0; i < maxSamples; i++) {
+            offsets[2 * i] = shift(Integer.reverse(i));
+            offsets[2 * i + 1] = shift(sobol(i));
+        }
+    }
+
+    /**
+     * Returns the second dimension of the 2D Sobol sequence, the first one being the bit reversal of the index.
+     * @param index
+     * @return the coordinate as a fraction of 2^32
+     */
+    private static int sobol(int index) {
+        int r = 0;
+        for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1)
+            if ((index & 1) != 0)
+                r ^= v;
+        return r;
+    }
+
+    /**
+     * Returns the offset from the point of the pixel of a coordinate of the sequence, shifted modulo 1.
+     * @param coordinate fraction of 2^32
+     * @return
+     */
+    private static float shift(int coordinate) {
+        float x = (float) ((coordinate & 0xFFFFFFFFL) / 4294967296.0) + SHIFT;
+        return (x >= 1 ? x - 1 : x) - 0.5f;
+    }
+
+    /**
+     * Returns the number of samples of the first batch and of the next batches.
+     * @return
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * Returns the greatest number of samples of a pixel.
+     * @return
+     */
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * Returns the number of samples traced since the creation of the sampler, to measure the rays saved.
+     * @return
+     */
+    public long getSampleCount() {
+        return sampleCount.sum();
+    }
+
+    /**
+     * Renders a rectangle of pixels of the image, like a tile.
+     * The pixel (col, row) of the image is written at (col - offsetX, row - offsetY) in the target.
+     * @param viewport primary rays of the image
+     * @param compiled compiled form of the scene
+     * @param evaluator evaluator of the trees of rays, null to use findColor
+     * @param col0 first column of the rectangle
+     * @param row0 first row of the rectangle
+     * @param colEnd last column of the rectangle (excluded)
+     * @param rowEnd last row of the rectangle (excluded)
+     * @param target
+     * @param offsetX
+     * @param offsetY
+     */
+    public void render(Camera.Viewport viewport, CompiledScene compiled, RayTreeEvaluator evaluator,
+                       int col0, int row0, int colEnd, int rowEnd, FrameBuffer target, int offsetX, int offsetY) {
+        ShadingContext ctx = ShadingContext.current();
+        Statistics stats = statistics.get();
+        int w = colEnd - col0;
+        int h = rowEnd - row0;
+        // the statistics have a border of one pixel around the rectangle
+        int stride = w + 2;
+        stats.clear(stride * (h + 2));
+        long traced = 0;
+        int firstCol = Math.max(0, col0 - 1);
+        int firstRow = Math.max(0, row0 - 1);
+        int lastCol = Math.min(viewport.getWidth(), colEnd + 1);
+        int lastRow = Math.min(viewport.getHeight(), rowEnd + 1);
+        for (int row = firstRow; row < lastRow; row++)
+            for (int col = firstCol; col < lastCol; col++)
+                traced += sample(viewport, compiled, evaluator, ctx, stats, index(col - col0, row - row0, stride), col, row, minSamples);
+        for (int done = minSamples; done < maxSamples; done += minSamples) {
+            int batch = Math.min(minSamples, maxSamples - done);
+            // the pixels to refine are chosen before sampling any of them, so the contrasts compare means of the same number of samples
+            boolean[] refine = stats.refine;
+            boolean any = false;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int p = index(x, y, stride);
+                    refine[p] = stats.count[p] == done
+                            && (uncertain(stats, p) || done == minSamples && contrasted(stats, p, stride));
+                    any |= refine[p];
+                }
+            }
+            if (!any)
+                break;
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++)
+                    if (refine[index(x, y, stride)])
+                        traced += sample(viewport, compiled, evaluator, ctx, stats, index(x, y, stride), col0 + x, row0 + y, batch);
+        }
+        Color c = ctx.color;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int p = index(x, y, stride);
+                float n = stats.count[p];
+                c.set(stats.sum[3 * p] / n, stats.sum[3 * p + 1] / n, stats.sum[3 * p + 2] / n);
+                target.set(col0 + x - offsetX, row0 + y - offsetY, c);
+            }
+        }
+        sampleCount.add(traced);
+    }
+
+    /**
+     * Returns the index in the statistics of a pixel of the rectangle or of its border.
+     * @param x column of the pixel from the first column of the rectangle, from -1
+     * @param y row of the pixel from the first row of the rectangle, from -1
+     * @param stride width of the rectangle and its border
+     * @return
+     */
+    private static int index(int x, int y, int stride) {
+        return (y + 1) * stride + x + 1;
+    }
+
+    /**
+     * Traces the next samples of a pixel and adds them to its statistics.
+     * @param viewport
+     * @param compiled
+     * @param evaluator
+     * @param ctx
+     * @param stats
+     * @param p index of the pixel in the statistics
+     * @param col column of the pixel in the image
+     * @param row row of the pixel in the image
+     * @param samples number of samples
+     * @return samples
+     */
+    private int sample(Camera.Viewport viewport, CompiledScene compiled, RayTreeEvaluator evaluator, ShadingContext ctx,
+                       Statistics stats, int p, int col, int row, int samples) {
+        int first = stats.count[p];
+        for (int i = first; i < first + samples; i++) {
+            viewport.sampleDirection(col + offsets[2 * i], row + offsets[2 * i + 1], ctx.ray);
+            Color c;
+            if (evaluator != null)
+                c = evaluator.evaluate(viewport.origin(ctx.eye), ctx.ray, ctx, ctx.color);
+            else c = compiled.findColor(viewport.origin(ctx.eye), ctx.ray, 0, ctx, ctx.color);
+            add(stats, 3 * p, c.getR());
+            add(stats, 3 * p + 1, c.getG());
+            add(stats, 3 * p + 2, c.getB());
+        }
+        stats.count[p] = first + samples;
+        return samples;
+    }
+
+    private static void add(Statistics stats, int i, float channel) {
+        stats.sum[i] += channel;
+        float shown = Math.min(channel, 1.f);
+        stats.sumShown[i] += shown;
+        stats.sumSquare[i] += shown * shown;
+    }
+
+    /**
+     * Returns true if the standard error of the mean of a channel of a pixel is above the threshold.
+     * The variance is computed from the channels clamped to 1, as they are shown.
+     * @param stats
+     * @param p
+     * @return
+     */
+    private boolean uncertain(Statistics stats, int p) {
+        int n = stats.count[p];
+        if (n < 2)
+            return true;
+        float limit = errorThreshold * errorThreshold * n * (n - 1);
+        for (int i = 3 * p; i < 3 * p + 3; i++) {
+            float mean = stats.sumShown[i] / n;
+            // n (n - 1) times the variance of the mean
+            if (stats.sumSquare[i] - n * mean * mean > limit)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the mean of a pixel of the rectangle differs from the mean of one of its neighbours in the image,
+     * in the rectangle or on its border, by more than the threshold.
+     * @param stats
+     * @param p
+     * @param stride width of the rectangle and its border
+     * @return
+     */
+    private boolean contrasted(Statistics stats, int p, int stride) {
+        return differ(stats, p, p - 1) || differ(stats, p, p + 1) || differ(stats, p, p - stride) || differ(stats, p, p + stride);
+    }
+
+    /**
+     * Returns true if the means of two pixels differ by more than the threshold, false if the second one is outside the image.
+     * @param stats
+     * @param p
+     * @param q
+     * @return
+     */
+    private boolean differ(Statistics stats, int p, int q) {
+        float np = stats.count[p];
+        float nq = stats.count[q];
+        if (nq == 0)
+            return false;
+        for (int i = 0; i < 3; i++)
+            if (Math.abs(Math.min(stats.sum[3 * p + i] / np, 1.f) - Math.min(stats.sum[3 * q + i] / nq, 1.f)) > contrastThreshold)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,352 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.CompiledScene;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.models.Color;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Renders the best image it can within a time budget.
+ * The quality of an image is given by its resolution, the number of bounces of its rays and its number of samples per pixel.
+ * The levels of quality are rendered from the cheapest, each level being started only if its time,
+ * estimated from the time of the previous level, fits in the time left.
+ * A level still running at the deadline is cancelled : its tiles being rendered stop at their next row and no other tile is started,
+ * so the deadline is overrun by at most a row of a tile per thread, and the image of the previous level is returned.
+ * The first level is always rendered completely, so there is always an image even if it overruns the budget.
+ * The tiles are rendered in parallel on the common ForkJoinPool.
+ */
+public class DeadlineRenderer {
+
+    /**
+     * Side of the tiles, in pixels, a multiple of the steps of the levels.
+     */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Factor applied to the estimated time of a level before checking it fits in the time left.
+     */
+    private static final double SAFETY_FACTOR = 1.25;
+
+    /**
+     * Level of quality of an image.
+     */
+    public static final class Quality {
+
+        private final int step;
+
+        private final int bounces;
+
+        private final int samples;
+
+        /**
+         * Constructor.
+         * @param step side of the blocks of pixels of a traced pixel, a power of two, 1 for the full resolution
+         * @param bounces greatest number of reflections and refractions of a ray, at most Scene.MAX_RAY_DEPTH
+         * @param samples number of samples per side of a pixel, samples x samples rays being traced for each pixel
+         */
+        public Quality(int step, int bounces, int samples) {
+            if (step <= 0 || step > TILE_SIZE || Integer.bitCount(step) != 1)
+                throw new IllegalArgumentException("The step must be a power of two up to " + TILE_SIZE + " : " + step);
+            if (bounces < 0 || bounces > Scene.MAX_RAY_DEPTH)
+                throw new IllegalArgumentException("Invalid number of bounces : " + bounces);
+            if (samples <= 0)
+                throw new IllegalArgumentException("Invalid number of samples : " + samples);
+            this.step = step;
+            this.bounces = bounces;
+            this.samples = samples;
+        }
+
+        /**
+         * Returns the side of the blocks of pixels of a traced pixel, 1 for the full resolution.
+         * @return
+         */
+        public int getStep() {
+            return step;
+        }
+
+        /**
+         * Returns the greatest number of reflections and refractions of a ray.
+         * @return
+         */
+        public int getBounces() {
+            return bounces;
+        }
+
+        /**
+         * Returns the number of samples per side of a pixel.
+         * @return
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * Returns the estimated cost of an image : its number of samples times the number of rays a sample may need,
+         * counting one ray per bounce.
+         * @param w width of the image
+         * @param h height of the image
+         * @return
+         */
+        double cost(int w, int h) {
+            double pixels = (double) ((w + step - 1) / step) * ((h + step - 1) / step);
+            return pixels * samples * samples * (1 + bounces);
+        }
+
+        /**
+         * Returns true if this quality is at least as good as another in resolution, bounces and samples.
+         * @param that
+         * @return
+         */
+        boolean isAtLeast(Quality that) {
+            return step <= that.step && bounces >= that.bounces && samples >= that.samples;
+        }
+
+        @Override
+        public String toString() {
+            return "1/" + step + " resolution, " + bounces + " bounces, " + samples * samples + " samples per pixel";
+        }
+    }
+
+    /**
+     * Image rendered within a budget and its quality.
+     */
+    public static final class Result {
+
+        private final FrameBuffer image;
+
+        private final Quality quality;
+
+        private final int level;
+
+        private final Duration elapsed;
+
+        private final boolean cancelled;
+
+        private Result(FrameBuffer image, Quality quality, int level, Duration elapsed, boolean cancelled) {
+            this.image = image;
+            this.quality = quality;
+            this.level = level;
+            this.elapsed = elapsed;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * Returns the image of the best level rendered completely.
+         * @return
+         */
+        public FrameBuffer getImage() {
+            return image;
+        }
+
+        /**
+         * Returns the quality of the image.
+         * @return
+         */
+        public Quality getQuality() {
+            return quality;
+        }
+
+        /**
+         * Returns the index of the level of the image in the levels of the renderer.
+         * @return
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Returns the time taken by the render.
+         * @return
+         */
+        public Duration getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Returns true if a better level was started but cancelled at the deadline.
+         * @return
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "Level " + level + " (" + quality + ") in " + elapsed.toMillis() + " ms" + (cancelled ? ", next level cancelled" : "");
+        }
+    }
+
+    /**
+     * Default levels : a coarse image with few bounces first, then the full resolution, all the bounces,
+     * and 4, 9 and 16 samples per pixel.
+     */
+    public static final List<Quality> DEFAULT_LEVELS = Collections.unmodifiableList(Arrays.asList(
+            new Quality(8, 1, 1),
+            new Quality(4, 2, 1),
+            new Quality(2, 4, 1),
+            new Quality(1, Scene.MAX_RAY_DEPTH, 1),
+            new Quality(1, Scene.MAX_RAY_DEPTH, 2),
+            new Quality(1, Scene.MAX_RAY_DEPTH, 3),
+            new Quality(1, Scene.MAX_RAY_DEPTH, 4)));
+
+    private final Scene scene;
+
+    /**
+     * Levels of quality, from the cheapest.
+     */
+    private final List<Quality> levels;
+
+    /**
+     * Constructor with the default levels.
+     * @param scene
+     */
+    public DeadlineRenderer(Scene scene) {
+        this(scene, DEFAULT_LEVELS);
+    }
+
+    /**
+     * Constructor.
+     * @param scene
+     * @param levels levels of quality, each one at least as good as the previous one in resolution, bounces and samples
+     */
+    public DeadlineRenderer(Scene scene, List<Quality> levels) {
+        if (levels.isEmpty())
+            throw new IllegalArgumentException("No level of quality");
+        for (int i = 1; i < levels.size(); i++)
+            if (!levels.get(i).isAtLeast(levels.get(i - 1)))
+                throw new IllegalArgumentException("Level " + i + " worse than the previous one : " + levels.get(i));
+        this.scene = scene;
+        this.levels = new ArrayList<>(levels);
+    }
+
+    /**
+     * Returns the levels of quality, from the cheapest.
+     * @return
+     */
+    public List<Quality> getLevels() {
+        return Collections.unmodifiableList(levels);
+    }
+
+    /**
+     * Renders the best image possible within a budget.
+     * @param camera point of view, null to use the camera of the scene
+     * @param w width of the image
+     * @param h height of the image
+     * @param budget time allowed for the render
+     * @return
+     */
+    public Result render(Camera camera, int w, int h, Duration budget) {
+        long start = System.nanoTime();
+        long deadline = start + budget.toNanos();
+        Camera view = camera != null ? camera : scene.getCamera();
+        Camera.Viewport viewport = view.viewport(w, h);
+        CompiledScene compiled = scene.compile();
+        BooleanSupplier overrun = () -> System.nanoTime() - deadline > 0;
+        FrameBuffer best = null;
+        FrameBuffer work = new FrameBuffer(w, h);
+        int reached = -1;
+        long reachedTime = 0;
+        boolean cancelled = false;
+        for (int i = 0; i < levels.size(); i++) {
+            Quality quality = levels.get(i);
+            long levelStart = System.nanoTime();
+            if (best != null) {
+                double estimate = reachedTime * quality.cost(w, h) / levels.get(reached).cost(w, h) * SAFETY_FACTOR;
+                if (levelStart + estimate - deadline > 0)
+                    break;
+            }
+            if (!renderLevel(work, viewport, compiled, quality, best == null ? null : overrun)) {
+                cancelled = true;
+                break;
+            }
+            reached = i;
+            reachedTime = System.nanoTime() - levelStart;
+            FrameBuffer done = work;
+            work = best != null ? best : new FrameBuffer(w, h);
+            best = done;
+        }
+        return new Result(best, levels.get(reached), reached, Duration.ofNanos(System.nanoTime() - start), cancelled);
+    }
+
+    /**
+     * Renders an image of a level of quality, tile by tile, until it is cancelled.
+     * @param frameBuffer
+     * @param viewport primary rays of the image
+     * @param compiled compiled form of the scene
+     * @param quality
+     * @param cancelled true once the image is not needed anymore, or null
+     * @return false if the image was cancelled before its end
+     */
+    private boolean renderLevel(FrameBuffer frameBuffer, Camera.Viewport viewport, CompiledScene compiled, Quality quality,
+                                BooleanSupplier cancelled) {
+        int w = frameBuffer.getWidth();
+        int h = frameBuffer.getHeight();
+        int tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        AtomicBoolean skipped = new AtomicBoolean();
+        IntStream.range(0, tilesX * tilesY).parallel().forEach(t -> {
+            int col0 = (t % tilesX) * TILE_SIZE;
+            int row0 = (t / tilesX) * TILE_SIZE;
+            int colEnd = Math.min(w, col0 + TILE_SIZE);
+            int rowEnd = Math.min(h, row0 + TILE_SIZE);
+            for (int row = row0; row < rowEnd; row += quality.step) {
+                if (cancelled != null && cancelled.getAsBoolean()) {
+                    skipped.set(true);
+                    return;
+                }
+                renderRow(frameBuffer, viewport, compiled, quality, row, col0, colEnd, Math.min(rowEnd, row + quality.step));
+            }
+        });
+        return !skipped.get();
+    }
+
+    /**
+     * Traces the pixels of a row of a tile and paints their blocks.
+     * @param frameBuffer
+     * @param viewport primary rays of the image
+     * @param compiled compiled form of the scene
+     * @param quality
+     * @param row row traced
+     * @param col0 first column of the tile
+     * @param colEnd last column of the tile (excluded)
+     * @param rowEnd last row painted (excluded)
+     */
+    private void renderRow(FrameBuffer frameBuffer, Camera.Viewport viewport, CompiledScene compiled, Quality quality,
+                           int row, int col0, int colEnd, int rowEnd) {
+        ShadingContext ctx = ShadingContext.current();
+        int depth = Scene.MAX_RAY_DEPTH - quality.bounces;
+        int n = quality.samples;
+        for (int col = col0; col < colEnd; col += quality.step) {
+            Color c;
+            if (n == 1)
+                c = compiled.findColor(viewport.origin(ctx.eye), viewport.direction(col, row, ctx.ray), depth, ctx, ctx.color);
+            else {
+                // stratified samples : the centres of n x n cells around the point of the pixel
+                float r = 0, g = 0, b = 0;
+                for (int j = 0; j < n; j++) {
+                    for (int i = 0; i < n; i++) {
+                        viewport.sampleDirection(col + (i + 0.5f) / n - 0.5f, row + (j + 0.5f) / n - 0.5f, ctx.ray);
+                        Color s = compiled.findColor(viewport.origin(ctx.eye), ctx.ray, depth, ctx, ctx.color);
+                        r += s.getR();
+                        g += s.getG();
+                        b += s.getB();
+                    }
+                }
+                c = ctx.color.set(r / (n * n), g / (n * n), b / (n * n));
+            }
+            int blockEnd = Math.min(colEnd, col + quality.step);
+            for (int y = row; y < rowEnd; y++)
+                for (int x = col; x < blockEnd; x++)
+                    frameBuffer.set(x, y, c);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package fr.algo3d.model.render;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Grid of tiles over an image, remembering the tiles whose pixels changed since they were last read.
+ * The renderers mark the pixels they write, concurrently, and a consumer like the view drains the changed tiles,
+ * so only the changed parts of the image are converted and copied again.
+ * A tile written while it is drained is marked again, so the last state of every pixel is always read.
+ */
+public class DirtyTiles {
+
+    /**
+     * Default side of the tiles, in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /**
+     * Receives the rectangles of changed pixels.
+     */
+    public interface Consumer {
+
+        /**
+         * Receives a rectangle of changed pixels, made of one or more tiles of a row of the grid.
+         * @param x first column
+         * @param y first row
+         * @param width
+         * @param height
+         */
+        void regionDirty(int x, int y, int width, int height);
+    }
+
+    /**
+     * Width of the image.
+     */
+    private final int width;
+
+    /**
+     * Height of the image.
+     */
+    private final int height;
+
+    /**
+     * Side of the tiles, in pixels.
+     */
+    private final int tileSize;
+
+    /**
+     * Number of tiles of a row of the grid.
+     */
+    private final int tilesX;
+
+    /**
+     * Number of tiles of a column of the grid.
+     */
+    private final int tilesY;
+
+    /**
+     * 1 for each changed tile, row by row from the bottom of the image.
+     */
+    private final AtomicIntegerArray dirty;
+
+    /**
+     * Constructor with tiles of the default size.
+     * @param width width of the image
+     * @param height height of the image
+     */
+    public DirtyTiles(int width, int height) {
+        this(width, height, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * All the tiles are changed at first, so the first drain reads the whole image.
+     * @param width width of the image
+     * @param height height of the image
+     * @param tileSize side of the tiles, in pixels
+     */
+    public DirtyTiles(int width, int height, int tileSize) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid image size : " + width + "x" + height);
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Invalid tile size : " + tileSize);
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.dirty = new AtomicIntegerArray(tilesX * tilesY);
+        markAll();
+    }
+
+    /**
+     * Returns the width of the image.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the side of the tiles, in pixels.
+     * @return
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Marks the tiles covering a rectangle of pixels as changed.
+     * @param col0 first column of the rectangle
+     * @param row0 first row of the rectangle
+     * @param colEnd last column of the rectangle (excluded)
+     * @param rowEnd last row of the rectangle (excluded)
+     */
+    public void mark(int col0, int row0, int colEnd, int rowEnd) {
+        if (colEnd <= col0 || rowEnd <= row0)
+            return;
+        int tx1 = (Math.min(colEnd, width) - 1) / tileSize;
+        int ty1 = (Math.min(rowEnd, height) - 1) / tileSize;
+        for (int ty = Math.max(row0, 0) / tileSize; ty <= ty1; ty++)
+            for (int tx = Math.max(col0, 0) / tileSize; tx <= tx1; tx++)
+                if (dirty.get(ty * tilesX + tx) == 0)
+                    dirty.set(ty * tilesX + tx, 1);
+    }
+
+    /**
+     * Marks the whole image as changed.
+     */
+    public void markAll() {
+        for (int i = 0; i < dirty.length(); i++)
+            dirty.set(i, 1);
+    }
+
+    /**
+     * Gives the changed tiles to a consumer and marks them as unchanged.
+     * The consecutive changed tiles of a row of the grid are given as one rectangle.
+     * @param consumer
+     * @return true if at least one tile was changed
+     */
+    public boolean drain(Consumer consumer) {
+        boolean any = false;
+        for (int ty = 0; ty < tilesY; ty++) {
+            int first = -1;
+            for (int tx = 0; tx <= tilesX; tx++) {
+                boolean changed = tx < tilesX && dirty.getAndSet(ty * tilesX + tx, 0) != 0;
+                if (changed && first < 0)
+                    first = tx;
+                else if (!changed && first >= 0) {
+                    int x = first * tileSize;
+                    int y = ty * tileSize;
+                    consumer.regionDirty(x, y, Math.min(width, tx * tileSize) - x, Math.min(height, y + tileSize) - y);
+                    first = -1;
+                    any = true;
+                }
+            }
+        }
+        return any;
+    }
+}
@@ -0,0 +1,79 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.models.Color;
+
+/**
+ * Linear float image written by the renderers, 3 floats per pixel ordered this way : Red, Green, Blue.
+ * Pixels are stored row by row from the bottom of the image, like the TGA files.
+ * The Quantizer converts it into the byte layout of each consumer.
+ */
+public class FrameBuffer {
+
+    /**
+     * Width of the image.
+     */
+    private final int width;
+
+    /**
+     * Height of the image.
+     */
+    private final int height;
+
+    /**
+     * Channels of the pixels.
+     */
+    private final float[] data;
+
+    /**
+     * Constructor.
+     * Creates a black image.
+     * @param width
+     * @param height
+     */
+    public FrameBuffer(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid image size : " + width + "x" + height);
+        if ((long) width * height * 3 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Image too big for a frame buffer : " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.data = new float[3 * width * height];
+    }
+
+    /**
+     * Returns the width of the image.
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the channels of the pixels, 3 floats per pixel ordered this way : Red, Green, Blue.
+     * @return
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * Sets the color of the pixel (col, row).
+     * @param col
+     * @param row
+     * @param c
+     */
+    public void set(int col, int row, Color c) {
+        int index = 3 * (row * width + col);
+        data[index] = c.getR();
+        data[index + 1] = c.getG();
+        data[index + 2] = c.getB();
+    }
+}
@@ -0,0 +1,117 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.Scene;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Renders the frames of a camera moved interactively, each new frame cancelling the previous one.
+ * Each frame has a generation number, the frames being numbered in the order they are asked.
+ * Asking a frame cancels at once the frame being rendered : it stops after the bands of rows being rendered by its threads,
+ * then the new frame starts, so two frames are never rendered at the same time in the same frame buffer.
+ * The frames are rendered progressively, a coarse image first, then refined while the camera stays still.
+ * The passes done are given with their generation, so a consumer can show only the passes of the current frame
+ * and never an image mixing two frames.
+ */
+public class InteractiveRenderer {
+
+    /**
+     * Default step of the first pass of a frame, which traces one pixel out of 64.
+     */
+    public static final int DEFAULT_FIRST_STEP = 8;
+
+    /**
+     * Receives the end of each pass of the frames, called by a thread of the renderer.
+     */
+    public interface FrameListener {
+
+        /**
+         * Called when a pass of a frame is done, the frame buffer of the frame holding the image refined by the pass.
+         * The frame buffer is not written by another frame before the method returns.
+         * @param generation generation of the frame, which may not be current anymore
+         * @param pass index of the pass, from 0
+         * @param step step of the pass, 1 for the last one
+         */
+        void passDone(int generation, int pass, int step);
+    }
+
+    private final Scene scene;
+
+    /**
+     * Step of the first pass of the frames, a power of two.
+     */
+    private final int firstStep;
+
+    /**
+     * Generation of the last frame asked, the frames of the previous generations being cancelled.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Render of the last frame asked, the next frame starting once it is over.
+     */
+    private CompletableFuture<Boolean> last = CompletableFuture.completedFuture(true);
+
+    /**
+     * Constructor with a first pass of the default step.
+     * @param scene
+     */
+    public InteractiveRenderer(Scene scene) {
+        this(scene, DEFAULT_FIRST_STEP);
+    }
+
+    /**
+     * Constructor.
+     * @param scene
+     * @param firstStep step of the first pass of the frames, a power of two
+     */
+    public InteractiveRenderer(Scene scene, int firstStep) {
+        if (firstStep <= 0 || Integer.bitCount(firstStep) != 1)
+            throw new IllegalArgumentException("The first step must be a power of two : " + firstStep);
+        this.scene = scene;
+        this.firstStep = firstStep;
+    }
+
+    /**
+     * Cancels the frame being rendered and starts rendering a frame seen by a camera in the background.
+     * @param camera point of view of the frame
+     * @param frameBuffer frame buffer of the frame, which gives the size of the image
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param listener receiver of the end of each pass
+     * @return generation of the frame
+     */
+    public synchronized int render(Camera camera, FrameBuffer frameBuffer, DirtyTiles dirtyTiles, FrameListener listener) {
+        int frame = generation.incrementAndGet();
+        BooleanSupplier cancelled = () -> generation.get() != frame;
+        ProgressiveRenderer renderer = new ProgressiveRenderer(scene, firstStep);
+        renderer.setCamera(camera);
+        last = last.handle((done, e) -> done).thenApplyAsync(previous -> !cancelled.getAsBoolean()
+                && renderer.renderPasses(frameBuffer, dirtyTiles, cancelled, (pass, step) -> listener.passDone(frame, pass, step)),
+                ForkJoinPool.commonPool());
+        last.whenComplete((done, e) -> {
+            if (e != null)
+                System.err.println("Frame " + frame + " not rendered : " + e);
+        });
+        return frame;
+    }
+
+    /**
+     * Cancels the frame being rendered, if any.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Returns true if a frame is the last one asked and has not been cancelled.
+     * @param generation generation of the frame
+     * @return
+     */
+    public boolean isCurrent(int generation) {
+        return this.generation.get() == generation;
+    }
+}
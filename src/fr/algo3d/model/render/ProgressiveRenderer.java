@@ -0,0 +1,199 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.CompiledScene;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.models.Color;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Renders a scene in several passes, each one refining the image of the previous one, so a coarse image is shown quickly.
+ * The first pass traces one pixel out of firstStep x firstStep and paints its whole block, each next pass halves the step
+ * and traces only the pixels not traced yet, until the last pass with a step of 1.
+ * Every pixel is traced once, so the final image is exactly the image of the other renderers, for the same total number of rays.
+ * The rows of each pass are rendered in parallel on the common ForkJoinPool.
+ */
+public class ProgressiveRenderer {
+
+    /**
+     * Default step of the first pass, which traces one pixel out of 16.
+     */
+    public static final int DEFAULT_FIRST_STEP = 4;
+
+    /**
+     * Receives the end of each pass, called by a thread of the renderer.
+     */
+    public interface PassListener {
+
+        /**
+         * Called when a pass is done, the frame buffer holding the image refined by the pass.
+         * @param pass index of the pass, from 0
+         * @param step step of the pass, 1 for the last one
+         */
+        void passDone(int pass, int step);
+    }
+
+    private final Scene scene;
+
+    /**
+     * Step of the first pass, a power of two.
+     */
+    private final int firstStep;
+
+    /**
+     * Point of view of the images, null to use the camera of the scene.
+     */
+    private volatile Camera camera;
+
+    /**
+     * Constructor with a first pass of the default step.
+     * @param scene
+     */
+    public ProgressiveRenderer(Scene scene) {
+        this(scene, DEFAULT_FIRST_STEP);
+    }
+
+    /**
+     * Constructor.
+     * @param scene
+     * @param firstStep step of the first pass, a power of two, 1 to render in a single pass
+     */
+    public ProgressiveRenderer(Scene scene, int firstStep) {
+        if (firstStep <= 0 || Integer.bitCount(firstStep) != 1)
+            throw new IllegalArgumentException("The first step must be a power of two : " + firstStep);
+        this.scene = scene;
+        this.firstStep = firstStep;
+    }
+
+    /**
+     * Returns the number of passes of a frame.
+     * @return
+     */
+    public int getPassCount() {
+        return Integer.numberOfTrailingZeros(firstStep) + 1;
+    }
+
+    /**
+     * Renders the scene from another point of view than its camera, without changing the scene.
+     * @param camera point of view, null to use the camera of the scene
+     */
+    public void setCamera(Camera camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Returns the point of view of the images, null if it is the camera of the scene.
+     * @return
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Starts rendering the scene in a frame buffer in the background.
+     * The frame buffer can be read while it is rendered, a pixel is then either from the current pass or from a previous one.
+     * @param frameBuffer
+     * @param listener receiver of the end of each pass, or null
+     * @return future completed when the last pass is done
+     */
+    public CompletableFuture<Void> render(FrameBuffer frameBuffer, PassListener listener) {
+        return render(frameBuffer, null, listener);
+    }
+
+    /**
+     * Starts rendering the scene in a frame buffer in the background, marking the rows in the dirty tiles as soon as they are written.
+     * @param frameBuffer
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param listener receiver of the end of each pass, or null
+     * @return future completed when the last pass is done
+     */
+    public CompletableFuture<Void> render(FrameBuffer frameBuffer, DirtyTiles dirtyTiles, PassListener listener) {
+        return CompletableFuture.runAsync(() -> renderPasses(frameBuffer, dirtyTiles, listener), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Renders all the passes in the calling thread.
+     * @param frameBuffer
+     * @param listener receiver of the end of each pass, or null
+     */
+    public void renderPasses(FrameBuffer frameBuffer, PassListener listener) {
+        renderPasses(frameBuffer, null, listener);
+    }
+
+    /**
+     * Renders all the passes in the calling thread, marking the rows in the dirty tiles as soon as they are written.
+     * @param frameBuffer
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param listener receiver of the end of each pass, or null
+     */
+    public void renderPasses(FrameBuffer frameBuffer, DirtyTiles dirtyTiles, PassListener listener) {
+        renderPasses(frameBuffer, dirtyTiles, null, listener);
+    }
+
+    /**
+     * Renders the passes in the calling thread until the render is cancelled.
+     * The cancellation is checked before each band of rows, so the bands being rendered are finished and no other is started.
+     * The listener is not called for a pass cancelled, but it may still be called just after the cancellation,
+     * so a consumer needing only the current image has to check it is still current.
+     * @param frameBuffer
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param cancelled true once the image is not needed anymore, or null
+     * @param listener receiver of the end of each pass, or null
+     * @return false if the render was cancelled
+     */
+    public boolean renderPasses(FrameBuffer frameBuffer, DirtyTiles dirtyTiles, BooleanSupplier cancelled, PassListener listener) {
+        Camera view = camera != null ? camera : scene.getCamera();
+        Camera.Viewport viewport = view.viewport(frameBuffer.getWidth(), frameBuffer.getHeight());
+        CompiledScene compiled = scene.compile();
+        int pass = 0;
+        for (int step = firstStep; step >= 1; step /= 2, pass++) {
+            renderPass(frameBuffer, dirtyTiles, cancelled, viewport, compiled, step);
+            if (cancelled != null && cancelled.getAsBoolean())
+                return false;
+            if (listener != null)
+                listener.passDone(pass, step);
+        }
+        return true;
+    }
+
+    /**
+     * Traces the pixels of a pass and paints their blocks.
+     * A pixel belongs to the pass of step s if its coordinates are multiples of s, but not both of 2s unless s is the first step.
+     * @param frameBuffer
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param cancelled true once the image is not needed anymore, or null
+     * @param viewport
+     * @param compiled
+     * @param step
+     */
+    private void renderPass(FrameBuffer frameBuffer, DirtyTiles dirtyTiles, BooleanSupplier cancelled,
+                            Camera.Viewport viewport, CompiledScene compiled, int step) {
+        int w = frameBuffer.getWidth();
+        int h = frameBuffer.getHeight();
+        boolean first = step == firstStep;
+        IntStream.range(0, (h + step - 1) / step).parallel().forEach(r -> {
+            if (cancelled != null && cancelled.getAsBoolean())
+                return;
+            ShadingContext ctx = ShadingContext.current();
+            int row = r * step;
+            boolean evenRow = row % (2 * step) == 0;
+            // on the rows of the previous pass, only the odd columns are new
+            int col0 = first || !evenRow ? 0 : step;
+            int colStep = first || !evenRow ? step : 2 * step;
+            int rowEnd = Math.min(h, row + step);
+            for (int col = col0; col < w; col += colStep) {
+                Color c = compiled.findColor(viewport.origin(ctx.eye), viewport.direction(col, row, ctx.ray), 0, ctx, ctx.color);
+                int colEnd = Math.min(w, col + step);
+                for (int y = row; y < rowEnd; y++)
+                    for (int x = col; x < colEnd; x++)
+                        frameBuffer.set(x, y, c);
+            }
+            if (dirtyTiles != null)
+                dirtyTiles.mark(0, row, w, rowEnd);
+        });
+    }
+}
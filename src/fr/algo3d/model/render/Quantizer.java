@@ -0,0 +1,209 @@
+package fr.algo3d.model.render;
+
+import java.util.stream.IntStream;
+
+/**
+ * Converts a frame buffer into bytes in one parallel pass over its rows.
+ * The default settings give exactly the bytes of the classical render methods : each channel is clamped to 1 and multiplied by 255.
+ */
+public class Quantizer {
+
+    /**
+     * Byte layouts of the consumers.
+     */
+    public enum Layout {
+        /**
+         * 3 bytes per pixel ordered this way : Blue, Green, Red, as in TGA files.
+         */
+        BGR,
+        /**
+         * 3 bytes per pixel ordered this way : Red, Green, Blue, as in JavaFX images.
+         */
+        RGB
+    }
+
+    /**
+     * Operators mapping the channels to [0, 1].
+     */
+    public enum ToneMapping {
+        /**
+         * Channels over 1 are clamped to 1.
+         */
+        CLAMP,
+        /**
+         * Reinhard operator c / (1 + c), which never saturates.
+         */
+        REINHARD
+    }
+
+    /**
+     * 4x4 Bayer matrix of the ordered dithering, in sixteenths.
+     */
+    private static final int[] BAYER = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5
+    };
+
+    /**
+     * Operator mapping the channels to [0, 1].
+     */
+    private final ToneMapping toneMapping;
+
+    /**
+     * Factor applied to the channels before the tone mapping.
+     */
+    private final float exposure;
+
+    /**
+     * True to add an ordered dithering before truncating the channels.
+     */
+    private final boolean dithering;
+
+    /**
+     * Constructor.
+     * Clamps the channels without dithering.
+     */
+    public Quantizer() {
+        this(ToneMapping.CLAMP, 1, false);
+    }
+
+    /**
+     * Constructor.
+     * @param toneMapping
+     * @param exposure factor applied to the channels before the tone mapping
+     * @param dithering true to add an ordered dithering before truncating the channels
+     */
+    public Quantizer(ToneMapping toneMapping, float exposure, boolean dithering) {
+        this.toneMapping = toneMapping;
+        this.exposure = exposure;
+        this.dithering = dithering;
+    }
+
+    /**
+     * Converts a frame buffer into a new byte array.
+     * @param frameBuffer
+     * @param layout
+     * @return 3 bytes per pixel in the given layout
+     */
+    public byte[] quantize(FrameBuffer frameBuffer, Layout layout) {
+        byte[] out = new byte[3 * frameBuffer.getWidth() * frameBuffer.getHeight()];
+        quantize(frameBuffer, layout, out);
+        return out;
+    }
+
+    /**
+     * Converts a frame buffer into a byte array.
+     * @param frameBuffer
+     * @param layout
+     * @param out array of at least 3 bytes per pixel
+     */
+    public void quantize(FrameBuffer frameBuffer, Layout layout, byte[] out) {
+        int w = frameBuffer.getWidth();
+        IntStream.range(0, frameBuffer.getHeight()).parallel()
+                .forEach(row -> quantizeRows(frameBuffer.getData(), w, row, row + 1, layout, out, 3 * row * w));
+    }
+
+    /**
+     * Converts the rows between rowStart (included) and rowEnd (excluded) of a frame buffer into bytes.
+     * @param data channels of the frame buffer
+     * @param w width of the image
+     * @param rowStart
+     * @param rowEnd
+     * @param layout
+     * @param out
+     * @param offset index in out of the first byte of rowStart
+     */
+    public void quantizeRows(float[] data, int w, int rowStart, int rowEnd, Layout layout, byte[] out, int offset) {
+        quantize(data, 3 * rowStart * w, 3 * w, w, rowEnd - rowStart, 0, rowStart, layout, out, offset, 3 * w);
+    }
+
+    /**
+     * Converts the bottom left width x height pixels of a frame buffer, like a tile, into bytes.
+     * @param frameBuffer
+     * @param width
+     * @param height
+     * @param col0 column of the first pixel in the whole image, for the dithering pattern
+     * @param row0 row of the first pixel in the whole image, for the dithering pattern
+     * @param layout
+     * @param out
+     * @param offset index in out of the first byte
+     * @param stride number of bytes between two rows in out
+     */
+    public void quantizeRegion(FrameBuffer frameBuffer, int width, int height, int col0, int row0,
+                               Layout layout, byte[] out, int offset, int stride) {
+        quantize(frameBuffer.getData(), 0, 3 * frameBuffer.getWidth(), width, height, col0, row0, layout, out, offset, stride);
+    }
+
+    /**
+     * Converts a rectangle of pixels of a frame buffer into bytes, like the changed tiles of an image shown.
+     * @param frameBuffer
+     * @param x first column of the rectangle
+     * @param y first row of the rectangle
+     * @param width
+     * @param height
+     * @param layout
+     * @param out
+     * @param offset index in out of the first byte
+     * @param stride number of bytes between two rows in out
+     */
+    public void quantizeRect(FrameBuffer frameBuffer, int x, int y, int width, int height,
+                             Layout layout, byte[] out, int offset, int stride) {
+        int w = frameBuffer.getWidth();
+        quantize(frameBuffer.getData(), 3 * (y * w + x), 3 * w, width, height, x, y, layout, out, offset, stride);
+    }
+
+    /**
+     * Converts a rectangle of pixels into bytes.
+     * @param data channels of the pixels
+     * @param in index in data of the first channel
+     * @param inStride number of floats between two rows in data
+     * @param width
+     * @param height
+     * @param col0 column of the first pixel in the whole image, for the dithering pattern
+     * @param row0 row of the first pixel in the whole image, for the dithering pattern
+     * @param layout
+     * @param out
+     * @param offset index in out of the first byte
+     * @param stride number of bytes between two rows in out
+     */
+    private void quantize(float[] data, int in, int inStride, int width, int height, int col0, int row0,
+                          Layout layout, byte[] out, int offset, int stride) {
+        int first = layout == Layout.BGR ? 2 : 0; // index in the frame buffer of the first channel of the layout
+        boolean exact = toneMapping == ToneMapping.CLAMP && exposure == 1 && !dithering;
+        for (int y = 0; y < height; y++) {
+            int i0 = in + y * inStride;
+            int o = offset + y * stride;
+            if (exact) {
+                for (int i = 0; i < 3 * width; i += 3) {
+                    out[o + i] = (byte) (Math.min(data[i0 + i + first], 1.f) * 255);
+                    out[o + i + 1] = (byte) (Math.min(data[i0 + i + 1], 1.f) * 255);
+                    out[o + i + 2] = (byte) (Math.min(data[i0 + i + 2 - first], 1.f) * 255);
+                }
+                continue;
+            }
+            int row = row0 + y;
+            for (int x = 0; x < width; x++) {
+                float d = dithering ? (BAYER[((row & 3) << 2) | ((col0 + x) & 3)] + 0.5f) / 16 : 0;
+                int i = 3 * x;
+                out[o + i] = toByte(data[i0 + i + first], d);
+                out[o + i + 1] = toByte(data[i0 + i + 1], d);
+                out[o + i + 2] = toByte(data[i0 + i + 2 - first], d);
+            }
+        }
+    }
+
+    /**
+     * Maps a channel to [0, 1] and converts it into a byte.
+     * @param c channel
+     * @param d dithering offset between 0 and 1, 0 to truncate
+     * @return
+     */
+    private byte toByte(float c, float d) {
+        c *= exposure;
+        if (toneMapping == ToneMapping.REINHARD)
+            c = c / (1 + c);
+        return (byte) Math.min(Math.max(Math.min(c, 1.f) * 255 + d, 0), 255);
+    }
+}
@@ -0,0 +1,227 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.CompiledScene;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.models.Color;
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Evaluates the tree of reflected and refracted rays of a primary ray with an explicit stack instead of recursion.
+ * Each ray carries its weight, the product of the reflection or transmission factors and ratios from the primary ray :
+ * as colors never exceed 1, it bounds the contribution of the ray and of all its children to the pixel.
+ * Rays whose weight is below the threshold are not traced.
+ * With Russian roulette, rays whose weight is below the roulette threshold are traced with a probability proportional to their weight
+ * and their color is scaled up accordingly. The colors of the children are then added without clamping, the channels being clamped
+ * only when the pixel is quantized, so the expected color is not lowered by clamping the scaled up children.
+ * The draws of a primary ray follow a sequence seeded by the ray, so the same pixel gets the same color in every render.
+ * With a threshold of 0 and no roulette, it gives exactly the colors of the recursive findColor.
+ * The rays are traced and shaded in the compiled form of the scene.
+ */
+public class RayTreeEvaluator {
+
+    /**
+     * Default threshold : half of the smallest step of a color channel in the image.
+     */
+    public static final float DEFAULT_THRESHOLD = 0.5f / 255;
+
+    /**
+     * Step of a frame whose reflected ray is still to be traced.
+     */
+    private static final int REFLECT = 0;
+
+    /**
+     * Step of a frame whose refracted ray is still to be traced.
+     */
+    private static final int REFRACT = 1;
+
+    /**
+     * Step of a frame whose color is complete.
+     */
+    private static final int DONE = 2;
+
+    /**
+     * Increment of the state of the sequence of draws of a primary ray between two draws.
+     */
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Scene of the rays.
+     */
+    private final Scene scene;
+
+    /**
+     * Weight under which a ray is not traced.
+     */
+    private final float threshold;
+
+    /**
+     * Weight under which a ray is subject to Russian roulette, 0 to disable it.
+     */
+    private final float rouletteThreshold;
+
+    /**
+     * Constructor.
+     * Uses the default threshold and no Russian roulette.
+     * @param scene
+     */
+    public RayTreeEvaluator(Scene scene) {
+        this(scene, DEFAULT_THRESHOLD, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param scene
+     * @param threshold weight under which a ray is not traced, 0 to trace all the rays up to Scene.MAX_RAY_DEPTH
+     * @param rouletteThreshold weight under which a ray is subject to Russian roulette, 0 to disable it
+     */
+    public RayTreeEvaluator(Scene scene, float threshold, float rouletteThreshold) {
+        if (threshold < 0 || rouletteThreshold < 0)
+            throw new IllegalArgumentException("Thresholds must not be negative : " + threshold + ", " + rouletteThreshold);
+        this.scene = scene;
+        this.threshold = threshold;
+        this.rouletteThreshold = rouletteThreshold;
+    }
+
+    /**
+     * Puts the color found by the ray defined by P and v into out.
+     * @param P
+     * @param v
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color evaluate(Vec3f P, Vec3f v, ShadingContext ctx, Color out) {
+        return evaluate(P, v, null, ctx, out);
+    }
+
+    /**
+     * Puts the color found by the ray defined by P and v into out, knowing its closest intersection if hit is not null.
+     * @param P
+     * @param v
+     * @param hit closest intersection of the ray, null if it is not known yet
+     * @param ctx scratch values of the current thread
+     * @param out
+     * @return out
+     */
+    public Color evaluate(Vec3f P, Vec3f v, Hit hit, ShadingContext ctx, Color out) {
+        CompiledScene compiled = scene.compile();
+        boolean roulette = rouletteThreshold > 0;
+        long draw = roulette ? seed(P, v) : 0;
+        int depth = 0;
+        start(compiled, P, v, hit, 1, ctx, 0);
+        while (true) {
+            ShadingContext.Frame f = ctx.frame(depth);
+            if (f.step == REFLECT) {
+                f.step = REFRACT;
+                float reflection = compiled.getReflection(f.material);
+                if (reflection > 0.f && depth < Scene.MAX_RAY_DEPTH) {
+                    float weight = f.weight * reflection * f.reflRatio;
+                    float survival = survival(weight, draw += GAMMA);
+                    if (survival > 0) {
+                        compiled.reflectedRay(f, f.rayDir);
+                        f.childScale = reflection;
+                        f.childRatio = f.reflRatio / survival;
+                        start(compiled, f.origin, f.dir, null, weight / survival, ctx, ++depth);
+                    }
+                }
+                continue;
+            }
+            if (f.step == REFRACT) {
+                f.step = DONE;
+                float transparency = compiled.getTransparency(f.material);
+                if (transparency > 0.f && depth < Scene.MAX_RAY_DEPTH) {
+                    float weight = f.weight * transparency * f.transRatio;
+                    float survival = survival(weight, draw += GAMMA);
+                    if (survival > 0) {
+                        compiled.refractedRay(f, f.rayDir);
+                        f.childScale = transparency;
+                        f.childRatio = f.transRatio / survival;
+                        start(compiled, f.origin, f.dir, null, weight / survival, ctx, ++depth);
+                    }
+                }
+                continue;
+            }
+            if (depth == 0)
+                return out.set(f.color);
+            ShadingContext.Frame parent = ctx.frame(--depth);
+            Color child = f.color;
+            child.setScale(parent.childScale, child);
+            child.setScale(parent.childRatio, child);
+            if (roulette)
+                parent.color.setAddUnclamped(parent.color, child);
+            else parent.color.setAdd(parent.color, child);
+        }
+    }
+
+    /**
+     * Returns the probability to trace a ray of a given weight, 0 if it must not be traced.
+     * @param weight
+     * @param draw state of the sequence of draws of the primary ray
+     * @return
+     */
+    private float survival(float weight, long draw) {
+        if (weight < threshold)
+            return 0;
+        if (weight >= rouletteThreshold)
+            return 1;
+        float p = weight / rouletteThreshold;
+        return (mix(draw) >>> 40) * 0x1.0p-24f < p ? p : 0;
+    }
+
+    /**
+     * Returns the first state of the sequence of draws of a primary ray, made from its origin and its direction,
+     * which depend only on the camera and the position of the sample in the image.
+     * @param P
+     * @param v
+     * @return
+     */
+    private static long seed(Vec3f P, Vec3f v) {
+        long h = Float.floatToIntBits(P.x);
+        h = h * 31 + Float.floatToIntBits(P.y);
+        h = h * 31 + Float.floatToIntBits(P.z);
+        h = h * 31 + Float.floatToIntBits(v.x);
+        h = h * 31 + Float.floatToIntBits(v.y);
+        h = h * 31 + Float.floatToIntBits(v.z);
+        return mix(h);
+    }
+
+    /**
+     * Mixes the bits of a state of the sequence, as the SplitMix64 generator.
+     * @param z
+     * @return
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Intersects a ray and computes its color due to the lights in the frame of its depth.
+     * The frame is done at once if the ray hits nothing.
+     * @param compiled compiled form of the scene
+     * @param P
+     * @param v
+     * @param hit closest intersection of the ray, null if it is not known yet
+     * @param weight
+     * @param ctx
+     * @param depth
+     */
+    private void start(CompiledScene compiled, Vec3f P, Vec3f v, Hit hit, float weight, ShadingContext ctx, int depth) {
+        ShadingContext.Frame f = ctx.frame(depth);
+        f.rayOrigin = P;
+        f.rayDir = v;
+        f.weight = weight;
+        if (hit == null) {
+            hit = f.hit.reset(Float.MAX_VALUE);
+            if (!compiled.intersect(P, v, hit, ctx)) {
+                f.color.set(Color.black);
+                f.step = DONE;
+                return;
+            }
+        }
+        compiled.shadeLocal(P, v, hit, f, ctx, f.color);
+        f.step = REFLECT;
+    }
+}
@@ -0,0 +1,112 @@
+package fr.algo3d.model.render;
+
+/**
+ * Rectangle of pixels of an image, the only part traced when a renderer is given a crop window.
+ * Used to render again a small part of an image or to share the rendering of an image between several machines.
+ * The rows are counted from the bottom of the image, like in the frame buffers.
+ */
+public final class Region {
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Constructor.
+     * @param x first column
+     * @param y first row
+     * @param width
+     * @param height
+     */
+    public Region(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid region : " + x + "," + y + " " + width + "x" + height);
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the region of the whole image.
+     * @param w width of the image
+     * @param h height of the image
+     * @return
+     */
+    public static Region full(int w, int h) {
+        return new Region(0, 0, w, h);
+    }
+
+    /**
+     * Checks that the region is inside an image.
+     * @param w width of the image
+     * @param h height of the image
+     * @throws IllegalArgumentException if the region goes out of the image
+     */
+    public void checkInside(int w, int h) {
+        if ((long) x + width > w || (long) y + height > h)
+            throw new IllegalArgumentException("Region " + this + " out of the image " + w + "x" + h);
+    }
+
+    /**
+     * Returns the first column.
+     * @return
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the first row.
+     * @return
+     */
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the last column (excluded).
+     * @return
+     */
+    public int getEndX() {
+        return x + width;
+    }
+
+    /**
+     * Returns the last row (excluded).
+     * @return
+     */
+    public int getEndY() {
+        return y + height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Region))
+            return false;
+        Region r = (Region) o;
+        return x == r.x && y == r.y && width == r.width && height == r.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return x + "," + y + " " + width + "x" + height;
+    }
+}
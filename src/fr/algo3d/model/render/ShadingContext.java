@@ -0,0 +1,211 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.accel.FlatBVH;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.accel.RayPacket;
+import fr.algo3d.model.models.Color;
+import fr.algo3d.model.models.Model;
+import fr.algo3d.model.models.Vec3f;
+
+/**
+ * Scratch vectors and colors used by a thread to shade rays without any allocation.
+ * There is one frame per recursion depth, a frame is only used by the call to findColor at its depth.
+ */
+public class ShadingContext {
+
+    /**
+     * Context of each thread.
+     */
+    private static final ThreadLocal<ShadingContext> CONTEXTS = ThreadLocal.withInitial(ShadingContext::new);
+
+    /**
+     * Scratch values of one call to findColor.
+     */
+    public static class Frame {
+        /**
+         * Intersection point.
+         */
+        public final Vec3f I = new Vec3f();
+
+        /**
+         * Normal at the intersection point.
+         */
+        public final Vec3f normal = new Vec3f();
+
+        /**
+         * Origin of the shadow rays, biased along the normal.
+         */
+        public final Vec3f shadowOrigin = new Vec3f();
+
+        /**
+         * Vector from the intersection point to a light.
+         */
+        public final Vec3f IS = new Vec3f();
+
+        /**
+         * Half vector for the specular color.
+         */
+        public final Vec3f halfdir = new Vec3f();
+
+        /**
+         * Origin of the reflected or refracted ray.
+         */
+        public final Vec3f origin = new Vec3f();
+
+        /**
+         * Direction of the reflected or refracted ray.
+         */
+        public final Vec3f dir = new Vec3f();
+
+        /**
+         * Intersection found for the ray and the shadow rays.
+         */
+        public final Hit hit = new Hit();
+
+        /**
+         * Temporary color for the ambient, diffuse and specular terms.
+         */
+        public final Color tmp = new Color();
+
+        /**
+         * Color of the reflected or refracted ray.
+         */
+        public final Color child = new Color();
+
+        /**
+         * Index of the material hit by the ray in the compiled scene.
+         */
+        public int material;
+
+        /**
+         * True if the ray hits the model from inside.
+         */
+        public boolean inside;
+
+        /**
+         * Ratio of the reflected color in the color of the model hit.
+         */
+        public float reflRatio;
+
+        /**
+         * Ratio of the refracted color in the color of the model hit.
+         */
+        public float transRatio;
+
+        /**
+         * Color of the ray, for the iterative evaluation of the ray tree.
+         */
+        public final Color color = new Color();
+
+        /**
+         * Origin of the ray, for the iterative evaluation of the ray tree.
+         */
+        public Vec3f rayOrigin;
+
+        /**
+         * Direction of the ray, for the iterative evaluation of the ray tree.
+         */
+        public Vec3f rayDir;
+
+        /**
+         * Upper bound of the contribution of the ray to the color of the pixel, for the iterative evaluation of the ray tree.
+         */
+        public float weight;
+
+        /**
+         * Next step of the ray, for the iterative evaluation of the ray tree.
+         */
+        public int step;
+
+        /**
+         * Factor applied to the color of the pending child ray, for the iterative evaluation of the ray tree.
+         */
+        public float childScale;
+
+        /**
+         * Ratio applied to the color of the pending child ray, for the iterative evaluation of the ray tree.
+         */
+        public float childRatio;
+    }
+
+    /**
+     * Frames, one per recursion depth.
+     */
+    private final Frame[] frames = new Frame[Scene.MAX_RAY_DEPTH + 1];
+
+    /**
+     * Stack to traverse the bounding volume hierarchy.
+     */
+    public final int[] stack = new int[FlatBVH.STACK_SIZE];
+
+    /**
+     * Packet of primary rays.
+     */
+    public final RayPacket packet = new RayPacket();
+
+    /**
+     * Origin of the primary rays.
+     */
+    public final Vec3f eye = new Vec3f();
+
+    /**
+     * Direction of the primary ray.
+     */
+    public final Vec3f ray = new Vec3f();
+
+    /**
+     * Color of the primary ray.
+     */
+    public final Color color = new Color();
+
+    /**
+     * Scene of the cached occluders.
+     */
+    private Object occluderScene;
+
+    /**
+     * Last model found between an intersection point and each light, null if there is none yet.
+     */
+    private Model[] lastOccluders = new Model[0];
+
+    /**
+     * Constructor.
+     */
+    public ShadingContext() {
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new Frame();
+    }
+
+    /**
+     * Returns the context of the current thread.
+     * @return
+     */
+    public static ShadingContext current() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Returns the frame of a recursion depth.
+     * @param depth
+     * @return
+     */
+    public Frame frame(int depth) {
+        return frames[depth];
+    }
+
+    /**
+     * Returns the last occluders of each light of a scene.
+     * The cache is cleared when the thread shades another scene or the number of lights changes.
+     * @param scene
+     * @param lightCount
+     * @return array indexed by the light index
+     */
+    public Model[] lastOccluders(Object scene, int lightCount) {
+        if (occluderScene != scene || lastOccluders.length != lightCount) {
+            occluderScene = scene;
+            lastOccluders = new Model[lightCount];
+        }
+        return lastOccluders;
+    }
+}
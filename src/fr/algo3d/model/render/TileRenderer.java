@@ -0,0 +1,498 @@
+package fr.algo3d.model.render;
+
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.CompiledScene;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.accel.Hit;
+import fr.algo3d.model.accel.RayPacket;
+import fr.algo3d.model.models.Color;
+import fr.algo3d.model.models.Vec3f;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Renders a scene by splitting the image in square tiles scheduled on a ForkJoinPool.
+ * The tiles are split recursively in tasks so that idle threads steal the remaining tiles of the busy ones.
+ * Each pixel is computed exactly as in the sequential algorithm, with the primary rays of the camera of the scene.
+ * A crop window restricts the rendering to a region of the image.
+ */
+public class TileRenderer {
+
+    /**
+     * Default width and height of a tile in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    /**
+     * Scene to render.
+     */
+    private final Scene scene;
+
+    /**
+     * Width and height of a tile in pixels.
+     */
+    private final int tileSize;
+
+    /**
+     * Pool running the tiles, either the common pool or a pool owned by the renderer.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * True to shade the rays with the compiled scene and the scratch values of each thread,
+     * false to use the classical allocating findColor of the scene.
+     */
+    private boolean allocationFree = true;
+
+    /**
+     * Width and height in pixels of the packets of primary rays, 0 to trace the primary rays one by one.
+     */
+    private int packetSize = 0;
+
+    /**
+     * Evaluator of the trees of reflected and refracted rays, null to use the recursive findColor.
+     */
+    private RayTreeEvaluator evaluator;
+
+    /**
+     * Point of view of the images, null to use the camera of the scene.
+     */
+    private Camera camera;
+
+    /**
+     * Anti-aliasing of the pixels, null to trace one ray per pixel.
+     */
+    private AdaptiveSampler sampler;
+
+    /**
+     * Frame buffer of each thread receiving the tiles given to a sink.
+     */
+    private final ThreadLocal<FrameBuffer> tileBuffers;
+
+    /**
+     * Constructor.
+     * Uses tiles of the default size and the common pool.
+     * @param scene
+     */
+    public TileRenderer(Scene scene) {
+        this(scene, DEFAULT_TILE_SIZE, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param scene
+     * @param tileSize width and height of a tile in pixels
+     * @param threads number of threads of the pool owned by the renderer, 0 to use the common pool
+     */
+    public TileRenderer(Scene scene, int tileSize, int threads) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive : " + tileSize);
+        if (threads < 0)
+            throw new IllegalArgumentException("Thread count must not be negative : " + threads);
+        this.scene = scene;
+        this.tileSize = tileSize;
+        this.pool = threads == 0 ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+        this.tileBuffers = ThreadLocal.withInitial(() -> new FrameBuffer(tileSize, tileSize));
+    }
+
+    /**
+     * Returns the width and height of a tile in pixels.
+     * @return
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Selects the path used to shade the rays : the allocation free path of the compiled scene using the scratch values
+     * of each thread, the default, or the classical path allocating vectors and colors, kept as the reference.
+     * Both give the same pixels.
+     * @param allocationFree false to use the classical path
+     */
+    public void setAllocationFree(boolean allocationFree) {
+        this.allocationFree = allocationFree;
+    }
+
+    /**
+     * Returns true if the rays are shaded with the allocation free path.
+     * @return
+     */
+    public boolean isAllocationFree() {
+        return allocationFree;
+    }
+
+    /**
+     * Traces the primary rays in packets of packetSize x packetSize rays, 4 or 8, sharing the traversal of the hierarchy.
+     * The reflected and refracted rays are still traced one by one, with the allocation free path.
+     * @param packetSize width and height of the packets, 0 to trace the primary rays one by one
+     */
+    public void setPacketSize(int packetSize) {
+        if (packetSize < 0 || packetSize * packetSize > RayPacket.MAX_SIZE)
+            throw new IllegalArgumentException("Packet size must be between 0 and " + (int) Math.sqrt(RayPacket.MAX_SIZE) + " : " + packetSize);
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * Returns the width and height of the packets of primary rays, 0 if they are traced one by one.
+     * @return
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * Evaluates the reflected and refracted rays with an explicit stack, cutting the rays of negligible contribution,
+     * instead of the recursive findColor. The evaluator implies the allocation free path.
+     * @param evaluator evaluator of the ray trees, null to use the recursive findColor
+     */
+    public void setEvaluator(RayTreeEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Returns the evaluator of the ray trees, null if the recursive findColor is used.
+     * @return
+     */
+    public RayTreeEvaluator getEvaluator() {
+        return evaluator;
+    }
+
+    /**
+     * Renders the scene from another point of view than its camera, without changing the scene,
+     * so several renderers can render the same scene from different points of view at the same time.
+     * @param camera point of view, null to use the camera of the scene
+     */
+    public void setCamera(Camera camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Returns the point of view of the images, null if it is the camera of the scene.
+     * @return
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Traces several samples per pixel, more samples being traced only in the pixels which need them.
+     * The packets are not used with anti-aliasing.
+     * @param sampler anti-aliasing of the pixels, null to trace one ray per pixel
+     */
+    public void setAntiAliasing(AdaptiveSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Returns the anti-aliasing of the pixels, null if one ray per pixel is traced.
+     * @return
+     */
+    public AdaptiveSampler getAntiAliasing() {
+        return sampler;
+    }
+
+    /**
+     * Renders the scene in the buffers.
+     * The image is rendered in a frame buffer first, then converted into both layouts.
+     * @param w width of the image
+     * @param h height of the image
+     * @param buffer buffer for the TGA file, 3 bytes per pixel ordered this way : Blue, Green, Red
+     * @param image buffer for JavaFX, 3 bytes per pixel ordered this way : Red, Green, Blue
+     */
+    public void render(int w, int h, byte[] buffer, byte[] image) {
+        FrameBuffer frameBuffer = new FrameBuffer(w, h);
+        render(frameBuffer);
+        Quantizer quantizer = new Quantizer();
+        quantizer.quantize(frameBuffer, Quantizer.Layout.BGR, buffer);
+        quantizer.quantize(frameBuffer, Quantizer.Layout.RGB, image);
+    }
+
+    /**
+     * Renders the scene in a frame buffer, which gives the size of the image.
+     * @param frameBuffer
+     */
+    public void render(FrameBuffer frameBuffer) {
+        render(frameBuffer, Region.full(frameBuffer.getWidth(), frameBuffer.getHeight()));
+    }
+
+    /**
+     * Renders only a region of the image in a frame buffer, which gives the size of the image.
+     * The pixels out of the region are left unchanged, so a part of an image can be rendered again.
+     * @param frameBuffer
+     * @param region region of the image traced
+     */
+    public void render(FrameBuffer frameBuffer, Region region) {
+        render(frameBuffer, region, null);
+    }
+
+    /**
+     * Renders only a region of the image in a frame buffer, marking each tile in the dirty tiles as soon as it is written,
+     * so a view can copy again only the tiles already changed while the image is rendered.
+     * @param frameBuffer
+     * @param region region of the image traced
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     */
+    public void render(FrameBuffer frameBuffer, Region region, DirtyTiles dirtyTiles) {
+        render(frameBuffer, region, dirtyTiles, null);
+    }
+
+    /**
+     * Renders only a region of the image in a frame buffer, until the render is cancelled.
+     * The cancellation is checked before each tile, so the tiles being rendered are finished and no other is started :
+     * the render stops after at most one tile per thread, and the frame buffer may then hold tiles of the previous image.
+     * @param frameBuffer
+     * @param region region of the image traced
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param cancelled true once the image is not needed anymore, or null
+     * @return false if the render was cancelled
+     */
+    public boolean render(FrameBuffer frameBuffer, Region region, DirtyTiles dirtyTiles, BooleanSupplier cancelled) {
+        run(frameBuffer.getWidth(), frameBuffer.getHeight(), region, frameBuffer, 0, 0, null, dirtyTiles, cancelled);
+        return cancelled == null || !cancelled.getAsBoolean();
+    }
+
+    /**
+     * Renders only a region of the image in a frame buffer of the size of the region.
+     * The pixel (col, row) of the image is written at (col - region.getX(), row - region.getY()) in the crop.
+     * @param w width of the image
+     * @param h height of the image
+     * @param region region of the image traced
+     * @param crop frame buffer at least as big as the region
+     */
+    public void renderCrop(int w, int h, Region region, FrameBuffer crop) {
+        if (crop.getWidth() < region.getWidth() || crop.getHeight() < region.getHeight())
+            throw new IllegalArgumentException("Frame buffer smaller than the region " + region);
+        run(w, h, region, crop, region.getX(), region.getY(), null, null, null);
+    }
+
+    /**
+     * Renders the scene tile by tile, giving each tile to the sink as soon as it is rendered.
+     * Only the tiles being rendered are in memory, so the size of the image is not limited by the memory.
+     * @param w width of the image
+     * @param h height of the image
+     * @param sink
+     */
+    public void render(int w, int h, TileSink sink) {
+        render(w, h, Region.full(w, h), sink);
+    }
+
+    /**
+     * Renders only a region of the image tile by tile, giving each tile to the sink as soon as it is rendered.
+     * The tiles start at the corner of the region, their position given to the sink is in the image.
+     * @param w width of the image
+     * @param h height of the image
+     * @param region region of the image traced
+     * @param sink
+     */
+    public void render(int w, int h, Region region, TileSink sink) {
+        run(w, h, region, null, 0, 0, sink, null, null);
+    }
+
+    /**
+     * Renders all the tiles of a region of an image, seen by the camera of the scene.
+     * @param w width of the image
+     * @param h height of the image
+     * @param region region of the image traced
+     * @param frameBuffer frame buffer receiving the pixels, null if the tiles are given to the sink
+     * @param offsetX column of the frame buffer receiving the column 0 of the image is -offsetX
+     * @param offsetY row of the frame buffer receiving the row 0 of the image is -offsetY
+     * @param sink receiver of the tiles, null if they are rendered in the frame buffer
+     * @param dirtyTiles changed tiles of the frame buffer, or null
+     * @param cancelled true once the image is not needed anymore, or null
+     */
+    private void run(int w, int h, Region region, FrameBuffer frameBuffer, int offsetX, int offsetY, TileSink sink,
+                     DirtyTiles dirtyTiles, BooleanSupplier cancelled) {
+        if (w <= 0 || h <= 0)
+            throw new IllegalArgumentException("Invalid image size : " + w + "x" + h);
+        region.checkInside(w, h);
+        int tilesX = (region.getWidth() + tileSize - 1) / tileSize;
+        int tilesY = (region.getHeight() + tileSize - 1) / tileSize;
+        if ((long) tilesX * tilesY > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many tiles : " + w + "x" + h);
+        Camera view = camera != null ? camera : scene.getCamera();
+        Job job = new Job(view.viewport(w, h), region, frameBuffer, offsetX, offsetY, sink, dirtyTiles, cancelled, tilesX);
+        pool.invoke(new TileTask(job, 0, tilesX * tilesY));
+    }
+
+    /**
+     * Stops the threads of the pool if it is owned by the renderer.
+     */
+    public void shutdown() {
+        if (pool != ForkJoinPool.commonPool())
+            pool.shutdown();
+    }
+
+    /**
+     * Image being rendered : its primary rays, the region traced and where its pixels go.
+     */
+    private static class Job {
+        private final Camera.Viewport viewport;
+        private final Region region;
+        private final FrameBuffer frameBuffer;
+        private final int offsetX;
+        private final int offsetY;
+        private final TileSink sink;
+        private final DirtyTiles dirtyTiles;
+        private final BooleanSupplier cancelled;
+        private final int tilesX;
+
+        Job(Camera.Viewport viewport, Region region, FrameBuffer frameBuffer, int offsetX, int offsetY, TileSink sink,
+            DirtyTiles dirtyTiles, BooleanSupplier cancelled, int tilesX) {
+            this.viewport = viewport;
+            this.region = region;
+            this.frameBuffer = frameBuffer;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.sink = sink;
+            this.dirtyTiles = dirtyTiles;
+            this.cancelled = cancelled;
+            this.tilesX = tilesX;
+        }
+    }
+
+    /**
+     * Task rendering a range of tiles, split in two halves until there is only one tile.
+     */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Job job;
+        private final int start;
+        private final int end;
+
+        TileTask(Job job, int start, int end) {
+            this.job = job;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (job.cancelled != null && job.cancelled.getAsBoolean())
+                return;
+            if (end - start == 1) {
+                renderTile(job, start % job.tilesX, start / job.tilesX);
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new TileTask(job, start, mid), new TileTask(job, mid, end));
+        }
+    }
+
+    /**
+     * Renders one tile, in the frame buffer of the job or in the tile buffer of the thread given then to the sink.
+     * @param job
+     * @param tileX column of the tile in the region
+     * @param tileY row of the tile in the region
+     */
+    private void renderTile(Job job, int tileX, int tileY) {
+        Region region = job.region;
+        int col0 = region.getX() + tileX * tileSize;
+        int row0 = region.getY() + tileY * tileSize;
+        int colEnd = Math.min(region.getEndX(), col0 + tileSize);
+        int rowEnd = Math.min(region.getEndY(), row0 + tileSize);
+        if (job.sink == null) {
+            renderRect(job.viewport, col0, row0, colEnd, rowEnd, job.frameBuffer, job.offsetX, job.offsetY);
+            if (job.dirtyTiles != null)
+                job.dirtyTiles.mark(col0, row0, colEnd, rowEnd);
+            return;
+        }
+        FrameBuffer tile = tileBuffers.get();
+        renderRect(job.viewport, col0, row0, colEnd, rowEnd, tile, col0, row0);
+        job.sink.tileDone(col0, row0, tile, colEnd - col0, rowEnd - row0);
+    }
+
+    /**
+     * Renders a rectangle of pixels of the image.
+     * The pixel (col, row) of the image is written at (col - offsetX, row - offsetY) in the target.
+     * @param viewport primary rays of the image
+     * @param col0 first column of the rectangle
+     * @param row0 first row of the rectangle
+     * @param colEnd last column of the rectangle (excluded)
+     * @param rowEnd last row of the rectangle (excluded)
+     * @param target
+     * @param offsetX
+     * @param offsetY
+     */
+    private void renderRect(Camera.Viewport viewport, int col0, int row0, int colEnd, int rowEnd, FrameBuffer target, int offsetX, int offsetY) {
+        if (sampler != null) {
+            sampler.render(viewport, scene.compile(), evaluator, col0, row0, colEnd, rowEnd, target, offsetX, offsetY);
+            return;
+        }
+        if (packetSize > 0) {
+            ShadingContext ctx = ShadingContext.current();
+            CompiledScene compiled = scene.compile();
+            for (int r = row0; r < rowEnd; r += packetSize)
+                for (int c = col0; c < colEnd; c += packetSize)
+                    renderPacket(viewport, c, r, Math.min(colEnd, c + packetSize), Math.min(rowEnd, r + packetSize), compiled, ctx, target, offsetX, offsetY);
+            return;
+        }
+        if (allocationFree || evaluator != null) {
+            ShadingContext ctx = ShadingContext.current();
+            CompiledScene compiled = scene.compile();
+            for (int row = row0; row < rowEnd; row++) {
+                for (int col = col0; col < colEnd; col++) {
+                    viewport.direction(col, row, ctx.ray);
+                    Color c;
+                    if (evaluator != null)
+                        c = evaluator.evaluate(viewport.origin(ctx.eye),ctx.ray,ctx,ctx.color);
+                    else c = compiled.findColor(viewport.origin(ctx.eye),ctx.ray,0,ctx,ctx.color);
+                    target.set(col - offsetX, row - offsetY, c);
+                }
+            }
+            return;
+        }
+        for (int row = row0; row < rowEnd; row++) {
+            for (int col = col0; col < colEnd; col++) {
+                Color c = scene.findColor(viewport.origin(new Vec3f()),viewport.direction(col, row, new Vec3f()),0);
+                target.set(col - offsetX, row - offsetY, c);
+            }
+        }
+    }
+
+    /**
+     * Renders a block of pixels by tracing their primary rays in one packet.
+     * @param viewport primary rays of the image
+     * @param col0 first column of the block
+     * @param row0 first row of the block
+     * @param colEnd last column of the block (excluded)
+     * @param rowEnd last row of the block (excluded)
+     * @param compiled compiled form of the scene
+     * @param ctx scratch values of the current thread
+     * @param target
+     * @param offsetX
+     * @param offsetY
+     */
+    private void renderPacket(Camera.Viewport viewport, int col0, int row0, int colEnd, int rowEnd, CompiledScene compiled, ShadingContext ctx,
+                              FrameBuffer target, int offsetX, int offsetY) {
+        RayPacket packet = ctx.packet;
+        packet.clear();
+        Vec3f eye = viewport.origin(ctx.eye);
+        for (int row = row0; row < rowEnd; row++) {
+            for (int col = col0; col < colEnd; col++) {
+                packet.add(eye, viewport.direction(col, row, ctx.ray));
+            }
+        }
+        compiled.intersect(packet, ctx);
+        Hit hit = ctx.frame(0).hit;
+        int i = 0;
+        for (int row = row0; row < rowEnd; row++) {
+            for (int col = col0; col < colEnd; col++, i++) {
+                Color c;
+                if (packet.model[i] == null)
+                    c = ctx.color.set(Color.black);
+                else {
+                    hit.lambda = packet.lambda[i];
+                    hit.model = packet.model[i];
+                    hit.primitive = packet.primitive[i];
+                    hit.instance = packet.instance[i];
+                    if (evaluator != null)
+                        c = evaluator.evaluate(packet.origins[i], packet.directions[i], hit, ctx, ctx.color);
+                    else c = compiled.shade(packet.origins[i], packet.directions[i], hit, 0, ctx, ctx.color);
+                }
+                target.set(col - offsetX, row - offsetY, c);
+            }
+        }
+    }
+}
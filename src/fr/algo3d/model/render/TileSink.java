@@ -0,0 +1,19 @@
+package fr.algo3d.model.render;
+
+/**
+ * Receives the tiles of an image as soon as they are rendered, for example to write them to a file.
+ * It is called concurrently by the threads of the renderer.
+ */
+public interface TileSink {
+
+    /**
+     * Receives a rendered tile.
+     * The frame buffer belongs to the renderer and is reused for the next tile of the thread once the method returns.
+     * @param col0 column of the first pixel of the tile in the image
+     * @param row0 row of the first pixel of the tile in the image
+     * @param tile frame buffer whose bottom left width x height pixels are the tile
+     * @param width width of the tile
+     * @param height height of the tile
+     */
+    void tileDone(int col0, int row0, FrameBuffer tile, int width, int height);
+}
@@ -0,0 +1,66 @@
+package fr.algo3d.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map keeping at most a given number of entries, the least recently used entry being removed first.
+ * All the methods are synchronized.
+ * @param <K>
+ * @param <V>
+ */
+class LruCache<K, V> {
+
+    private final Map<K, V> map;
+
+    /**
+     * Constructor.
+     * @param capacity greatest number of entries, 0 to keep nothing
+     */
+    LruCache(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Invalid capacity : " + capacity);
+        map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /**
+     * Returns the value of the key, putting the given value first if there is none.
+     * @param key
+     * @param value
+     * @return the value already there, or null if the given value was put
+     */
+    synchronized V putIfAbsent(K key, V value) {
+        V old = map.get(key);
+        if (old == null)
+            map.put(key, value);
+        return old;
+    }
+
+    /**
+     * Removes the entry of the key if its value is the given one.
+     * @param key
+     * @param value
+     */
+    synchronized void remove(K key, V value) {
+        map.remove(key, value);
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+}
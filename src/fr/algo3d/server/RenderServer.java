@@ -0,0 +1,602 @@
+package fr.algo3d.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fr.algo3d.io.PngWriter;
+import fr.algo3d.io.SceneLoader;
+import fr.algo3d.io.TgaWriter;
+import fr.algo3d.model.Camera;
+import fr.algo3d.model.Scene;
+import fr.algo3d.model.models.Vec3f;
+import fr.algo3d.model.render.AdaptiveSampler;
+import fr.algo3d.model.render.DeadlineRenderer;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Quantizer;
+import fr.algo3d.model.render.TileRenderer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP server rendering the scenes sent by other programs, which keeps the loaded scenes and the compiled code between the requests
+ * instead of starting a new JVM per image.
+ * <p>
+ * POST /render?width=W&amp;height=H[&amp;format=png|tga][&amp;position=x,y,z][&amp;target=x,y,z][&amp;up=x,y,z][&amp;fov=degrees][&amp;budget=ms][&amp;aa=samples]
+ * with a scene file as body returns the image, the camera parameters given replacing those of the scene.
+ * With aa, the image is anti-aliased by an AdaptiveSampler tracing up to the given number of samples per pixel.
+ * With a budget, the image is the best one a DeadlineRenderer can render before the budget is spent since the request was received,
+ * the level of quality reached being given in the header X-Render-Quality, and aa is ignored.
+ * GET /status returns the counters of the server.
+ * <p>
+ * By default the server listens on the loopback interface only, the other interfaces being listened only when asked.
+ * The meshes of the scenes must be inside the mesh directory : a scene referencing another file is rejected with 400.
+ * <p>
+ * The scenes are kept in an LRU cache keyed by the SHA-256 of the scene file, with their compiled form,
+ * and the images in another LRU cache keyed by the hash and the parameters, except the images rendered within a budget
+ * below the best level. The modification times of the mesh files are kept with them : a scene or an image is made again
+ * once one of its mesh files changed.
+ * The identical requests received while an image is rendered wait for this image instead of rendering it again.
+ * At most renderThreads images are rendered at the same time, each one on all the processors,
+ * the others wait in a queue of queueCapacity requests : the requests received when the queue is full are rejected with 503.
+ */
+public class RenderServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    public static final int DEFAULT_RENDER_THREADS = 1;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    public static final int DEFAULT_SCENE_CACHE_SIZE = 8;
+
+    public static final int DEFAULT_IMAGE_CACHE_SIZE = 32;
+
+    /**
+     * Greatest size of a scene file sent.
+     */
+    public static final int MAX_SCENE_SIZE = 64 << 20;
+
+    /**
+     * Greatest number of pixels of an image.
+     */
+    public static final long MAX_PIXELS = 1L << 26;
+
+    /**
+     * Greatest number of samples per pixel of the anti-aliasing.
+     */
+    public static final int MAX_SAMPLES = 64;
+
+    private final HttpServer server;
+
+    /**
+     * Threads serving the HTTP exchanges, waiting for the renders.
+     */
+    private final ExecutorService handlers;
+
+    /**
+     * Threads rendering the images, with the bounded queue of the waiting renders.
+     */
+    private final ThreadPoolExecutor renders;
+
+    private final SceneLoader loader;
+
+    /**
+     * Directory against which the paths of the meshes of the scenes are resolved.
+     */
+    private final Path meshDirectory;
+
+    /**
+     * Scenes loaded or being loaded, by hash of their file.
+     */
+    private final LruCache<String, CompletableFuture<LoadedScene>> scenes;
+
+    /**
+     * Images rendered, by hash of their scene and parameters.
+     */
+    private final LruCache<String, Image> images;
+
+    /**
+     * Images being rendered, by hash of their scene and parameters.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Image>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong imageHits = new AtomicLong();
+    private final AtomicLong sceneHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Scene loaded, with the modification times of its mesh files when it was loaded.
+     */
+    private static class LoadedScene {
+        final Scene scene;
+        final Map<Path, FileTime> meshFiles;
+
+        LoadedScene(Scene scene, Map<Path, FileTime> meshFiles) {
+            this.scene = scene;
+            this.meshFiles = meshFiles;
+        }
+    }
+
+    /**
+     * Encoded image.
+     */
+    private static class Image {
+        final byte[] data;
+        final String contentType;
+        /**
+         * Level of quality reached within the budget, null if there was no budget.
+         */
+        final String quality;
+        /**
+         * False for an image rendered within a budget below the best level, which another request may render better.
+         */
+        final boolean cacheable;
+        /**
+         * Modification times of the mesh files of the scene when it was loaded.
+         */
+        final Map<Path, FileTime> meshFiles;
+
+        Image(byte[] data, String contentType, String quality, boolean cacheable, Map<Path, FileTime> meshFiles) {
+            this.data = data;
+            this.contentType = contentType;
+            this.quality = quality;
+            this.cacheable = cacheable;
+            this.meshFiles = meshFiles;
+        }
+    }
+
+    /**
+     * Constructor with the default settings, listening on the loopback interface only.
+     * @param port port of the server, 0 for any free port
+     * @param cacheDirectory directory of the cache of the scene loader, null for no cache on disk
+     * @param meshDirectory directory against which the paths of the meshes of the scenes are resolved
+     * @throws IOException
+     */
+    public RenderServer(int port, Path cacheDirectory, Path meshDirectory) throws IOException {
+        this(port, cacheDirectory, meshDirectory, DEFAULT_RENDER_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_SCENE_CACHE_SIZE, DEFAULT_IMAGE_CACHE_SIZE);
+    }
+
+    /**
+     * Constructor listening on the loopback interface only.
+     * The server is started by start.
+     * @param port port of the server, 0 for any free port
+     * @param cacheDirectory directory of the cache of the scene loader, null for no cache on disk
+     * @param meshDirectory directory against which the paths of the meshes of the scenes are resolved
+     * @param renderThreads number of images rendered at the same time
+     * @param queueCapacity number of renders waiting, beyond which the requests are rejected
+     * @param sceneCacheSize number of scenes kept
+     * @param imageCacheSize number of images kept
+     * @throws IOException
+     */
+    public RenderServer(int port, Path cacheDirectory, Path meshDirectory, int renderThreads, int queueCapacity,
+                        int sceneCacheSize, int imageCacheSize) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, cacheDirectory, meshDirectory, renderThreads, queueCapacity,
+                sceneCacheSize, imageCacheSize);
+    }
+
+    /**
+     * Constructor.
+     * The server is started by start.
+     * @param address address of the interface listened, the wildcard address for all the interfaces
+     * @param port port of the server, 0 for any free port
+     * @param cacheDirectory directory of the cache of the scene loader, null for no cache on disk
+     * @param meshDirectory directory against which the paths of the meshes of the scenes are resolved
+     * @param renderThreads number of images rendered at the same time
+     * @param queueCapacity number of renders waiting, beyond which the requests are rejected
+     * @param sceneCacheSize number of scenes kept
+     * @param imageCacheSize number of images kept
+     * @throws IOException
+     */
+    public RenderServer(InetAddress address, int port, Path cacheDirectory, Path meshDirectory, int renderThreads, int queueCapacity,
+                        int sceneCacheSize, int imageCacheSize) throws IOException {
+        if (renderThreads <= 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("Invalid number of render threads or queue capacity : " + renderThreads + ", " + queueCapacity);
+        this.loader = new SceneLoader(cacheDirectory);
+        this.meshDirectory = meshDirectory;
+        this.scenes = new LruCache<>(sceneCacheSize);
+        this.images = new LruCache<>(imageCacheSize);
+        this.renders = new ThreadPoolExecutor(renderThreads, renderThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("render"));
+        // enough handlers for the renders running and waiting, the others wait in the backlog of the server
+        this.handlers = Executors.newFixedThreadPool(renderThreads + queueCapacity + 2, daemonThreads("http"));
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/render", this::render);
+        server.createContext("/status", this::status);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicLong count = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Starts serving the requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the port of the server.
+     * @return
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, the renders running are abandoned.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        renders.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    /**
+     * Serves a render request.
+     * @param exchange
+     * @throws IOException
+     */
+    private void render(HttpExchange exchange) throws IOException {
+        long received = System.nanoTime();
+        try {
+            requests.incrementAndGet();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "POST a scene file");
+                return;
+            }
+            Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+            int width = intParameter(params, "width");
+            int height = intParameter(params, "height");
+            if (params.containsKey("aa") && intParameter(params, "aa") > MAX_SAMPLES)
+                throw new IllegalArgumentException("More than " + MAX_SAMPLES + " samples per pixel");
+            if ((long) width * height > MAX_PIXELS)
+                throw new IllegalArgumentException("Image too big : " + width + "x" + height);
+            String format = params.getOrDefault("format", "png");
+            if (!format.equals("png") && !format.equals("tga"))
+                throw new IllegalArgumentException("Unknown format " + format);
+            long deadline = params.containsKey("budget") ? received + TimeUnit.MILLISECONDS.toNanos(intParameter(params, "budget")) : 0;
+            byte[] scene = readBody(exchange.getRequestBody());
+            String sceneKey = hex(sha256(scene));
+            // the parameters in a fixed order, so that the same request gives the same key
+            String key = sceneKey + "?" + width + "x" + height + "." + format + " " + params.get("position") + " " + params.get("target")
+                    + " " + params.get("up") + " " + params.get("fov") + " " + params.get("budget") + " " + params.get("aa");
+
+            Image image = images.get(key);
+            if (image != null && changed(image.meshFiles)) {
+                images.remove(key, image);
+                image = null;
+            }
+            if (image != null) {
+                imageHits.incrementAndGet();
+            } else {
+                CompletableFuture<Image> future = new CompletableFuture<>();
+                CompletableFuture<Image> running = inFlight.putIfAbsent(key, future);
+                if (running != null) {
+                    coalesced.incrementAndGet();
+                    future = running;
+                } else {
+                    CompletableFuture<Image> f = future;
+                    try {
+                        renders.execute(() -> {
+                            try {
+                                Image rendered = renderImage(scene, sceneKey, width, height, format, params, deadline);
+                                if (rendered.cacheable)
+                                    images.put(key, rendered);
+                                f.complete(rendered);
+                            } catch (Throwable e) {
+                                f.completeExceptionally(e);
+                            } finally {
+                                inFlight.remove(key, f);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        inFlight.remove(key, f);
+                        f.completeExceptionally(e);
+                    }
+                }
+                image = future.get();
+            }
+            exchange.getResponseHeaders().set("Content-Type", image.contentType);
+            if (image.quality != null)
+                exchange.getResponseHeaders().set("X-Render-Quality", image.quality);
+            exchange.sendResponseHeaders(200, image.data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(image.data);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RejectedExecutionException) {
+                rejected.incrementAndGet();
+                send(exchange, 503, "Too many requests waiting");
+            } else if (cause instanceof IOException || cause instanceof IllegalArgumentException)
+                send(exchange, 400, cause.getMessage());
+            else send(exchange, 500, String.valueOf(cause));
+        } catch (IllegalArgumentException | IOException e) {
+            send(exchange, 400, e.getMessage());
+        } catch (InterruptedException e) {
+            send(exchange, 503, "Server stopping");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders an image of a scene, loaded or found in the cache of the scenes.
+     * @param sceneFile content of the scene file
+     * @param sceneKey hash of the scene file
+     * @param width
+     * @param height
+     * @param format png or tga
+     * @param params camera parameters
+     * @param deadline value of System.nanoTime at which the image must be ready, 0 to render it fully
+     * @return
+     * @throws IOException if the scene is not valid
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private Image renderImage(byte[] sceneFile, String sceneKey, int width, int height, String format, Map<String, String> params,
+                              long deadline) throws IOException, ExecutionException, InterruptedException {
+        LoadedScene loaded = scene(sceneFile, sceneKey);
+        Scene scene = loaded.scene;
+        Camera camera = camera(scene.getCamera(), params);
+        FrameBuffer frameBuffer;
+        String quality = null;
+        boolean cacheable = true;
+        if (deadline != 0) {
+            DeadlineRenderer renderer = new DeadlineRenderer(scene);
+            DeadlineRenderer.Result result = renderer.render(camera, width, height, Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+            frameBuffer = result.getImage();
+            quality = "level " + result.getLevel() + "/" + (renderer.getLevels().size() - 1) + " : " + result.getQuality();
+            // a lower level depends on the load and the warm-up of the server : it is not served to the next requests
+            cacheable = result.getLevel() == renderer.getLevels().size() - 1;
+        } else {
+            TileRenderer renderer = new TileRenderer(scene);
+            renderer.setAllocationFree(true);
+            renderer.setCamera(camera);
+            if (params.containsKey("aa")) {
+                renderer.setAntiAliasing(new AdaptiveSampler(intParameter(params, "aa")));
+            }
+            frameBuffer = new FrameBuffer(width, height);
+            renderer.render(frameBuffer);
+        }
+        rendered.incrementAndGet();
+        Quantizer quantizer = new Quantizer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (format.equals("png")) {
+            new PngWriter().write(Channels.newChannel(out), quantizer.quantize(frameBuffer, Quantizer.Layout.RGB), width, height, Quantizer.Layout.RGB);
+            return new Image(out.toByteArray(), "image/png", quality, cacheable, loaded.meshFiles);
+        }
+        ByteBuffer header = TgaWriter.header(width, height, false);
+        out.write(header.array(), header.position(), header.remaining());
+        out.write(quantizer.quantize(frameBuffer, Quantizer.Layout.BGR));
+        return new Image(out.toByteArray(), "image/x-tga", quality, cacheable, loaded.meshFiles);
+    }
+
+    /**
+     * Returns a scene from the cache, loading it if needed.
+     * The requests needing a scene being loaded wait for it instead of loading it again.
+     * A scene whose mesh files changed since it was loaded is loaded again.
+     * @param sceneFile
+     * @param sceneKey
+     * @return
+     * @throws IOException if the scene is not valid
+     * @throws InterruptedException
+     */
+    private LoadedScene scene(byte[] sceneFile, String sceneKey) throws IOException, InterruptedException {
+        CompletableFuture<LoadedScene> future = new CompletableFuture<>();
+        CompletableFuture<LoadedScene> cached;
+        while ((cached = scenes.putIfAbsent(sceneKey, future)) != null) {
+            LoadedScene loaded = cached.getNow(null);
+            if (loaded == null || !changed(loaded.meshFiles))
+                break;
+            scenes.remove(sceneKey, cached);
+        }
+        if (cached == null) {
+            try {
+                Map<Path, FileTime> meshFiles = new HashMap<>();
+                Scene scene = loader.load(sceneFile, meshDirectory, meshFiles);
+                // the compiled form is kept with the scene, so the next requests do not compile it again
+                scene.compile();
+                future.complete(new LoadedScene(scene, meshFiles));
+            } catch (IOException | RuntimeException e) {
+                scenes.remove(sceneKey, future);
+                future.completeExceptionally(e);
+            }
+        } else {
+            sceneHits.incrementAndGet();
+            future = cached;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns true if a mesh file was modified or removed since its modification time was read.
+     * @param meshFiles mesh files and their modification times
+     * @return
+     */
+    private static boolean changed(Map<Path, FileTime> meshFiles) {
+        for (Map.Entry<Path, FileTime> file : meshFiles.entrySet()) {
+            try {
+                if (!Files.getLastModifiedTime(file.getKey()).equals(file.getValue()))
+                    return true;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the camera of the scene changed by the parameters given.
+     * @param camera
+     * @param params
+     * @return
+     */
+    private static Camera camera(Camera camera, Map<String, String> params) {
+        if (!params.containsKey("position") && !params.containsKey("target") && !params.containsKey("up") && !params.containsKey("fov"))
+            return null;
+        Vec3f position = params.containsKey("position") ? vectorParameter(params, "position") : camera.getPosition();
+        Vec3f target = params.containsKey("target") ? vectorParameter(params, "target") : camera.getTarget();
+        Vec3f up = params.containsKey("up") ? vectorParameter(params, "up") : camera.getUp();
+        float fov = params.containsKey("fov") ? floatParameter(params.get("fov"), "fov") : camera.getFov();
+        return new Camera(position, target, up, fov);
+    }
+
+    /**
+     * Serves the counters of the server.
+     * @param exchange
+     * @throws IOException
+     */
+    private void status(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, "requests " + requests.get() + "\nrendered " + rendered.get() + "\nimage hits " + imageHits.get()
+                    + "\nscene hits " + sceneHits.get() + "\ncoalesced " + coalesced.get() + "\nrejected " + rejected.get()
+                    + "\nqueued " + renders.getQueue().size() + "\nscenes " + scenes.size() + "\nimages " + images.size() + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            if (body.size() + n > MAX_SCENE_SIZE)
+                throw new IllegalArgumentException("Scene bigger than " + MAX_SCENE_SIZE + " bytes");
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static int intParameter(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null)
+            throw new IllegalArgumentException("Missing parameter " + name);
+        try {
+            int i = Integer.parseInt(value);
+            if (i <= 0)
+                throw new IllegalArgumentException("Invalid " + name + " : " + value);
+            return i;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " : " + value);
+        }
+    }
+
+    private static float floatParameter(String value, String name) {
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " : " + value);
+        }
+    }
+
+    private static Vec3f vectorParameter(Map<String, String> params, String name) {
+        String[] values = params.get(name).split(",");
+        if (values.length != 3)
+            throw new IllegalArgumentException("Invalid " + name + " : " + params.get(name));
+        return new Vec3f(floatParameter(values[0], name), floatParameter(values[1], name), floatParameter(values[2], name));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * @param args optional port, then optional directory of the meshes of the scenes,
+     *             then optional address of the interface listened, 0.0.0.0 for all the interfaces, the loopback interface by default
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Path meshDirectory = Paths.get(args.length > 1 ? args[1] : ".").toAbsolutePath();
+        try {
+            InetAddress address = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+            RenderServer server = new RenderServer(address, port, Paths.get(System.getProperty("java.io.tmpdir"), "raytracing-cache"),
+                    meshDirectory, DEFAULT_RENDER_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_SCENE_CACHE_SIZE, DEFAULT_IMAGE_CACHE_SIZE);
+            server.start();
+            System.out.println("Render server on " + address.getHostAddress() + " port " + server.getPort());
+        }
+        catch (IOException e) {
+            System.err.println("Server not started :" + e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package fr.algo3d.view;
+
+import fr.algo3d.model.render.DirtyTiles;
+import fr.algo3d.model.render.FrameBuffer;
+import fr.algo3d.model.render.Quantizer;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JavaFX image showing a frame buffer being rendered.
+ * The image and its bytes are allocated once, then each update converts and copies only the tiles changed since the previous one,
+ * so showing the image while it is rendered costs no allocation and no copy of the whole frame.
+ * The rows are stored from the bottom of the image, like in the frame buffer, the ImageView of the main pane flipping them.
+ * The updates must be made by the JavaFX application thread.
+ */
+public class FrameImage {
+
+    private final FrameBuffer frameBuffer;
+
+    private final Quantizer quantizer;
+
+    /**
+     * Tiles of the frame buffer changed since the last update, marked by the renderers.
+     */
+    private final DirtyTiles dirtyTiles;
+
+    /**
+     * Image shown.
+     */
+    private final WritableImage image;
+
+    private final PixelWriter writer;
+
+    private final PixelFormat<ByteBuffer> format = PixelFormat.getByteRgbInstance();
+
+    /**
+     * Bytes of the whole image, 3 per pixel ordered this way : Red, Green, Blue, only the changed tiles being converted again.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Copies the rectangles drained from the dirty tiles, kept to not create a lambda for each update.
+     */
+    private final DirtyTiles.Consumer upload = this::upload;
+
+    /**
+     * Constructor with tiles of the default size.
+     * @param frameBuffer
+     * @param quantizer
+     */
+    public FrameImage(FrameBuffer frameBuffer, Quantizer quantizer) {
+        this(frameBuffer, quantizer, DirtyTiles.DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param frameBuffer frame buffer shown
+     * @param quantizer conversion of the pixels into bytes
+     * @param tileSize side of the tiles copied, in pixels
+     */
+    public FrameImage(FrameBuffer frameBuffer, Quantizer quantizer, int tileSize) {
+        int w = frameBuffer.getWidth();
+        int h = frameBuffer.getHeight();
+        this.frameBuffer = frameBuffer;
+        this.quantizer = quantizer;
+        this.dirtyTiles = new DirtyTiles(w, h, tileSize);
+        this.image = new WritableImage(w, h);
+        this.writer = image.getPixelWriter();
+        this.bytes = new byte[3 * w * h];
+    }
+
+    /**
+     * Returns the image shown, always the same.
+     * @return
+     */
+    public Image getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the tiles changed since the last update, to give to the renderers of the frame buffer.
+     * @return
+     */
+    public DirtyTiles getDirtyTiles() {
+        return dirtyTiles;
+    }
+
+    /**
+     * Copies the changed tiles of the frame buffer into the image.
+     * @return true if at least one tile was copied
+     */
+    public boolean update() {
+        return dirtyTiles.drain(upload);
+    }
+
+    /**
+     * Converts a rectangle of the frame buffer into bytes and copies it into the image.
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     */
+    private void upload(int x, int y, int width, int height) {
+        int stride = 3 * frameBuffer.getWidth();
+        int offset = y * stride + 3 * x;
+        quantizer.quantizeRect(frameBuffer, x, y, width, height, Quantizer.Layout.RGB, bytes, offset, stride);
+        writer.setPixels(x, y, width, height, format, bytes, offset, stride);
+    }
+}